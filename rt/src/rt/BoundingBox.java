@@ -191,47 +191,32 @@ public class BoundingBox
 	}
 	
 	/**
-	 * fast intersection test of the BoundingBox and a {@link Ray}
+	 * fast intersection test of the BoundingBox and a {@link Ray}. Only the part of the
+	 * ray between {@link Ray#tmin} and {@link Ray#tmax} is considered.
 	 * 
 	 * @param r	Ray to be intersected with
-	 * @return parameter of intersection point (>0) or -1 if no intersection
+	 * @return parameter of intersection point (>0), 0 if the ray begins inside, or
+	 * negative infinity if there is no intersection
 	 */
 	public float intersect(Ray r)
 	{
-		float n1 = (minx - r.origin.x)/r.direction.x;
-		float n2 = (maxx - r.origin.x)/r.direction.x;
-		if(n1 > n2)
-		{
-			float temp = n1;
-			n1 = n2;
-			n2 = temp;
-		}
+		// the sign of the direction tells which side of the box is entered first
+		float n1 = ((r.sign[0] == 0 ? minx : maxx) - r.origin.x)*r.invDirection.x;
+		float n2 = ((r.sign[0] == 0 ? maxx : minx) - r.origin.x)*r.invDirection.x;
 		
-		float n3 = (miny - r.origin.y)/r.direction.y;
-		float n4 = (maxy - r.origin.y)/r.direction.y;
-		if(n3 > n4)
-		{
-			float temp = n3;
-			n3 = n4;
-			n4 = temp;
-		}
+		float n3 = ((r.sign[1] == 0 ? miny : maxy) - r.origin.y)*r.invDirection.y;
+		float n4 = ((r.sign[1] == 0 ? maxy : miny) - r.origin.y)*r.invDirection.y;
 		
 		n1 = Math.max(n1, n3);
 		n2 = Math.min(n2, n4);
 		
-		n3 = (minz - r.origin.z)/r.direction.z;
-		n4 = (maxz - r.origin.z)/r.direction.z;
-		if(n3 > n4)
-		{
-			float temp = n3;
-			n3 = n4;
-			n4 = temp;
-		}
+		n3 = ((r.sign[2] == 0 ? minz : maxz) - r.origin.z)*r.invDirection.z;
+		n4 = ((r.sign[2] == 0 ? maxz : minz) - r.origin.z)*r.invDirection.z;
 		
 		n1 = Math.max(n1, n3);
 		n2 = Math.min(n2, n4);
 		
-		if(n1 > n2)
+		if(n1 > n2 || n2 < r.tmin || n1 >= r.tmax)
 		{
 			return Float.NEGATIVE_INFINITY; // no intersection
 		}
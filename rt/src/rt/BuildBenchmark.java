@@ -0,0 +1,141 @@
+package rt;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+import rt.intersectables.BSPAccelerator;
+import rt.intersectables.BVHBuilder;
+import rt.intersectables.KdTreeBuilder;
+import rt.intersectables.Mesh;
+
+/**
+ * Measures how acceleration structure construction scales with the number of cores. For each
+ * .obj file given on the command line (or the meshes in ../obj by default), the BVH, the
+ * kd-tree and the BSP tree are built serially and on fork-join pools with increasing
+ * parallelism. The build time, the speedup over the serial build, and whether the result is
+ * identical to the serial build are reported for each core count. The BSP time includes
+ * creating the {@link BSPAccelerator} around the tree, since its builder works on the
+ * objects rather than on their bounds.
+ */
+public class BuildBenchmark {
+
+	/**
+	 * Number of builds per configuration, the fastest one is reported.
+	 */
+	static final int RUNS = 5;
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length == 0)
+		{
+			args = new String[] {"../obj/teapot.obj", "../obj/fireman.obj", "../obj/male.obj"};
+		}
+		int nCores = Runtime.getRuntime().availableProcessors();
+
+		for(String fileName:args)
+		{
+			Mesh mesh = ObjReader.read(fileName, 1.f);
+			float[] primBounds = primitiveBounds(mesh);
+			System.out.printf("%s: %d triangles\n", fileName, primBounds.length/6);
+
+			// warm up the JIT before measuring
+			timeBVH(primBounds, null);
+			timeKdTree(primBounds, null);
+			timeBSP(mesh, null);
+
+			BVHBuilder bvh = new BVHBuilder(primBounds, 8);
+			bvh.build(null);
+			long bvhSerial = timeBVH(primBounds, null);
+			KdTreeBuilder kd = new KdTreeBuilder(primBounds);
+			kd.build(null);
+			long kdSerial = timeKdTree(primBounds, null);
+			BSPAccelerator bsp = new BSPAccelerator(mesh, false, null);
+			long bspSerial = timeBSP(mesh, null);
+			System.out.printf("  serial      BVH %6.1f ms            kd-tree %6.1f ms            BSP %6.1f ms\n",
+					bvhSerial/1e6, kdSerial/1e6, bspSerial/1e6);
+
+			for(int p=1; p<=nCores; p = (p == nCores || 2*p <= nCores) ? 2*p : nCores)
+			{
+				ForkJoinPool pool = new ForkJoinPool(p);
+
+				BVHBuilder b = new BVHBuilder(primBounds, 8);
+				b.build(pool);
+				boolean bvhSame = Arrays.equals(bvh.nodes, b.nodes) && Arrays.equals(bvh.nodeBounds, b.nodeBounds)
+						&& Arrays.equals(bvh.primIndices, b.primIndices);
+				long bvhTime = timeBVH(primBounds, pool);
+
+				KdTreeBuilder k = new KdTreeBuilder(primBounds);
+				k.build(pool);
+				boolean kdSame = Arrays.equals(kd.nodes, k.nodes) && Arrays.equals(kd.splits, k.splits)
+						&& Arrays.equals(kd.primIndices, k.primIndices);
+				long kdTime = timeKdTree(primBounds, pool);
+
+				boolean bspSame = bsp.sameTree(new BSPAccelerator(mesh, false, pool));
+				long bspTime = timeBSP(mesh, pool);
+
+				System.out.printf("  %2d cores    BVH %6.1f ms (%4.2fx, %s)  kd-tree %6.1f ms (%4.2fx, %s)  BSP %6.1f ms (%4.2fx, %s)\n", p,
+						bvhTime/1e6, bvhSerial/(double) bvhTime, bvhSame ? "identical" : "DIFFERENT",
+						kdTime/1e6, kdSerial/(double) kdTime, kdSame ? "identical" : "DIFFERENT",
+						bspTime/1e6, bspSerial/(double) bspTime, bspSame ? "identical" : "DIFFERENT");
+				pool.shutdown();
+			}
+		}
+	}
+
+	static long timeBVH(float[] primBounds, ForkJoinPool pool)
+	{
+		long best = Long.MAX_VALUE;
+		for(int i=0; i<RUNS; i++)
+		{
+			long start = System.nanoTime();
+			new BVHBuilder(primBounds, 8).build(pool);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	static long timeKdTree(float[] primBounds, ForkJoinPool pool)
+	{
+		long best = Long.MAX_VALUE;
+		for(int i=0; i<RUNS; i++)
+		{
+			long start = System.nanoTime();
+			new KdTreeBuilder(primBounds).build(pool);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	static long timeBSP(Mesh mesh, ForkJoinPool pool)
+	{
+		long best = Long.MAX_VALUE;
+		for(int i=0; i<RUNS; i++)
+		{
+			long start = System.nanoTime();
+			new BSPAccelerator(mesh, false, pool);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	static float[] primitiveBounds(Mesh mesh)
+	{
+		float[] primBounds = new float[2*mesh.indices.length];
+		int i = 0;
+		Iterator<Intersectable> it = mesh.iterator();
+		while(it.hasNext())
+		{
+			BoundingBox b = it.next().getBoundingBox();
+			primBounds[6*i] = b.getMinx();
+			primBounds[6*i+1] = b.getMaxx();
+			primBounds[6*i+2] = b.getMiny();
+			primBounds[6*i+3] = b.getMaxy();
+			primBounds[6*i+4] = b.getMinz();
+			primBounds[6*i+5] = b.getMaxz();
+			i++;
+		}
+		return primBounds;
+	}
+}
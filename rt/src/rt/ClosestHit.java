@@ -0,0 +1,62 @@
+package rt;
+
+/**
+ * The closest hit loops of {@link rt.intersectables.Aggregate} and of the acceleration
+ * structures. Hits with {@link DeferredIntersectable}s are recorded in a single
+ * {@link HitRecord} per ray, which is made on the first such hit, reused for all closer
+ * ones and only completed for the closest hit by {@link ClosestHit#complete(Ray, HitRecord)}.
+ * Other objects make their full records as usual.
+ */
+public class ClosestHit
+{
+	/**
+	 * Intersect a ray with an object, only hits closer than r.tmax are reported, and r.tmax is
+	 * lowered to the hit.
+	 * 
+	 * @param closest the closest hit so far, or null
+	 * @return the closest hit, which may still have to be completed
+	 */
+	public static HitRecord intersect(Intersectable o, Ray r, HitRecord closest)
+	{
+		if(o instanceof DeferredIntersectable)
+		{
+			// reuse the record only if it was made by a deferred intersectable of this search
+			HitRecord reuse = closest != null && closest.deferred != null ? closest : null;
+			HitRecord hit = ((DeferredIntersectable) o).intersect(r, reuse);
+			if(hit != null)
+			{
+				r.tmax = hit.t;
+				return hit;
+			}
+			return closest;
+		}
+		
+		// nested aggregates and accelerators lower r.tmax to their own hit
+		float tmax = r.tmax;
+		HitRecord tmp = o.intersect(r);
+		if(tmp!=null && tmp.t<tmax)
+		{
+			r.tmax = tmp.t;
+			return tmp;
+		}
+		return closest;
+	}
+	
+	/**
+	 * Complete the closest hit of a ray if it was made by a deferred intersectable.
+	 * 
+	 * @param r the ray that found the hit
+	 * @param closest the closest hit, or null
+	 * @return the completed hit, or null
+	 */
+	public static HitRecord complete(Ray r, HitRecord closest)
+	{
+		if(closest != null && closest.deferred != null)
+		{
+			DeferredIntersectable deferred = closest.deferred;
+			closest.deferred = null;
+			deferred.completeHit(r, closest);
+		}
+		return closest;
+	}
+}
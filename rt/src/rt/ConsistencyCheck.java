@@ -0,0 +1,126 @@
+package rt;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import rt.intersectables.AutoAccelerator;
+import rt.intersectables.BSPAccelerator;
+import rt.intersectables.BVHAccelerator;
+import rt.intersectables.IntersectableList;
+import rt.intersectables.KdTreeAccelerator;
+import rt.intersectables.Mesh;
+import rt.intersectables.Plane;
+import rt.intersectables.Sphere;
+
+/**
+ * Checks that acceleration structures and nested aggregates report the same hits as a plain
+ * list of all objects. Each configuration is traced with the same rays, and the distance and
+ * object of the closest hit, and the result of the occlusion query, are compared with the
+ * reference. Nested configurations, an accelerator or a list inside another list, cover the
+ * case where the inner object lowers the range of the ray to its own hit before the outer
+ * loop compares it. The scene graphs made by {@link AutoAccelerator} are checked as well.
+ * <p>
+ * Exits with status 1 if any configuration differs.
+ */
+public class ConsistencyCheck {
+
+	static final int RAYS = 20000;
+
+	public static void main(String[] args) throws IOException
+	{
+		String fileName = args.length > 0 ? args[0] : "../obj/teapot.obj";
+		Mesh mesh = ObjReader.read(fileName, 1.f);
+		Plane floor = new Plane(new Vector3f(0.f, 1.f, 0.f), 1.1f);
+		Sphere sphere = new Sphere(new Vector3f(1.5f, 0.f, 0.f), 0.5f);
+
+		// Reference: every triangle, the floor and the sphere in one list
+		IntersectableList flat = new IntersectableList();
+		Iterator<Intersectable> it = mesh.iterator();
+		while(it.hasNext())
+		{
+			flat.add(it.next());
+		}
+		flat.add(floor);
+		flat.add(sphere);
+
+		Ray[] rays = rays(RAYS);
+		boolean ok = true;
+		ok &= check("list(mesh, floor, sphere)", flat, list(mesh, floor, sphere), rays);
+		ok &= check("list(list(mesh, floor), sphere)", flat, list(list(mesh, floor), sphere), rays);
+		ok &= check("list(BVH(mesh), floor, sphere)", flat, list(new BVHAccelerator(mesh), floor, sphere), rays);
+		ok &= check("list(kd-tree(mesh), floor, sphere)", flat, list(new KdTreeAccelerator(mesh), floor, sphere), rays);
+		ok &= check("list(BSP(mesh), floor, sphere)", flat, list(new BSPAccelerator(mesh), floor, sphere), rays);
+		ok &= check("BVH(list(BVH(mesh), floor), sphere)", flat,
+				new BVHAccelerator(list(list(new BVHAccelerator(mesh), floor), sphere)), rays);
+		ok &= check("accelerate(list(mesh, floor, sphere))", flat,
+				AutoAccelerator.accelerate(list(mesh, floor, sphere)), rays);
+		ok &= check("accelerate(list(list(mesh, floor), sphere))", flat,
+				AutoAccelerator.accelerate(list(list(mesh, floor), sphere)), rays);
+
+		System.out.printf(ok ? "All configurations agree.\n" : "Configurations differ.\n");
+		if(!ok)
+		{
+			System.exit(1);
+		}
+	}
+
+	static IntersectableList list(Intersectable... objects)
+	{
+		IntersectableList list = new IntersectableList();
+		for(Intersectable o:objects)
+		{
+			list.add(o);
+		}
+		return list;
+	}
+
+	/**
+	 * Compare the hits and occlusion queries of an object with a reference.
+	 *
+	 * @return true if they agree for all rays
+	 */
+	static boolean check(String name, Intersectable reference, Intersectable o, Ray[] rays)
+	{
+		int hits = 0;
+		int different = 0;
+		for(Ray ray:rays)
+		{
+			HitRecord a = reference.intersect(new Ray(ray.origin, ray.direction));
+			HitRecord b = o.intersect(new Ray(ray.origin, ray.direction));
+			if(a != null)
+			{
+				hits++;
+			}
+			if((a == null) != (b == null) || (a != null && (a.t != b.t || a.material != b.material)))
+			{
+				different++;
+			}else if(reference.occluded(new Ray(ray.origin, ray.direction), 2.f)
+					!= o.occluded(new Ray(ray.origin, ray.direction), 2.f))
+			{
+				different++;
+			}
+		}
+		System.out.printf("%-44s %6d hits, %6d different\n", name, hits, different);
+		return different == 0;
+	}
+
+	/**
+	 * Rays from a point in front of the scene towards it, most of them hitting the mesh or
+	 * the floor behind it.
+	 */
+	static Ray[] rays(int n)
+	{
+		Random random = new Random(5);
+		Ray[] rays = new Ray[n];
+		for(int i=0; i<n; i++)
+		{
+			Vector3f direction = new Vector3f(0.3f*(float) random.nextGaussian(), 0.3f*(float) random.nextGaussian(), -1.f);
+			direction.normalize();
+			rays[i] = new Ray(new Vector3f(0.f, 0.f, 4.f), direction);
+		}
+		return rays;
+	}
+}
@@ -0,0 +1,32 @@
+package rt;
+
+/**
+ * An {@link Intersectable} that can postpone computing the shading data of a hit. While
+ * acceleration structures search for the closest hit of a ray, most candidate hits are
+ * replaced by closer ones, so building a full {@link HitRecord} for each of them is wasted.
+ * A deferred intersectable instead only records the ray parameter and the few values it
+ * needs to complete the hit later, see {@link ClosestHit}.
+ */
+public interface DeferredIntersectable extends Intersectable {
+
+	/**
+	 * Test for a hit closer than r.tmax like {@link Intersectable#intersect(Ray)}, but only
+	 * set {@link HitRecord#t}, {@link HitRecord#intersectable}, {@link HitRecord#deferred},
+	 * and what {@link DeferredIntersectable#completeHit(Ray, HitRecord)} needs, like
+	 * barycentric coordinates, in {@link HitRecord#u}, {@link HitRecord#v} and
+	 * {@link HitRecord#primitive}. Implementations that search over many primitives may lower
+	 * r.tmax to the hit.
+	 * 
+	 * @param r the ray used for intersection testing
+	 * @param hit a record to reuse, or null to make a new one if there is a hit
+	 * @return the record, or null if there is no hit, in which case hit is not modified
+	 */
+	public HitRecord intersect(Ray r, HitRecord hit);
+	
+	/**
+	 * Compute the remaining fields of a hit found by 
+	 * {@link DeferredIntersectable#intersect(Ray, HitRecord)} with the same ray, such that
+	 * the record equals the one {@link Intersectable#intersect(Ray)} would have made.
+	 */
+	public void completeHit(Ray r, HitRecord hit);
+}
@@ -55,6 +55,18 @@ public class HitRecord  {
 	 */
 	public float p;
 	
+	/**
+	 * The object that still has to complete this record, or null if it is complete, see
+	 * {@link DeferredIntersectable}.
+	 */
+	public DeferredIntersectable deferred;
+	
+	/**
+	 * Index of the primitive that was hit, for objects made of many primitives that complete
+	 * their hits in {@link DeferredIntersectable#completeHit(Ray, HitRecord)}.
+	 */
+	public int primitive;
+	
 	
 	public HitRecord ()
 	{
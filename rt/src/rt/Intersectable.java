@@ -15,6 +15,19 @@ public interface Intersectable {
 	 */
 	public HitRecord intersect(Ray r);
 	
+	/**
+	 * Test whether the ray hits a surface that casts shadows (see 
+	 * {@link Material#castsShadows()}) at a ray parameter 0 < t < tMax. Other than
+	 * {@link Intersectable#intersect(Ray)}, implementations may stop at the first such
+	 * surface they find and do not make a {@link HitRecord}, which makes this the
+	 * method of choice for shadow rays. Surfaces without a material cast shadows.
+	 * 
+	 * @param r the ray used for intersection testing
+	 * @param tMax only hits closer than this are considered
+	 * @return true if the ray is blocked before tMax
+	 */
+	public boolean occluded(Ray r, float tMax);
+	
 	/**
 	 * Return the {@link BoundingBox} of the Intersectable in this method.
 	 * If the Intersectable has no finite {@link BoundingBox}, return null.
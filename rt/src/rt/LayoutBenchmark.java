@@ -0,0 +1,182 @@
+package rt;
+
+import java.io.IOException;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import rt.intersectables.Aggregate;
+import rt.intersectables.BSPAccelerator;
+import rt.intersectables.BVHAccelerator;
+import rt.intersectables.FlatKdTree;
+import rt.intersectables.IntersectableList;
+import rt.intersectables.KdTreeAccelerator;
+import rt.intersectables.NodeLayout;
+import rt.intersectables.QuantizedBVHAccelerator;
+import rt.intersectables.Sphere;
+import rt.intersectables.WideBVHAccelerator;
+
+/**
+ * Measures how the memory layout of the nodes, see {@link NodeLayout}, affects traversal.
+ * For each .obj file given on the command line (or the meshes in ../obj by default), and for
+ * a cloud of spheres whose tree is larger than the caches, the BVH, the quantized and the
+ * wide BVH, the kd-tree and the BSP tree are traced with incoherent rays, once with the depth first layout of the builders and
+ * once with treelets of each size in {@link LayoutBenchmark#TREELET_SIZES}. The ray rate, the
+ * speedup over the depth first layout, and whether all hits are identical are reported.
+ */
+public class LayoutBenchmark {
+
+	/**
+	 * Number of passes over the rays per configuration, the fastest one is reported.
+	 */
+	static final int RUNS = 3;
+
+	static final int RAYS = 200000;
+
+	static final int SPHERES = 200000;
+
+	static final int[] TREELET_SIZES = {8, 32, 128};
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length == 0)
+		{
+			args = new String[] {"../obj/teapot.obj", "../obj/fireman.obj", "../obj/male.obj", "spheres"};
+		}
+
+		for(String fileName:args)
+		{
+			Aggregate scene;
+			if(fileName.equals("spheres"))
+			{
+				scene = spheres(SPHERES);
+				System.out.printf("%d spheres\n", SPHERES);
+			}else
+			{
+				scene = ObjReader.read(fileName, 1.f);
+				System.out.printf("%s\n", fileName);
+			}
+
+			BVHAccelerator bvh = new BVHAccelerator(scene);
+			Ray[] rays = rays(bvh.getBoundingBox(), RAYS);
+
+			float[] reference = new float[RAYS];
+			float[] t = new float[RAYS];
+			for(int i=0; i<5; i++)
+			{
+				Intersectable accelerator;
+				if(i == 0)
+				{
+					accelerator = bvh;
+				}else if(i == 1)
+				{
+					accelerator = new QuantizedBVHAccelerator(scene);
+				}else if(i == 2)
+				{
+					accelerator = new WideBVHAccelerator(scene);
+				}else if(i == 3)
+				{
+					accelerator = new KdTreeAccelerator(scene);
+				}else
+				{
+					accelerator = new BSPAccelerator(scene);
+				}
+
+				// warm up the JIT before measuring
+				trace(accelerator, rays, reference);
+				long depthFirst = trace(accelerator, rays, reference);
+				System.out.printf("  %-23s depth first   %6.3f Mrays/s\n", accelerator.getClass().getSimpleName(),
+						RAYS/(depthFirst/1e3));
+
+				for(int treeletSize:TREELET_SIZES)
+				{
+					layoutTreelets(accelerator, treeletSize);
+					long time = trace(accelerator, rays, t);
+					boolean same = true;
+					for(int j=0; j<RAYS; j++)
+					{
+						same &= Float.compare(t[j], reference[j]) == 0;
+					}
+					System.out.printf("  %-23s treelets %4d %6.3f Mrays/s (%4.2fx, %s)\n", "", treeletSize,
+							RAYS/(time/1e3), depthFirst/(double) time, same ? "identical" : "DIFFERENT");
+					layoutTreelets(accelerator, 0);
+				}
+			}
+		}
+	}
+
+	static void layoutTreelets(Intersectable accelerator, int treeletSize)
+	{
+		if(accelerator instanceof BVHAccelerator)
+		{
+			((BVHAccelerator) accelerator).layoutTreelets(treeletSize);
+		}else if(accelerator instanceof QuantizedBVHAccelerator)
+		{
+			((QuantizedBVHAccelerator) accelerator).layoutTreelets(treeletSize);
+		}else if(accelerator instanceof WideBVHAccelerator)
+		{
+			((WideBVHAccelerator) accelerator).layoutTreelets(treeletSize);
+		}else
+		{
+			((FlatKdTree) accelerator).layoutTreelets(treeletSize);
+		}
+	}
+
+	/**
+	 * Trace all rays and store the distance of their hits, or -1 for misses.
+	 *
+	 * @return the time of the fastest pass in ns
+	 */
+	static long trace(Intersectable accelerator, Ray[] rays, float[] t)
+	{
+		long best = Long.MAX_VALUE;
+		for(int run=0; run<RUNS; run++)
+		{
+			long start = System.nanoTime();
+			for(int i=0; i<rays.length; i++)
+			{
+				HitRecord h = accelerator.intersect(new Ray(rays[i].origin, rays[i].direction));
+				t[i] = h == null ? -1 : h.t;
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * Rays with random origins inside the bounds and random directions, like the secondary
+	 * rays of a path tracer.
+	 */
+	static Ray[] rays(BoundingBox b, int n)
+	{
+		Random random = new Random(42);
+		Ray[] rays = new Ray[n];
+		for(int i=0; i<n; i++)
+		{
+			Vector3f origin = new Vector3f(b.getMinx() + random.nextFloat()*(b.getMaxx() - b.getMinx()),
+					b.getMiny() + random.nextFloat()*(b.getMaxy() - b.getMiny()),
+					b.getMinz() + random.nextFloat()*(b.getMaxz() - b.getMinz()));
+			Vector3f direction = new Vector3f((float) random.nextGaussian(), (float) random.nextGaussian(),
+					(float) random.nextGaussian());
+			direction.normalize();
+			rays[i] = new Ray(origin, direction);
+		}
+		return rays;
+	}
+
+	/**
+	 * Random spheres in the cube [-1,1]^3, covering about a tenth of its volume.
+	 */
+	static Aggregate spheres(int n)
+	{
+		Random random = new Random(1);
+		float radius = 0.6f/(float) Math.cbrt(n);
+		IntersectableList list = new IntersectableList();
+		for(int i=0; i<n; i++)
+		{
+			list.add(new Sphere(new Vector3f(2*random.nextFloat() - 1, 2*random.nextFloat() - 1,
+					2*random.nextFloat() - 1), radius));
+		}
+		return list;
+	}
+}
@@ -2,6 +2,8 @@ package rt;
 
 import javax.imageio.ImageIO;
 
+import rt.intersectables.AcceleratorStatistics;
+import rt.intersectables.BVHCache;
 import rt.testscenes.*;
 
 import java.util.*;
@@ -24,6 +26,21 @@ public class Main {
 	 * The scene to be rendered.
 	 */
 	public static Scene scene = new PathtracingBoxLamp();
+	
+	/**
+	 * Print the {@link AcceleratorStatistics} of the acceleration structures in the scene
+	 * and the {@link TraversalCounters} of the rendering.
+	 */
+	public static boolean statistics = false;
+	
+	/**
+	 * Directory in which the hierarchies built by {@link Scene#prepare()} are cached across
+	 * runs, see {@link BVHCache}, for example new File("../cache"), or null to build them
+	 * every time. Scenes that build accelerators in their constructor, which runs before
+	 * this is applied, enable the cache by setting {@link BVHCache#directory} themselves.
+	 */
+	public static File bvhCache = null;
+	
 	/**
 	 * A render task represents a rectangular image region that is rendered
 	 * by a thread in one chunk.
@@ -81,7 +98,10 @@ public class Main {
 		int width = scene.getFilm().getWidth();
 		int height = scene.getFilm().getHeight();
 
+		BVHCache.directory = bvhCache;
 		scene.prepare();
+		TraversalCounters.enabled = statistics;
+		TraversalCounters.reset();
 		
 		int nTasks = (int)(Math.ceil(width/(double)taskSize) * Math.ceil(height/(double)taskSize));
 		//ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(nThreads);
@@ -122,6 +142,15 @@ public class Main {
 		String timing_output = String.format("Image computed in %d ms = %d min, %d sec.\n", time_ms, time_min, time_s - time_min*60);
 		System.out.print(timing_output);
 		
+		if(statistics)
+		{
+			for(AcceleratorStatistics stats:AcceleratorStatistics.collect(scene.getIntersectable()))
+			{
+				System.out.print(stats);
+			}
+			System.out.print(TraversalCounters.total());
+		}
+		
 		// Tone map output image and writ to file
 		BufferedImage image = scene.getTonemapper().process(scene.getFilm());
 		try
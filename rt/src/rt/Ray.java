@@ -3,16 +3,53 @@ package rt;
 import javax.vecmath.*;
 
 /**
- * A ray represented by an origin and a direction.
+ * A ray represented by an origin and a direction. The ray also carries the range
+ * [tmin, tmax] of ray parameters in which hits are of interest. While an aggregate
+ * looks for the closest hit, it lowers tmax to the closest hit found so far, so that
+ * everything behind it can be skipped.
  */
 public class Ray {
 
 	public Vector3f origin;
 	public Vector3f direction;
-	
+
+	/**
+	 * Component wise reciprocal of the direction.
+	 */
+	public Vector3f invDirection;
+
+	/**
+	 * 1 for the axes along which the direction is negative, 0 otherwise. For boxes stored as
+	 * min,max pairs, the entry at 2*axis + sign[axis] is the side where the ray enters.
+	 */
+	public int[] sign;
+
+	/**
+	 * Smallest ray parameter of hits that are of interest.
+	 */
+	public float tmin;
+
+	/**
+	 * Hits at this ray parameter or further away are of no interest.
+	 */
+	public float tmax;
+
 	public Ray(Vector3f origin, Vector3f direction)
 	{
-		this.origin = new Vector3f(origin); 
+		this(origin, direction, 0.f, Float.POSITIVE_INFINITY);
+	}
+
+	public Ray(Vector3f origin, Vector3f direction, float tmin, float tmax)
+	{
+		this.origin = new Vector3f(origin);
 		this.direction = new Vector3f(direction);
+		this.tmin = tmin;
+		this.tmax = tmax;
+
+		invDirection = new Vector3f(1.f/direction.x, 1.f/direction.y, 1.f/direction.z);
+		sign = new int[3];
+		sign[0] = invDirection.x < 0 ? 1 : 0;
+		sign[1] = invDirection.y < 0 ? 1 : 0;
+		sign[2] = invDirection.z < 0 ? 1 : 0;
 	}
 }
@@ -1,5 +1,8 @@
 package rt;
 
+import rt.intersectables.AutoAccelerator;
+import rt.intersectables.ClippedIntersectable;
+
 /**
  * Defines scene properties that need to be made accessible to the renderer. 
  */
@@ -55,8 +58,38 @@ public abstract class Scene {
 		return tonemapper;
 	}
 	
+	/**
+	 * Called by the renderer before rendering. Puts acceleration structures over the
+	 * aggregates of the scene where they pay off, see {@link AutoAccelerator}, so every
+	 * scene is accelerated without building the structures by hand. Unbounded
+	 * CSG trees are clipped to {@link Scene#clipRegion()} first. Scenes that override this
+	 * should call it.
+	 */
 	public void prepare()
 	{
+		root = AutoAccelerator.accelerate(root, clipRegion());
+	}
+
+	/**
+	 * The region to which objects without finite bounds are clipped, see
+	 * {@link ClippedIntersectable}. Clipping does not change the image, the region only
+	 * decides which rays skip the objects. By default it is the bounds of the finite objects
+	 * and the camera position, plus a margin, so camera rays start in it and most rays that
+	 * hit an object end in it. Scenes can override this, null disables clipping.
+	 */
+	protected BoundingBox clipRegion()
+	{
+		BoundingBox region = root == null ? null : ClippedIntersectable.finiteBounds(root);
+		if(region == null)
+		{
+			return null;
+		}
+		if(camera != null && width > 0 && height > 0)
+		{
+			Ray r = camera.makeWorldSpaceRay(width/2, height/2, new float[] {0.5f, 0.5f});
+			region.combinationWith(new BoundingBox(r.origin, r.origin));
+		}
+		return ClippedIntersectable.region(region);
 	}
 
 }
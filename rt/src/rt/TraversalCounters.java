@@ -0,0 +1,96 @@
+package rt;
+
+import java.util.ArrayList;
+
+/**
+ * Counts the work done by acceleration structures per thread, the node visits and primitive
+ * tests of each traversal. Counting is off by default, then {@link TraversalCounters#get()}
+ * returns null and the accelerators skip it. Each thread counts into its own instance, so
+ * threads do not compete for the counters, and {@link TraversalCounters#total()} sums them
+ * up once rendering is done.
+ * <p>
+ * A traversal is one call to intersect or occluded of an accelerator, so a ray that passes
+ * through nested accelerators counts once for each of them.
+ */
+public class TraversalCounters
+{
+	/**
+	 * Set before rendering to enable counting.
+	 */
+	public static volatile boolean enabled = false;
+
+	private static final ArrayList<TraversalCounters> all = new ArrayList<TraversalCounters>();
+
+	private static final ThreadLocal<TraversalCounters> counters = new ThreadLocal<TraversalCounters>()
+	{
+		@Override
+		protected TraversalCounters initialValue()
+		{
+			TraversalCounters c = new TraversalCounters();
+			synchronized(all)
+			{
+				all.add(c);
+			}
+			return c;
+		}
+	};
+
+	public long traversals;
+	public long occlusionTraversals;
+	public long nodeVisits;
+	public long primitiveTests;
+
+	/**
+	 * Get the counters of the calling thread.
+	 *
+	 * @return the counters, or null if counting is disabled
+	 */
+	public static TraversalCounters get()
+	{
+		return enabled ? counters.get() : null;
+	}
+
+	/**
+	 * Sum the counters of all threads. Must be called after the threads are done.
+	 */
+	public static TraversalCounters total()
+	{
+		TraversalCounters total = new TraversalCounters();
+		synchronized(all)
+		{
+			for(TraversalCounters c:all)
+			{
+				total.traversals += c.traversals;
+				total.occlusionTraversals += c.occlusionTraversals;
+				total.nodeVisits += c.nodeVisits;
+				total.primitiveTests += c.primitiveTests;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Set the counters of all threads to zero.
+	 */
+	public static void reset()
+	{
+		synchronized(all)
+		{
+			for(TraversalCounters c:all)
+			{
+				c.traversals = 0;
+				c.occlusionTraversals = 0;
+				c.nodeVisits = 0;
+				c.primitiveTests = 0;
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		long n = Math.max(1, traversals + occlusionTraversals);
+		return String.format("Traversals %d (%d occlusion), per traversal: node visits %.2f, primitive tests %.2f\n",
+				traversals + occlusionTraversals, occlusionTraversals, nodeVisits/(float) n, primitiveTests/(float) n);
+	}
+}
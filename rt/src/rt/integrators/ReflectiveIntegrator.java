@@ -56,9 +56,8 @@ public class ReflectiveIntegrator implements Integrator {
 			Vector3f approxpos = new Vector3f(hitRecord.normal);
 			approxpos.scale(0.000001f);
 			approxpos.add(hitRecord.position);
-			HitRecord shadowHit = root.intersect(new Ray(approxpos, new Vector3f(lightDir)));
 			
-			if(shadowHit != null && shadowHit.t*shadowHit.t < d2 - 0.000001f)	// shadowCast
+			if(root.occluded(new Ray(approxpos, lightDir), (float) Math.sqrt(d2 - 0.000001f)))	// shadowCast
 			{
 				continue;
 			}
@@ -0,0 +1,123 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import rt.Intersectable;
+
+/**
+ * Quality measures of a built acceleration structure, to tune parameters like the maximum
+ * depth or the leaf size with data. The SAH cost is the expected cost of a random ray that
+ * hits the root, in units of primitive intersections, with {@link BVHBuilder#TRAVERSAL_COST}
+ * per visited interior node. The memory footprint is estimated for a 64 bit JVM with
+ * compressed references, and does not include the primitives themselves.
+ */
+public class AcceleratorStatistics
+{
+	public String name;
+	public int primitives;
+	public int nodes;
+	public int leaves;
+	public int emptyLeaves;
+	public int maxDepth;
+	public int maxLeafSize;
+
+	/**
+	 * Sum of the depths of all leaves, the root has depth 1.
+	 */
+	public long leafDepths;
+
+	/**
+	 * Sum of the number of primitives of all leaves. Primitives that are stored in several
+	 * leaves are counted for each of them.
+	 */
+	public long references;
+
+	public float sahCost;
+	public long memory;
+
+	public AcceleratorStatistics(String name, int primitives)
+	{
+		this.name = name;
+		this.primitives = primitives;
+	}
+
+	/**
+	 * Count a leaf with the given depth and number of primitives.
+	 */
+	public void addLeaf(int depth, int count)
+	{
+		leaves++;
+		leafDepths += depth;
+		references += count;
+		maxDepth = Math.max(maxDepth, depth);
+		maxLeafSize = Math.max(maxLeafSize, count);
+		if(count == 0)
+		{
+			emptyLeaves++;
+		}
+	}
+
+	public float averageDepth()
+	{
+		return leaves > 0 ? leafDepths/(float) leaves : 0;
+	}
+
+	/**
+	 * Average number of primitives in the leaves that are not empty.
+	 */
+	public float averageLeafSize()
+	{
+		return leaves > emptyLeaves ? references/(float) (leaves - emptyLeaves) : 0;
+	}
+
+	/**
+	 * Number of primitive references per primitive, 1 if no primitive is stored twice.
+	 */
+	public float duplication()
+	{
+		return primitives > 0 ? references/(float) primitives : 0;
+	}
+
+	/**
+	 * Collect the statistics of the acceleration structures in a scene, that is of the
+	 * given object and, if it is an {@link Aggregate}, of the objects in it.
+	 */
+	public static ArrayList<AcceleratorStatistics> collect(Intersectable root)
+	{
+		ArrayList<AcceleratorStatistics> all = new ArrayList<AcceleratorStatistics>();
+		collect(root, all);
+		return all;
+	}
+
+	static void collect(Intersectable o, ArrayList<AcceleratorStatistics> all)
+	{
+		if(o instanceof FlatKdTree)
+		{
+			all.add(((FlatKdTree) o).getStatistics());
+		}else if(o instanceof BVHAccelerator)
+		{
+			all.add(((BVHAccelerator) o).getStatistics());
+		}else if(o instanceof QuantizedBVHAccelerator)
+		{
+			all.add(((QuantizedBVHAccelerator) o).getStatistics());
+		}else if(o instanceof Aggregate)
+		{
+			Iterator<Intersectable> it = ((Aggregate) o).iterator();
+			while(it.hasNext())
+			{
+				collect(it.next(), all);
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s over %d primitives:\n", name, primitives)
+				+ String.format("  nodes %d, leaves %d (%d empty)\n", nodes, leaves, emptyLeaves)
+				+ String.format("  depth max %d, average %.2f\n", maxDepth, averageDepth())
+				+ String.format("  primitives per leaf max %d, average %.2f, duplication %.2f\n", maxLeafSize, averageLeafSize(), duplication())
+				+ String.format("  SAH cost %.2f, memory %.1f KB\n", sahCost, memory/1024.f);
+	}
+}
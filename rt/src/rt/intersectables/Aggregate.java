@@ -2,6 +2,7 @@ package rt.intersectables;
 
 import java.util.Iterator;
 
+import rt.ClosestHit;
 import rt.HitRecord;
 import rt.Intersectable;
 import rt.Ray;
@@ -11,26 +12,100 @@ import rt.Ray;
  */
 public abstract class Aggregate implements Intersectable {
 
+	/**
+	 * Acceleration structure over the objects of this aggregate, built on first use.
+	 */
+	private volatile BVHAccelerator accelerator;
+
 	public HitRecord intersect(Ray r) {
 
 		HitRecord hitRecord = null;
-		float t = Float.MAX_VALUE;
 		
-		// Intersect all objects in group, return closest hit
+		// Intersect all objects in group, return closest hit. Objects only report
+		// hits closer than r.tmax, which is lowered with every hit, and only the closest
+		// hit is completed, see ClosestHit.
 		Iterator<Intersectable> it = iterator();
 		while(it.hasNext())
 		{
 			Intersectable o = it.next();
-			HitRecord tmp = o.intersect(r);
-			if(tmp!=null && tmp.t<t)
+			hitRecord = ClosestHit.intersect(o, r, hitRecord);
+		}
+		return ClosestHit.complete(r, hitRecord);
+	}
+	
+	public boolean occluded(Ray r, float tMax) {
+		
+		Iterator<Intersectable> it = iterator();
+		while(it.hasNext())
+		{
+			if(it.next().occluded(r, tMax))
 			{
-				t = tmp.t;
-				hitRecord = tmp;
+				return true;
 			}
 		}
-		return hitRecord;
+		return false;
 	}
 	
 	public abstract Iterator<Intersectable> iterator();
+	
+	/**
+	 * Get a {@link BVHAccelerator} over the objects of this aggregate. The accelerator is
+	 * built once on the first call and shared by all callers, for example by all
+	 * {@link Instance}s of a mesh. Objects added to the aggregate afterwards are not
+	 * contained in the accelerator.
+	 */
+	public BVHAccelerator getAccelerator()
+	{
+		BVHAccelerator a = accelerator;
+		if(a == null)
+		{
+			synchronized(this)
+			{
+				a = accelerator;
+				if(a == null)
+				{
+					a = new BVHAccelerator(this);
+					accelerator = a;
+				}
+			}
+		}
+		return a;
+	}
+	
+	/**
+	 * The accelerator of this aggregate, or null if it has not been built yet.
+	 */
+	BVHAccelerator builtAccelerator()
+	{
+		return accelerator;
+	}
+	
+	/**
+	 * Make an accelerator built over the objects of this aggregate the one returned by
+	 * {@link Aggregate#getAccelerator()}, unless one has been built already.
+	 * 
+	 * @return the accelerator of this aggregate
+	 */
+	synchronized BVHAccelerator shareAccelerator(BVHAccelerator a)
+	{
+		if(accelerator == null)
+		{
+			accelerator = a;
+		}
+		return accelerator;
+	}
+	
+	/**
+	 * Update the accelerator of this aggregate after its objects have moved, if it has
+	 * been built. See {@link BVHAccelerator#refit()}.
+	 */
+	public void refit()
+	{
+		BVHAccelerator a = accelerator;
+		if(a != null)
+		{
+			a.refit();
+		}
+	}
 
 }
@@ -0,0 +1,89 @@
+package rt.intersectables;
+
+import java.util.Iterator;
+
+import rt.BoundingBox;
+import rt.Intersectable;
+
+/**
+ * Puts acceleration structures into a scene graph that has none, see
+ * {@link AutoAccelerator#accelerate(Intersectable)}. Used by {@link rt.Scene#prepare()}, so
+ * scenes need not wrap their objects in accelerators themselves.
+ */
+public class AutoAccelerator
+{
+	/**
+	 * Replace the aggregates in the scene graph below the given object by
+	 * {@link BVHAccelerator}s, where a cost model predicts the accelerator to be faster.
+	 * Aggregates contained in other aggregates are accelerated first, bottom up. Objects
+	 * that are not aggregates, including existing accelerators, {@link Instance}s and CSG
+	 * solids, are kept as they are.
+	 * <p>
+	 * The cost model compares the SAH cost of the built hierarchy, plus one traversal step
+	 * for its root, to the cost of testing every object of the aggregate, for a ray that
+	 * hits the bounds of the aggregate. All objects count as one primitive intersection,
+	 * so only small aggregates, for which the hierarchy is cheap to build and discard,
+	 * remain plain lists.
+	 * <p>
+	 * The aggregates themselves are not modified. If the objects of an aggregate are
+	 * unchanged and its hierarchy is used, the hierarchy becomes the one of
+	 * {@link Aggregate#getAccelerator()}, shared with the {@link Instance}s of the aggregate.
+	 * Hierarchies of aggregates that remain lists are dropped.
+	 *
+	 * @return the accelerated object, or the object itself
+	 */
+	public static Intersectable accelerate(Intersectable o)
+	{
+		return accelerate(o, null);
+	}
+
+	/**
+	 * Like {@link AutoAccelerator#accelerate(Intersectable)}, but first replace the unbounded
+	 * CSG trees in the aggregates by their parts inside and outside the given region, see
+	 * {@link ClippedIntersectable}, so the hierarchies cull the parts inside.
+	 *
+	 * @param region the region to clip to, or null to keep unbounded objects as they are
+	 */
+	public static Intersectable accelerate(Intersectable o, BoundingBox region)
+	{
+		if(!(o instanceof Aggregate))
+		{
+			return o;
+		}
+		Aggregate aggr = (Aggregate) o;
+
+		// Accelerate the sub-aggregates first, indexed primitives have none
+		IntersectableList objects = new IntersectableList();
+		boolean changed = false, clipped = false;
+		if(!(aggr instanceof IndexedPrimitives))
+		{
+			Iterator<Intersectable> it = aggr.iterator();
+			while(it.hasNext())
+			{
+				Intersectable i = it.next();
+				if(region != null && ClippedIntersectable.clippable(i))
+				{
+					ClippedIntersectable.clip(i, region, objects);
+					changed = clipped = true;
+					continue;
+				}
+				Intersectable a = accelerate(i, region);
+				changed |= a != i;
+				objects.add(a);
+			}
+		}
+
+		BVHAccelerator bvh = changed ? null : aggr.builtAccelerator();
+		if(bvh == null)
+		{
+			bvh = new BVHAccelerator(changed ? objects : aggr);
+		}
+		int count = bvh.primitiveCount();
+		if(count == 0 || (!clipped && bvh.buildCost[0] + BVHBuilder.TRAVERSAL_COST >= count))
+		{	// a list is cheaper, unless it holds clipped parts, the cost model counts a CSG tree
+			// like a single primitive and a list would test both parts of it
+			return changed ? objects : aggr;
+		}
+		return changed ? bvh : aggr.shareAccelerator(bvh);
+	}
+}
@@ -1,172 +1,459 @@
 package rt.intersectables;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import rt.BoundingBox;
 import rt.HitRecord;
 import rt.Intersectable;
 import rt.Ray;
+import rt.TraversalCounters;
 
-public class BSPAccelerator implements Intersectable
+/**
+ * A BSP tree over the objects of an {@link Aggregate}, which splits its cells in the middle
+ * of their longest axis. The tree is built from {@link BSPNode}s and then compiled into flat
+ * arrays: the split planes in one float array, two ints per node, and the objects of all
+ * leaves in one shared int array of indices. The nodes are stored and traversed like the
+ * ones of a {@link KdTreeAccelerator}, see {@link FlatKdTree}.
+ * <p>
+ * Optionally, every leaf stores ropes, links to the neighbouring cells across each of its
+ * six faces. Rays then walk from leaf to leaf through the faces where they leave the cells,
+ * without a traversal stack.
+ */
+public class BSPAccelerator extends FlatKdTree
 {
-	protected BSPNode root;
-	protected ArrayList<Intersectable> infinites = null;
-	
+	/**
+	 * For the stackless traversal, six entries per node, only used for leaves: the
+	 * smallest node whose cell covers the neighbourhood of the leaf across each face
+	 * minx,maxx,miny,maxy,minz,maxz, or -1 on the boundary of the tree. Null if the tree
+	 * has no ropes.
+	 */
+	protected int[] ropes;
+
+	/**
+	 * Bounds of the cell of each leaf, six entries per node like ropes.
+	 */
+	protected float[] cellBounds;
+
 	public BSPAccelerator(Aggregate aggr)
 	{
-		infinites = new ArrayList<Intersectable>();
-		Iterator<Intersectable> it = aggr.iterator();
-		if(!it.hasNext())
-		{
-			return;
-		}
-		
-		BoundingBox bound = null, tempbound = null;
-		int treecount = 0;
-		for(Intersectable i = it.next(); it.hasNext(); i = it.next())
+		this(aggr, false);
+	}
+
+	/**
+	 * @param ropes link the leaves to their neighbours for stackless traversal, at the cost
+	 * of 48 additional bytes per node
+	 */
+	public BSPAccelerator(Aggregate aggr, boolean ropes)
+	{
+		this(aggr, ropes, BVHBuilder.POOL);
+	}
+
+	/**
+	 * @param pool pool to build the tree on, or null to build it serially in the calling
+	 * thread, see {@link BSPNode#addAll}
+	 */
+	public BSPAccelerator(Aggregate aggr, boolean ropes, ForkJoinPool pool)
+	{
+		super(aggr);
+
+		for(Intersectable i:primitives)
 		{
-			tempbound = i.getBoundingBox();
-			if(tempbound == null)
+			if(bound == null)
 			{
-				infinites.add(i);
+				bound = new BoundingBox(i.getBoundingBox());
 			}else
 			{
-				if(bound == null)
-				{
-					bound = new BoundingBox(tempbound);
-				}else
-				{
-					bound.combinationWith(tempbound);
-				}
-				treecount++;
+				bound.combinationWith(i.getBoundingBox());
 			}
 		}
-		
 		if(bound == null)
 		{
 			return;
 		}
-		
+		rootBound = new float[] {bound.getMinx(), bound.getMaxx(), bound.getMiny(), bound.getMaxy(), bound.getMinz(), bound.getMaxz()};
+
+		int treecount = primitives.length;
 		int maxdepth = (int) Math.ceil(8 + 1.3*Math.log(treecount));
-		
-		root = new BSPNode(bound,1);
-		it = aggr.iterator();
-		for(Intersectable i = it.next(); it.hasNext(); i = it.next())
+
+		BSPNode root = new BSPNode(bound,1);
+		root.addAll(Arrays.asList(primitives), maxdepth, pool);
+		compile(root);
+		if(ropes)
+		{
+			buildRopes();
+		}
+		initState();
+	}
+
+	/**
+	 * Store the tree in {@link BSPAccelerator#nodes}, {@link BSPAccelerator#splits} and
+	 * {@link BSPAccelerator#primIndices}.
+	 */
+	protected void compile(BSPNode root)
+	{
+		IdentityHashMap<Intersectable, Integer> index = new IdentityHashMap<Intersectable, Integer>();
+		for(int i=0; i<primitives.length; i++)
+		{
+			index.put(primitives[i], i);
+		}
+
+		int[] counts = new int[2];
+		count(root, counts);
+		nodes = new int[2*counts[0]];
+		splits = new float[counts[0]];
+		primIndices = new int[counts[1]];
+		maxDepth = 0;
+		compile(root, index, new int[2]);
+		PrimitiveBuckets.sortLeaves(nodes, primIndices);
+	}
+
+	/**
+	 * Test if two accelerators store the same tree, for example a parallel and a serial build.
+	 */
+	public boolean sameTree(BSPAccelerator other)
+	{
+		return Arrays.equals(nodes, other.nodes) && Arrays.equals(splits, other.splits)
+				&& Arrays.equals(primIndices, other.primIndices);
+	}
+
+	/**
+	 * Count nodes and object references of a subtree.
+	 *
+	 * @param counts incremented by the number of nodes (index 0) and references (index 1)
+	 */
+	static void count(BSPNode node, int[] counts)
+	{
+		counts[0]++;
+		if(node.left == null)
+		{
+			counts[1] += node.list.size();
+			return;
+		}
+		count(node.left, counts);
+		count(node.right, counts);
+	}
+
+	/**
+	 * Store a subtree in depth first order, the child below the split plane first.
+	 *
+	 * @param next next free node (index 0) and reference (index 1)
+	 * @return index of the subtree root
+	 */
+	protected int compile(BSPNode node, IdentityHashMap<Intersectable, Integer> index, int[] next)
+	{
+		int i = next[0]++;
+		maxDepth = Math.max(maxDepth, node.depth);
+		if(node.left == null)
 		{
-			tempbound = i.getBoundingBox();
-			if(tempbound != null)
+			nodes[2*i] = next[1];
+			nodes[2*i+1] = node.list.size();
+			for(Intersectable o:node.list)
 			{
-				root.add(i, maxdepth);	
+				primIndices[next[1]++] = index.get(o);
 			}
+			return i;
 		}
+
+		// the split along x puts the lower half on the left, along y and z on the right
+		boolean leftBelow = node.axis == 0;
+		compile(leftBelow ? node.left : node.right, index, next);
+		nodes[2*i] = compile(leftBelow ? node.right : node.left, index, next);
+		nodes[2*i+1] = -(node.axis + 1);
+		splits[i] = node.split;
+		return i;
 	}
-	
+
+	/**
+	 * Store the nodes in treelets, see {@link FlatKdTree#layoutTreelets(int)}. The ropes
+	 * are rebuilt for the new layout.
+	 */
 	@Override
-	public HitRecord intersect(Ray r)
+	public void layoutTreelets(int treeletSize)
 	{
-		HitRecord hitRecord = null;
-		float t = Float.MAX_VALUE;
-		
-		// Intersect all objects in infinites, return closest hit
-		for(Intersectable o:infinites)
+		super.layoutTreelets(treeletSize);
+		if(ropes != null)
+		{
+			buildRopes();
+		}
+	}
+
+	/**
+	 * Compute {@link BSPAccelerator#ropes} and {@link BSPAccelerator#cellBounds}.
+	 */
+	protected void buildRopes()
+	{
+		int nodeCount = nodes.length/2;
+		ropes = new int[6*nodeCount];
+		cellBounds = new float[6*nodeCount];
+		int[] rootRopes = {-1, -1, -1, -1, -1, -1};
+		buildRopes(0, rootRopes, rootBound.clone());
+	}
+
+	/**
+	 * Pass the ropes of a node down to its leaves. The child below the split plane gets the
+	 * child above as neighbour across its upper face, and vice versa.
+	 *
+	 * @param nodeRopes ropes of the node, modified
+	 * @param cell bounds of the cell of the node, modified
+	 */
+	protected void buildRopes(int node, int[] nodeRopes, float[] cell)
+	{
+		for(int face=0; face<6; face++)
+		{
+			nodeRopes[face] = optimizeRope(nodeRopes[face], face, cell);
+		}
+
+		int count = nodes[2*node+1];
+		if(count >= 0)
+		{
+			System.arraycopy(nodeRopes, 0, ropes, 6*node, 6);
+			System.arraycopy(cell, 0, cellBounds, 6*node, 6);
+			return;
+		}
+
+		int axis = -count - 1;
+		int below = node + 1;
+		int above = nodes[2*node];
+		float min = cell[2*axis];
+		float max = cell[2*axis+1];
+		int[] childRopes = nodeRopes.clone();
+
+		childRopes[2*axis+1] = above;
+		cell[2*axis+1] = splits[node];
+		buildRopes(below, childRopes, cell);
+
+		System.arraycopy(nodeRopes, 0, childRopes, 0, 6);
+		childRopes[2*axis] = below;
+		cell[2*axis] = splits[node];
+		cell[2*axis+1] = max;
+		buildRopes(above, childRopes, cell);
+		cell[2*axis] = min;
+	}
+
+	/**
+	 * Move a rope down the tree as long as a single child of its node covers the face of
+	 * the cell, so fewer nodes are visited when the rope is followed.
+	 */
+	protected int optimizeRope(int rope, int face, float[] cell)
+	{
+		while(rope >= 0 && nodes[2*rope+1] < 0)
 		{
-			HitRecord tmp = o.intersect(r);
-			if(tmp!=null && tmp.t<t)
+			int axis = -nodes[2*rope+1] - 1;
+			float split = splits[rope];
+			if(axis == face/2)
+			{	// the child next to the face
+				rope = (face & 1) == 1 ? rope + 1 : nodes[2*rope];
+			}else if(cell[2*axis] >= split)
 			{
-				t = tmp.t;
-				hitRecord = tmp;
+				rope = nodes[2*rope];
+			}else if(cell[2*axis+1] <= split)
+			{
+				rope = rope + 1;
+			}else
+			{
+				break;
 			}
 		}
-		
-		Stack<BSPNode> nodestack = new Stack<BSPNode>();
-		nodestack.push(root);
-		
-		/* intersect all
-		BSPNode node;
-		while(!nodestack.isEmpty())
+		return rope;
+	}
+
+	/**
+	 * Follow the ropes if the tree has them, otherwise use the traversal stack.
+	 */
+	@Override
+	protected HitRecord intersectCells(Ray r, TraversalState s, float tmin, float tmax, TraversalCounters counters)
+	{
+		if(ropes != null)
+		{
+			return intersectRopes(r, s, tmin, tmax, counters);
+		}
+		return super.intersectCells(r, s, tmin, tmax, counters);
+	}
+
+	@Override
+	protected boolean occludedCells(Ray r, float tMax, TraversalState s, float tmin, float tmax, TraversalCounters counters)
+	{
+		if(ropes != null)
+		{
+			return occludedRopes(r, tMax, s, tmin, tmax, counters);
+		}
+		return super.occludedCells(r, tMax, s, tmin, tmax, counters);
+	}
+
+	/**
+	 * Stackless traversal along the ropes. The ray enters a leaf at tmin, and continues
+	 * in the node behind the face through which it leaves the cell, until the closest hit
+	 * lies inside the cell or the ray leaves the tree.
+	 *
+	 * @param s holds the ray and its mailbox
+	 * @param tmin start of the ray range inside the tree
+	 * @param tmax end of the ray range inside the tree
+	 */
+	protected HitRecord intersectRopes(Ray r, TraversalState s, float tmin, float tmax, TraversalCounters counters)
+	{
+		HitRecord hitRecord = null;
+		int rayId = s.nextRay();
+		int[] mailbox = s.mailbox;
+		int node = 0;
+		while(true)
 		{
-			node = nodestack.pop();
-			if(node.left == null)
+			node = descend(node, tmin, s, counters);
+
+			int offset = nodes[2*node];
+			int count = nodes[2*node+1];
+			for(int i=offset; i<offset+count; i++)
 			{
-				for(Intersectable o:node.list)
+				int p = primIndices[i];
+				if(mailbox[p] == rayId)
+				{	// already tested by this ray in another cell
+					continue;
+				}
+				mailbox[p] = rayId;
+				if(counters != null)
 				{
-					HitRecord tmp = o.intersect(r);
-					if(tmp!=null && tmp.t<t)
-					{
-						t = tmp.t;
-						hitRecord = tmp;
-					}
+					counters.primitiveTests++;
 				}
-			}else
-			{
-				nodestack.push(node.left);
-				nodestack.push(node.right);
+
+				hitRecord = buckets.intersect(p, r, hitRecord);
+			}
+
+			int face = exitFace(node, r, s);
+			float exit = exitDistance(node, face, s);
+			if(face < 0 || r.tmax <= exit || exit >= tmax || ropes[6*node+face] < 0)
+			{	// closest hit is inside this cell, or the ray leaves the tree
+				return hitRecord;
 			}
+			node = ropes[6*node+face];
+			tmin = Math.max(tmin, exit);
 		}
-		/*/// intersect optimized
-		BSPNode node;
-		float n1,n2;
-		boolean newHRfound = false;
-		while(!nodestack.isEmpty())
+	}
+
+	/**
+	 * Stackless traversal along the ropes for {@link BSPAccelerator#occluded(Ray, float)}.
+	 */
+	protected boolean occludedRopes(Ray r, float tMax, TraversalState s, float tmin, float tmax, TraversalCounters counters)
+	{
+		int rayId = s.nextRay();
+		int[] mailbox = s.mailbox;
+		int node = 0;
+		while(true)
 		{
-			node = nodestack.pop();
-			if(node.left == null)
+			node = descend(node, tmin, s, counters);
+
+			int offset = nodes[2*node];
+			int count = nodes[2*node+1];
+			for(int i=offset; i<offset+count; i++)
 			{
-				for(Intersectable o:node.list)
-				{
-					HitRecord tmp = o.intersect(r);
-					if(tmp!=null && tmp.t<t)
-					{
-						t = tmp.t;
-						hitRecord = tmp;
-						newHRfound = true;
-					}
+				int p = primIndices[i];
+				if(mailbox[p] == rayId)
+				{	// already tested by this ray in another cell
+					continue;
 				}
-				if(newHRfound)
+				mailbox[p] = rayId;
+				if(counters != null)
 				{
-					return hitRecord;	// stack is sorted -> this is the best hit
+					counters.primitiveTests++;
 				}
-			}else
-			{	// put on stack sorted
-				n1 = node.left.bound.intersect(r);
-				n2 = node.right.bound.intersect(r);
-				if(n1 > n2)
-				{
-					if(!(n1 < 0))
-					{
-						nodestack.push(node.left);
-					}
-					if(!(n2 < 0))
-					{
-						nodestack.push(node.right);
-					}
-				}else
+
+				if(buckets.occluded(p, r, tMax))
 				{
-					if(!(n2 < 0))
-					{
-						nodestack.push(node.right);
-					}
-					if(!(n1 < 0))
-					{
-						nodestack.push(node.left);
-					}
+					return true;
 				}
 			}
+
+			int face = exitFace(node, r, s);
+			float exit = exitDistance(node, face, s);
+			if(face < 0 || exit >= tmax || ropes[6*node+face] < 0)
+			{
+				return false;
+			}
+			node = ropes[6*node+face];
+			tmin = Math.max(tmin, exit);
+		}
+	}
+
+	/**
+	 * Descend from a node to the leaf that contains the ray at parameter t. The side of
+	 * each split plane is decided by the distance to the plane, like in the traversal with
+	 * a stack, rather than by the position of the point, which may be off by rounding.
+	 */
+	protected int descend(int node, float t, TraversalState s, TraversalCounters counters)
+	{
+		float[] o = s.origin;
+		float[] dir = s.direction;
+		float[] inv = s.invDirection;
+		while(true)
+		{
+			if(counters != null)
+			{
+				counters.nodeVisits++;
+			}
+			int count = nodes[2*node+1];
+			if(count >= 0)
+			{
+				return node;
+			}
+
+			int axis = -count - 1;
+			float split = splits[node];
+			float tPlane = (split - o[axis])*inv[axis];
+			if(tPlane != tPlane)
+			{	// ray lies in the split plane and never crosses it
+				tPlane = Float.POSITIVE_INFINITY;
+			}
+			boolean belowFirst = o[axis] < split || (o[axis] == split && dir[axis] <= 0);
+			boolean first = tPlane > t || tPlane <= 0;
+			node = first == belowFirst ? node + 1 : nodes[2*node];
+		}
+	}
+
+	/**
+	 * Find the face through which the ray leaves the cell of a leaf.
+	 *
+	 * @return the face, minx,maxx,miny,maxy,minz,maxz, or -1 if there is none
+	 */
+	protected int exitFace(int node, Ray r, TraversalState s)
+	{
+		int face = -1;
+		float exit = Float.POSITIVE_INFINITY;
+		for(int axis=0; axis<3; axis++)
+		{
+			int f = 2*axis + 1 - r.sign[axis];
+			float t = (cellBounds[6*node+f] - s.origin[axis])*s.invDirection[axis];
+			if(t < exit)
+			{
+				exit = t;
+				face = f;
+			}
+		}
+		return face;
+	}
+
+	protected float exitDistance(int node, int face, TraversalState s)
+	{
+		if(face < 0)
+		{
+			return Float.POSITIVE_INFINITY;
 		}
-		// */
-		return hitRecord;
+		int axis = face/2;
+		return (cellBounds[6*node+face] - s.origin[axis])*s.invDirection[axis];
 	}
 
+	/**
+	 * Compute the quality measures of the tree, see {@link AcceleratorStatistics}. The
+	 * memory includes the ropes.
+	 */
 	@Override
-	public BoundingBox getBoundingBox()
+	public AcceleratorStatistics getStatistics()
 	{
-		if(infinites.isEmpty())
+		AcceleratorStatistics stats = super.getStatistics();
+		if(ropes != null)
 		{
-			return root.bound;
+			stats.memory += 4*(long) ropes.length + 4*(long) cellBounds.length;
 		}
-		return null;
+		return stats;
 	}
 
 }
@@ -1,17 +1,33 @@
 package rt.intersectables;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import rt.BoundingBox;
 import rt.Intersectable;
 
 public class BSPNode
 {
+	/**
+	 * Subtrees over more objects than this are built in their own task by
+	 * {@link BSPNode#addAll(List, int, ForkJoinPool)}.
+	 */
+	static final int SUBTREE_GRAIN = 512;
+	
 	BoundingBox bound;
 	BSPNode left;
 	BSPNode right;
 	int depth;
 	
+	/**
+	 * Axis and position of the split plane of interior nodes.
+	 */
+	int axis;
+	float split;
+	
 	ArrayList<Intersectable> list;
 	
 	public BSPNode(BoundingBox bound, int depth)
@@ -37,26 +53,7 @@ public class BSPNode
 				list.add(obj);
 			}else
 			{
-				float w = bound.getMaxx() - bound.getMinx();
-				float h = bound.getMaxy() - bound.getMiny();
-				float d = bound.getMaxz() - bound.getMinz();
-				
-				if(w > h && w > d)
-				{
-					float m = (bound.getMaxx() + bound.getMinx())/2.0f;
-					left = new BSPNode(new BoundingBox(bound.getMinx(),m,bound.getMiny(),bound.getMaxy(),bound.getMinz(),bound.getMaxz()), depth+1);
-					right = new BSPNode(new BoundingBox(m,bound.getMaxx(),bound.getMiny(),bound.getMaxy(),bound.getMinz(),bound.getMaxz()), depth+1);
-				}else if(h > d)
-				{
-					float m = (bound.getMaxy() + bound.getMiny())/2.0f;
-					left = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),m,bound.getMaxy(),bound.getMinz(),bound.getMaxz()), depth+1);
-					right = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),bound.getMiny(),m,bound.getMinz(),bound.getMaxz()), depth+1);
-				}else
-				{
-					float m = (bound.getMaxz() + bound.getMinz())/2.0f;
-					left = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),bound.getMiny(),bound.getMaxy(),m,bound.getMaxz()), depth+1);
-					right = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),bound.getMiny(),bound.getMaxy(),bound.getMinz(),m), depth+1);
-				}
+				split();
 				
 				for(Intersectable i:list)
 				{
@@ -75,4 +72,113 @@ public class BSPNode
 			right.add(obj, maxdepth);
 		}
 	}
+	
+	/**
+	 * Split the node in the middle of its longest axis and create the two children.
+	 */
+	void split()
+	{
+		float w = bound.getMaxx() - bound.getMinx();
+		float h = bound.getMaxy() - bound.getMiny();
+		float d = bound.getMaxz() - bound.getMinz();
+		
+		if(w > h && w > d)
+		{
+			float m = (bound.getMaxx() + bound.getMinx())/2.0f;
+			axis = 0;
+			split = m;
+			left = new BSPNode(new BoundingBox(bound.getMinx(),m,bound.getMiny(),bound.getMaxy(),bound.getMinz(),bound.getMaxz()), depth+1);
+			right = new BSPNode(new BoundingBox(m,bound.getMaxx(),bound.getMiny(),bound.getMaxy(),bound.getMinz(),bound.getMaxz()), depth+1);
+		}else if(h > d)
+		{
+			float m = (bound.getMaxy() + bound.getMiny())/2.0f;
+			axis = 1;
+			split = m;
+			left = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),m,bound.getMaxy(),bound.getMinz(),bound.getMaxz()), depth+1);
+			right = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),bound.getMiny(),m,bound.getMinz(),bound.getMaxz()), depth+1);
+		}else
+		{
+			float m = (bound.getMaxz() + bound.getMinz())/2.0f;
+			axis = 2;
+			split = m;
+			left = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),bound.getMiny(),bound.getMaxy(),m,bound.getMaxz()), depth+1);
+			right = new BSPNode(new BoundingBox(bound.getMinx(),bound.getMaxx(),bound.getMiny(),bound.getMaxy(),bound.getMinz(),m), depth+1);
+		}
+	}
+	
+	/**
+	 * Add objects to an empty node, with the same result as adding them one by one with
+	 * {@link BSPNode#add(Intersectable, int)}: a node is split if at least four objects
+	 * intersect it and it is above the maximal depth, and the leaves keep the objects in
+	 * the given order. The tree is built top down, so subtrees over many objects are built
+	 * as separate tasks.
+	 *
+	 * @param pool pool to run the build on, or null to build serially in the calling thread
+	 */
+	public void addAll(List<Intersectable> objs, int maxdepth, ForkJoinPool pool)
+	{
+		if(pool == null)
+		{
+			build(objs, maxdepth, false);
+		}else
+		{
+			pool.invoke(new SubtreeTask(this, objs, maxdepth));
+		}
+	}
+	
+	/**
+	 * @param parallel whether the calling thread runs inside a fork-join pool
+	 */
+	void build(List<Intersectable> objs, int maxdepth, boolean parallel)
+	{
+		ArrayList<Intersectable> inside = new ArrayList<Intersectable>(objs.size());
+		for(Intersectable obj:objs)
+		{
+			if(bound.intersect(obj.getBoundingBox()))
+			{
+				inside.add(obj);
+			}
+		}
+		
+		if(inside.size() < 4 || !(depth < maxdepth))
+		{
+			list = inside;
+			return;
+		}
+		
+		split();
+		list = null;
+		if(parallel && inside.size() > SUBTREE_GRAIN)
+		{
+			ForkJoinTask.invokeAll(new SubtreeTask(left, inside, maxdepth), new SubtreeTask(right, inside, maxdepth));
+		}else
+		{
+			left.build(inside, maxdepth, parallel);
+			right.build(inside, maxdepth, parallel);
+		}
+	}
+	
+	/**
+	 * Builds a subtree.
+	 */
+	@SuppressWarnings("serial")
+	static class SubtreeTask extends RecursiveAction
+	{
+		BSPNode node;
+		List<Intersectable> objs;
+		int maxdepth;
+		
+		SubtreeTask(BSPNode node, List<Intersectable> objs, int maxdepth)
+		{
+			this.node = node;
+			this.objs = objs;
+			this.maxdepth = maxdepth;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			node.build(objs, maxdepth, true);
+		}
+	}
 }
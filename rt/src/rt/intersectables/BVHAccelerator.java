@@ -0,0 +1,788 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+import rt.TraversalCounters;
+
+/**
+ * A bounding volume hierarchy over the objects of an {@link Aggregate}, built with the
+ * surface area heuristic by a {@link BVHBuilder}. The nodes are stored in flat primitive
+ * arrays and reference their children by index, which keeps traversal free of pointer
+ * chasing. Objects without a finite {@link BoundingBox} are tested separately for every ray.
+ * Optionally, a split BVH with spatial splits is built by a {@link SBVHBuilder}. Hierarchies
+ * over many objects are kept in a {@link BVHCache} across runs.
+ * <p>
+ * When objects move, {@link BVHAccelerator#refit()} updates the hierarchy in place instead
+ * of building it again.
+ * <p>
+ * The nodes are stored depth first, or in treelets, see
+ * {@link BVHAccelerator#layoutTreelets(int)}.
+ */
+public class BVHAccelerator implements Intersectable
+{
+	/**
+	 * Leaves with more primitives than this are always split if possible.
+	 */
+	public static final int MAX_LEAF_SIZE = 8;
+
+	/**
+	 * A subtree is rebuilt by {@link BVHAccelerator#refit()} once its SAH cost exceeds the
+	 * cost it had right after it was built by this factor.
+	 */
+	public static final float REBUILD_THRESHOLD = 1.5f;
+
+	protected Intersectable[] primitives;
+
+	/**
+	 * If the accelerator is built over {@link IndexedPrimitives}, the primitives are referred
+	 * to by their index in it and {@link BVHAccelerator#primitives} is empty.
+	 */
+	protected IndexedPrimitives indexed;
+
+	/**
+	 * The primitives grouped by kind, or null if the accelerator is built over
+	 * {@link IndexedPrimitives}.
+	 */
+	protected PrimitiveBuckets buckets;
+
+	protected ArrayList<Intersectable> infinites;
+	protected BoundingBox bound;
+
+	/**
+	 * Node bounds, minx,maxx,miny,maxy,minz,maxz for each node consecutively.
+	 */
+	protected float[] nodeBounds;
+
+	/**
+	 * Node data, see {@link BVHBuilder#nodes}.
+	 */
+	protected int[] nodes;
+
+	/**
+	 * Indices into {@link BVHAccelerator#primitives}, or of the
+	 * {@link BVHAccelerator#indexed} primitives, referenced by the leaves.
+	 */
+	protected int[] primIndices;
+
+	protected int maxDepth;
+
+	/**
+	 * SAH cost of the subtree of each node right after it was built.
+	 */
+	protected float[] buildCost;
+
+	/**
+	 * Number of nodes per treelet of the node layout, or 0 if the nodes are stored depth
+	 * first.
+	 */
+	protected int treeletSize;
+
+	/**
+	 * Per thread traversal stacks, so that traversal does not allocate.
+	 */
+	protected ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+	public BVHAccelerator(Aggregate aggr)
+	{
+		this(aggr, false);
+	}
+
+	/**
+	 * @param spatialSplits build a split BVH with a {@link SBVHBuilder}, which is slower to
+	 * build but reduces the overlap of nodes over long, thin triangles
+	 */
+	public BVHAccelerator(Aggregate aggr, boolean spatialSplits)
+	{
+		infinites = new ArrayList<Intersectable>();
+		float[] primBounds;
+		if(aggr instanceof IndexedPrimitives)
+		{
+			indexed = (IndexedPrimitives) aggr;
+			primitives = new Intersectable[0];
+			primBounds = primitiveBounds();
+		}else
+		{
+			ArrayList<Intersectable> finites = new ArrayList<Intersectable>();
+
+			Iterator<Intersectable> it = aggr.iterator();
+			while(it.hasNext())
+			{
+				Intersectable i = it.next();
+				BoundingBox b = i.getBoundingBox();
+				if(b == null)
+				{
+					infinites.add(i);
+				}else
+				{
+					finites.add(i);
+				}
+			}
+
+			primitives = finites.toArray(new Intersectable[finites.size()]);
+			buckets = new PrimitiveBuckets(primitives);
+			primBounds = primitiveBounds();
+		}
+
+		float[] triangles = spatialSplits ? triangles() : null;
+		String key = null;
+		if(BVHCache.directory != null && primitiveCount() >= BVHCache.MIN_PRIMITIVES)
+		{
+			key = BVHCache.key(primBounds, triangles);
+			if(BVHCache.load(this, key))
+			{
+				sortLeaves();
+				updateBound();
+				return;
+			}
+		}
+
+		BVHBuilder builder;
+		if(spatialSplits)
+		{
+			builder = new SBVHBuilder(primBounds, triangles, MAX_LEAF_SIZE, SBVHBuilder.DEFAULT_SPLIT_BUDGET);
+		}else
+		{
+			builder = new BVHBuilder(primBounds, MAX_LEAF_SIZE);
+		}
+		builder.build();
+		nodeBounds = builder.nodeBounds;
+		nodes = builder.nodes;
+		primIndices = builder.primIndices;
+		maxDepth = builder.maxDepth;
+		sortLeaves();
+
+		buildCost = new float[builder.nodeCount];
+		for(int node=builder.nodeCount-1; node>=0; node--)
+		{
+			buildCost[node] = cost(node, buildCost);
+		}
+		updateBound();
+		if(key != null)
+		{
+			BVHCache.store(this, key);
+		}
+	}
+
+	/**
+	 * Update the hierarchy after the objects in it have moved or changed their shape. The
+	 * bounds of all nodes are recomputed bottom up in time linear in the number of nodes,
+	 * the structure of the tree is kept. Subtrees whose SAH cost has grown by more than
+	 * {@link BVHAccelerator#REBUILD_THRESHOLD} since they were built are rebuilt, so the
+	 * quality of the tree does not degrade over many frames.
+	 * <p>
+	 * The objects must still have a finite bounding box. Must not be called while rays are
+	 * intersected with the accelerator. In a hierarchy with spatial splits, leaves are refit
+	 * to the full bounds of their objects, and rebuilt subtrees use object splits only.
+	 */
+	public void refit()
+	{
+		int nodeCount = nodes.length/2;
+		if(nodeCount == 0)
+		{
+			return;
+		}
+
+		float[] primBounds = primitiveBounds();
+
+		// Children always come after their parent, so a reverse sweep visits them first
+		float[] cost = new float[nodeCount];
+		for(int node=nodeCount-1; node>=0; node--)
+		{
+			BVHBuilder.empty(nodeBounds, node);
+			int count = nodes[2*node+1];
+			if(count > 0)
+			{
+				int offset = nodes[2*node];
+				for(int i=offset; i<offset+count; i++)
+				{
+					BVHBuilder.grow(nodeBounds, node, primBounds, primIndices[i]);
+				}
+			}else
+			{
+				BVHBuilder.grow(nodeBounds, node, nodeBounds, node + 1);
+				BVHBuilder.grow(nodeBounds, node, nodeBounds, nodes[2*node]);
+			}
+			cost[node] = cost(node, cost);
+		}
+
+		// Rebuilding needs the depth first layout, in which every subtree is contiguous
+		if(treeletSize > 0)
+		{
+			for(int node=0; node<nodeCount; node++)
+			{
+				if(cost[node] > REBUILD_THRESHOLD*buildCost[node])
+				{
+					int[] order = NodeLayout.depthFirst(nodes);
+					reorder(order);
+					cost = NodeLayout.apply(cost, 1, order);
+					break;
+				}
+			}
+		}
+
+		// Collect the topmost degraded subtrees, in increasing node order
+		ArrayList<Integer> degraded = new ArrayList<Integer>();
+		int[] stack = new int[maxDepth];
+		int sp = 0;
+		int node = 0;
+		while(true)
+		{
+			int count = nodes[2*node+1];
+			if(cost[node] > REBUILD_THRESHOLD*buildCost[node])
+			{
+				degraded.add(node);
+			}else if(count <= 0)
+			{
+				stack[sp++] = nodes[2*node];
+				node = node + 1;
+				continue;
+			}
+			if(sp == 0)
+			{
+				break;
+			}
+			node = stack[--sp];
+		}
+
+		// Rebuilding a subtree moves all nodes behind it, so start with the last one
+		for(int i=degraded.size()-1; i>=0; i--)
+		{
+			rebuild(degraded.get(i), primBounds);
+		}
+		if(!degraded.isEmpty())
+		{
+			sortLeaves();
+			updateMaxDepth();
+			if(treeletSize > 0)
+			{
+				layoutTreelets(treeletSize);
+			}
+		}
+		updateBound();
+	}
+
+	/**
+	 * Store the nodes in treelets of the given number of nodes, see {@link NodeLayout}, so
+	 * the upper levels of the hierarchy share cache lines. With 0, the nodes are stored
+	 * depth first, as built. The layout is kept by {@link BVHAccelerator#refit()}. Must not
+	 * be called while rays are intersected with the accelerator.
+	 */
+	public void layoutTreelets(int treeletSize)
+	{
+		this.treeletSize = treeletSize;
+		if(treeletSize > 0)
+		{
+			float[] area = new float[nodes.length/2];
+			for(int node=0; node<area.length; node++)
+			{
+				area[node] = BVHBuilder.area(nodeBounds, node);
+			}
+			reorder(NodeLayout.treelets(nodes, area, treeletSize));
+		}else
+		{
+			reorder(NodeLayout.depthFirst(nodes));
+		}
+	}
+
+	/**
+	 * Move the nodes to new positions.
+	 *
+	 * @param order the old index of the node at each new position
+	 */
+	protected void reorder(int[] order)
+	{
+		nodes = NodeLayout.apply(nodes, order);
+		nodeBounds = NodeLayout.apply(nodeBounds, 6, order);
+		buildCost = NodeLayout.apply(buildCost, 1, order);
+	}
+
+	/**
+	 * Replace the subtree rooted at the given node with a new SAH build over its primitives.
+	 * The primitives keep their range in {@link BVHAccelerator#primIndices}, the nodes behind
+	 * the subtree are moved if the new subtree has a different number of nodes.
+	 */
+	protected void rebuild(int root, float[] primBounds)
+	{
+		int nodeCount = nodes.length/2;
+
+		// The subtree occupies the nodes [root, end) and the primitives [first, last)
+		int end = root;
+		while(nodes[2*end+1] <= 0)
+		{
+			end = nodes[2*end];
+		}
+		int last = nodes[2*end] + nodes[2*end+1];
+		end++;
+		int first = root;
+		while(nodes[2*first+1] <= 0)
+		{
+			first++;
+		}
+		first = nodes[2*first];
+
+		int[] prims = new int[last - first];
+		float[] subBounds = new float[6*prims.length];
+		for(int i=0; i<prims.length; i++)
+		{
+			prims[i] = primIndices[first + i];
+			System.arraycopy(primBounds, 6*prims[i], subBounds, 6*i, 6);
+		}
+		BVHBuilder builder = new BVHBuilder(subBounds, MAX_LEAF_SIZE);
+		builder.build();
+
+		int m = builder.nodeCount;
+		int shift = m - (end - root);
+		int[] newNodes = new int[2*(nodeCount + shift)];
+		float[] newBounds = new float[6*(nodeCount + shift)];
+		float[] newCost = new float[nodeCount + shift];
+
+		// Nodes in front of the subtree, only references behind it change
+		System.arraycopy(nodeBounds, 0, newBounds, 0, 6*root);
+		System.arraycopy(buildCost, 0, newCost, 0, root);
+		for(int node=0; node<root; node++)
+		{
+			int child = nodes[2*node];
+			newNodes[2*node] = (nodes[2*node+1] <= 0 && child >= end) ? child + shift : child;
+			newNodes[2*node+1] = nodes[2*node+1];
+		}
+
+		// The new subtree
+		System.arraycopy(builder.nodeBounds, 0, newBounds, 6*root, 6*m);
+		for(int j=0; j<m; j++)
+		{
+			boolean leaf = builder.nodes[2*j+1] > 0;
+			newNodes[2*(root + j)] = builder.nodes[2*j] + (leaf ? first : root);
+			newNodes[2*(root + j)+1] = builder.nodes[2*j+1];
+		}
+		for(int i=0; i<prims.length; i++)
+		{
+			primIndices[first + i] = prims[builder.primIndices[i]];
+		}
+
+		// Nodes behind the subtree
+		System.arraycopy(nodeBounds, 6*end, newBounds, 6*(end + shift), 6*(nodeCount - end));
+		System.arraycopy(buildCost, end, newCost, end + shift, nodeCount - end);
+		for(int node=end; node<nodeCount; node++)
+		{
+			int count = nodes[2*node+1];
+			newNodes[2*(node + shift)] = count <= 0 ? nodes[2*node] + shift : nodes[2*node];
+			newNodes[2*(node + shift)+1] = count;
+		}
+
+		nodes = newNodes;
+		nodeBounds = newBounds;
+		for(int node=root+m-1; node>=root; node--)
+		{
+			newCost[node] = cost(node, newCost);
+		}
+		buildCost = newCost;
+	}
+
+	/**
+	 * SAH cost of the subtree of a node, relative to the cost of intersecting a primitive.
+	 *
+	 * @param cost holds the costs of the children of the node
+	 */
+	protected float cost(int node, float[] cost)
+	{
+		int count = nodes[2*node+1];
+		if(count > 0)
+		{
+			return count;
+		}
+		int left = node + 1;
+		int right = nodes[2*node];
+		float area = BVHBuilder.area(nodeBounds, node);
+		if(area > 0)
+		{
+			return BVHBuilder.TRAVERSAL_COST + (BVHBuilder.area(nodeBounds, left)*cost[left]
+					+ BVHBuilder.area(nodeBounds, right)*cost[right])/area;
+		}
+		return BVHBuilder.TRAVERSAL_COST + cost[left] + cost[right];
+	}
+
+	/**
+	 * Compute the quality measures of the hierarchy, see {@link AcceleratorStatistics}.
+	 */
+	public AcceleratorStatistics getStatistics()
+	{
+		AcceleratorStatistics stats = new AcceleratorStatistics("BVHAccelerator", primitiveCount());
+		int nodeCount = nodes.length/2;
+		stats.nodes = nodeCount;
+		stats.memory = 4*(2 + 6 + 1)*(long) nodeCount + 4*(long) primIndices.length + 4*(long) primitives.length;
+		if(nodeCount == 0)
+		{
+			return stats;
+		}
+
+		int[] depth = new int[nodeCount];
+		depth[0] = 1;
+		for(int node=0; node<nodeCount; node++)
+		{
+			int count = nodes[2*node+1];
+			if(count > 0)
+			{
+				stats.addLeaf(depth[node], count);
+			}else
+			{
+				depth[node + 1] = depth[node] + 1;
+				depth[nodes[2*node]] = depth[node] + 1;
+			}
+		}
+
+		float[] cost = new float[nodeCount];
+		for(int node=nodeCount-1; node>=0; node--)
+		{
+			cost[node] = cost(node, cost);
+		}
+		stats.sahCost = cost[0];
+		return stats;
+	}
+
+	protected void updateMaxDepth()
+	{
+		int nodeCount = nodes.length/2;
+		int[] depth = new int[nodeCount];
+		depth[0] = 1;
+		maxDepth = 1;
+		for(int node=0; node<nodeCount; node++)
+		{
+			if(nodes[2*node+1] <= 0)
+			{
+				depth[node + 1] = depth[node] + 1;
+				depth[nodes[2*node]] = depth[node] + 1;
+				maxDepth = Math.max(maxDepth, depth[node] + 1);
+			}
+		}
+	}
+
+	protected void updateBound()
+	{
+		if(nodes.length > 0)
+		{
+			bound = new BoundingBox(nodeBounds[0], nodeBounds[1], nodeBounds[2], nodeBounds[3], nodeBounds[4], nodeBounds[5]);
+		}
+	}
+
+	/**
+	 * Group the primitives of each leaf by kind, see {@link PrimitiveBuckets}.
+	 */
+	protected void sortLeaves()
+	{
+		if(buckets != null)
+		{
+			PrimitiveBuckets.sortLeaves(nodes, primIndices);
+		}
+	}
+
+	/**
+	 * Number of primitives in the hierarchy.
+	 */
+	public int primitiveCount()
+	{
+		return indexed != null ? indexed.getPrimitiveCount() : primitives.length;
+	}
+
+	/**
+	 * Current bounds of the primitives, as passed to the builder.
+	 */
+	protected float[] primitiveBounds()
+	{
+		int n = primitiveCount();
+		float[] primBounds = new float[6*n];
+		for(int i=0; i<n; i++)
+		{
+			if(indexed != null)
+			{
+				indexed.getPrimitiveBounds(i, primBounds, 6*i);
+			}else
+			{
+				setBounds(primBounds, i, primitives[i].getBoundingBox());
+			}
+		}
+		return primBounds;
+	}
+
+	/**
+	 * Vertices of the primitives that are {@link MeshTriangle}s or triangles of an indexed
+	 * {@link Mesh}, for spatial splits, see {@link SBVHBuilder}.
+	 */
+	protected float[] triangles()
+	{
+		int n = primitiveCount();
+		float[] triangles = new float[9*n];
+		for(int i=0; i<n; i++)
+		{
+			if(indexed instanceof Mesh)
+			{
+				((Mesh) indexed).getVertices(i, triangles, 9*i);
+			}else if(indexed == null && primitives[i] instanceof MeshTriangle)
+			{
+				((MeshTriangle) primitives[i]).getVertices(triangles, 9*i);
+			}else
+			{
+				triangles[9*i] = Float.NaN;
+			}
+		}
+		return triangles;
+	}
+
+	static void setBounds(float[] primBounds, int i, BoundingBox b)
+	{
+		primBounds[6*i] = b.getMinx();
+		primBounds[6*i+1] = b.getMaxx();
+		primBounds[6*i+2] = b.getMiny();
+		primBounds[6*i+3] = b.getMaxy();
+		primBounds[6*i+4] = b.getMinz();
+		primBounds[6*i+5] = b.getMaxz();
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord hitRecord = intersectNodes(r);
+
+		// Intersect all objects in infinites after the hierarchy, return closest hit. Objects
+		// only report hits closer than r.tmax, which is lowered with every hit.
+		for(Intersectable o:infinites)
+		{
+			hitRecord = ClosestHit.intersect(o, r, hitRecord);
+		}
+		return ClosestHit.complete(r, hitRecord);
+	}
+
+	/**
+	 * Closest hit with the objects in the hierarchy, r.tmax is lowered with every hit. The hit
+	 * may still have to be completed, see {@link ClosestHit}.
+	 */
+	protected HitRecord intersectNodes(Ray r)
+	{
+		HitRecord hitRecord = null;
+		if(nodes.length == 0)
+		{
+			return hitRecord;
+		}
+
+		float ox = r.origin.x;
+		float oy = r.origin.y;
+		float oz = r.origin.z;
+		float idx = r.invDirection.x;
+		float idy = r.invDirection.y;
+		float idz = r.invDirection.z;
+		int sx = r.sign[0];
+		int sy = r.sign[1];
+		int sz = r.sign[2];
+
+		TraversalCounters counters = TraversalCounters.get();
+		if(counters != null)
+		{
+			counters.traversals++;
+		}
+
+		int[] stack = stack();
+		int sp = 0;
+		int node = 0;
+		while(true)
+		{
+			if(counters != null)
+			{
+				counters.nodeVisits++;
+			}
+			if(intersectNode(node, ox, oy, oz, idx, idy, idz, sx, sy, sz, r.tmin, r.tmax))
+			{
+				int count = nodes[2*node+1];
+				if(count > 0)
+				{	// leaf
+					int offset = nodes[2*node];
+					if(counters != null)
+					{
+						counters.primitiveTests += count;
+					}
+					if(indexed != null)
+					{	// all hits are deferred by the indexed primitives, reuse their record
+						for(int i=offset; i<offset+count; i++)
+						{
+							HitRecord tmp = indexed.intersect(primIndices[i], r, hitRecord);
+							if(tmp != null)
+							{
+								r.tmax = tmp.t;
+								hitRecord = tmp;
+							}
+						}
+					}else
+					{
+						for(int i=offset; i<offset+count; i++)
+						{
+							hitRecord = buckets.intersect(primIndices[i], r, hitRecord);
+						}
+					}
+				}else
+				{	// visit the child on the near side of the split first
+					int axis = -count - 1;
+					if(r.sign[axis] == 1)
+					{
+						stack[sp++] = node + 1;
+						node = nodes[2*node];
+					}else
+					{
+						stack[sp++] = nodes[2*node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if(sp == 0)
+			{
+				break;
+			}
+			node = stack[--sp];
+		}
+
+		return hitRecord;
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		for(Intersectable o:infinites)
+		{
+			if(o.occluded(r, tMax))
+			{
+				return true;
+			}
+		}
+
+		if(nodes.length == 0)
+		{
+			return false;
+		}
+
+		float ox = r.origin.x;
+		float oy = r.origin.y;
+		float oz = r.origin.z;
+		float idx = r.invDirection.x;
+		float idy = r.invDirection.y;
+		float idz = r.invDirection.z;
+		int sx = r.sign[0];
+		int sy = r.sign[1];
+		int sz = r.sign[2];
+
+		// Any blocker will do, but near children first still tend to find one sooner
+		TraversalCounters counters = TraversalCounters.get();
+		if(counters != null)
+		{
+			counters.occlusionTraversals++;
+		}
+
+		int[] stack = stack();
+		int sp = 0;
+		int node = 0;
+		while(true)
+		{
+			if(counters != null)
+			{
+				counters.nodeVisits++;
+			}
+			if(intersectNode(node, ox, oy, oz, idx, idy, idz, sx, sy, sz, 0.f, tMax))
+			{
+				int count = nodes[2*node+1];
+				if(count > 0)
+				{	// leaf
+					int offset = nodes[2*node];
+					for(int i=offset; i<offset+count; i++)
+					{
+						if(counters != null)
+						{
+							counters.primitiveTests++;
+						}
+						if(indexed != null ? indexed.occluded(primIndices[i], r, tMax)
+								: buckets.occluded(primIndices[i], r, tMax))
+						{
+							return true;
+						}
+					}
+				}else
+				{
+					int axis = -count - 1;
+					if(r.sign[axis] == 1)
+					{
+						stack[sp++] = node + 1;
+						node = nodes[2*node];
+					}else
+					{
+						stack[sp++] = nodes[2*node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if(sp == 0)
+			{
+				return false;
+			}
+			node = stack[--sp];
+		}
+	}
+
+	/**
+	 * Get the traversal stack of the calling thread, large enough for the current tree.
+	 */
+	protected int[] stack()
+	{
+		int[] stack = stacks.get();
+		if(stack == null || stack.length < maxDepth)
+		{
+			stack = new int[maxDepth];
+			stacks.set(stack);
+		}
+		return stack;
+	}
+
+	/**
+	 * Slab test of the ray against the bounds of a node. The sign of the ray direction along
+	 * each axis selects the side of the box where the ray enters, so no divisions or swaps
+	 * are needed.
+	 *
+	 * @return true if the ray enters the node between tmin and tmax
+	 */
+	protected boolean intersectNode(int node, float ox, float oy, float oz, float idx, float idy, float idz,
+			int sx, int sy, int sz, float tmin, float tmax)
+	{
+		int b = 6*node;
+
+		// comparisons are written such that NaNs (0*inf) never reject the box
+		float t0 = (nodeBounds[b+sx] - ox)*idx;
+		float t1 = (nodeBounds[b+1-sx] - ox)*idx;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		t0 = (nodeBounds[b+2+sy] - oy)*idy;
+		t1 = (nodeBounds[b+3-sy] - oy)*idy;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		t0 = (nodeBounds[b+4+sz] - oz)*idz;
+		t1 = (nodeBounds[b+5-sz] - oz)*idz;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		return tmin <= tmax;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		if(infinites.isEmpty())
+		{
+			return bound;
+		}
+		return null;
+	}
+
+}
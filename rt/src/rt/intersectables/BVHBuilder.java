@@ -0,0 +1,665 @@
+package rt.intersectables;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a binary bounding volume hierarchy over a set of axis aligned primitive bounds
+ * using the binned surface area heuristic (SAH). The builder only sees the bounds of the
+ * primitives, so it can be used for any kind of primitive. The finished hierarchy is stored
+ * in flat arrays: nodes are laid out in depth first order, the left child of an interior
+ * node directly follows its parent and the right child is referenced by index.
+ * <p>
+ * The build runs on a {@link ForkJoinPool}: large subtrees are built as separate tasks, and
+ * bounds, bins and partitions of large primitive ranges are computed in parallel chunks.
+ * All reductions are order independent and the partition is stable, so the result is
+ * identical to the serial build.
+ */
+public class BVHBuilder
+{
+	/**
+	 * Version of the build algorithm, part of the {@link BVHCache} key. Increase it with every
+	 * change to the builder that changes the trees it builds, so old cache files are missed.
+	 */
+	static final int ALGORITHM_VERSION = 1;
+
+	/**
+	 * Number of bins used to evaluate split candidates along each axis.
+	 */
+	static final int BINS = 16;
+
+	/**
+	 * Cost of traversing a node relative to the cost of intersecting a primitive.
+	 */
+	static final float TRAVERSAL_COST = 1.f;
+
+	/**
+	 * Subtrees over more primitives than this are built in their own task.
+	 */
+	static final int SUBTREE_GRAIN = 1024;
+
+	/**
+	 * Ranges with more primitives than this are binned and partitioned in chunks of this size.
+	 */
+	static final int CHUNK_SIZE = 16384;
+
+	/**
+	 * Pool used for acceleration structure construction by default.
+	 */
+	public static final ForkJoinPool POOL = new ForkJoinPool();
+
+	/**
+	 * Primitive bounds, stores minx,maxx,miny,maxy,minz,maxz for each primitive consecutively.
+	 */
+	float[] primBounds;
+
+	/**
+	 * Primitive centroids, stores x,y,z for each primitive consecutively.
+	 */
+	float[] centroids;
+
+	int maxLeafSize;
+
+	/**
+	 * Node bounds, stores minx,maxx,miny,maxy,minz,maxz for each node consecutively.
+	 */
+	public float[] nodeBounds;
+
+	/**
+	 * Two entries per node. For a leaf: offset into {@link BVHBuilder#primIndices} and
+	 * number of primitives (> 0). For an interior node: index of the right child and
+	 * -(split axis + 1).
+	 */
+	public int[] nodes;
+
+	/**
+	 * Primitive indices referenced by the leaves.
+	 */
+	public int[] primIndices;
+
+	public int nodeCount;
+
+	/**
+	 * Depth of the deepest leaf, the root has depth 1.
+	 */
+	public int maxDepth;
+
+	/**
+	 * Node of the hierarchy while it is being built.
+	 */
+	static class BuildNode
+	{
+		float[] bound = new float[6];
+		BuildNode left;
+		BuildNode right;
+		int axis;
+		int start;
+		int count;
+	}
+
+	/**
+	 * Primitive counts and bounds of the bins of all three axes.
+	 */
+	static class Bins
+	{
+		int[] count = new int[3*BINS];
+		float[] bounds = new float[18*BINS];
+
+		Bins()
+		{
+			for(int b=0; b<3*BINS; b++)
+			{
+				empty(bounds, b);
+			}
+		}
+
+		void merge(Bins other)
+		{
+			for(int b=0; b<3*BINS; b++)
+			{
+				count[b] += other.count[b];
+				grow(bounds, b, other.bounds, b);
+			}
+		}
+	}
+
+	/**
+	 * Prepare a build over the given primitive bounds.
+	 *
+	 * @param primBounds minx,maxx,miny,maxy,minz,maxz for each primitive consecutively
+	 * @param maxLeafSize leaves with more primitives are always split if possible
+	 */
+	public BVHBuilder(float[] primBounds, int maxLeafSize)
+	{
+		this.primBounds = primBounds;
+		this.maxLeafSize = maxLeafSize;
+
+		int n = primBounds.length/6;
+		centroids = new float[3*n];
+		primIndices = new int[n];
+		for(int i=0; i<n; i++)
+		{
+			centroids[3*i] = (primBounds[6*i] + primBounds[6*i+1])/2.f;
+			centroids[3*i+1] = (primBounds[6*i+2] + primBounds[6*i+3])/2.f;
+			centroids[3*i+2] = (primBounds[6*i+4] + primBounds[6*i+5])/2.f;
+			primIndices[i] = i;
+		}
+	}
+
+	/**
+	 * Build the hierarchy on the default {@link BVHBuilder#POOL} and store it in the flat
+	 * output arrays.
+	 */
+	public void build()
+	{
+		build(POOL);
+	}
+
+	/**
+	 * Build the hierarchy and store it in the flat output arrays.
+	 *
+	 * @param pool pool to run the build on, or null to build serially in the calling thread
+	 */
+	public void build(ForkJoinPool pool)
+	{
+		int n = primIndices.length;
+		nodeCount = 0;
+		maxDepth = 0;
+		if(n == 0)
+		{
+			nodeBounds = new float[0];
+			nodes = new int[0];
+			return;
+		}
+
+		int[] temp = new int[n];
+		BuildNode root;
+		if(pool == null)
+		{
+			root = buildRange(0, n, temp, false);
+		}else
+		{
+			root = pool.invoke(new SubtreeTask(0, n, temp));
+		}
+
+		nodeCount = countNodes(root);
+		nodeBounds = new float[6*nodeCount];
+		nodes = new int[2*nodeCount];
+		flatten(root, 0, 1);
+	}
+
+	/**
+	 * Recursively build the subtree over primIndices[start, end).
+	 *
+	 * @param parallel whether the calling thread runs inside a fork-join pool
+	 */
+	BuildNode buildRange(int start, int end, int[] temp, boolean parallel)
+	{
+		BuildNode node = new BuildNode();
+		node.start = start;
+		node.count = end - start;
+
+		float[] cbound = new float[6];
+		computeBounds(start, end, node.bound, cbound, parallel);
+
+		int split = findSplit(node, cbound, temp, parallel);
+		if(split < 0)
+		{
+			return node;
+		}
+
+		if(parallel && node.count > SUBTREE_GRAIN)
+		{
+			SubtreeTask left = new SubtreeTask(start, split, temp);
+			left.fork();
+			node.right = buildRange(split, end, temp, true);
+			node.left = left.join();
+		}else
+		{
+			node.left = buildRange(start, split, temp, parallel);
+			node.right = buildRange(split, end, temp, parallel);
+		}
+		return node;
+	}
+
+	/**
+	 * Evaluate the SAH over all axes and partition the primitives of the node if splitting
+	 * pays off.
+	 *
+	 * @return index of the first primitive of the right child, or -1 if the node should be a leaf
+	 */
+	int findSplit(BuildNode node, float[] cbound, int[] temp, boolean parallel)
+	{
+		int start = node.start;
+		int end = start + node.count;
+		if(node.count == 1)
+		{
+			return -1;
+		}
+
+		Bins bins = computeBins(start, end, cbound, parallel);
+
+		float[] rightArea = new float[BINS];
+		float[] acc = new float[6];
+		float bestCost = Float.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		int bestBin = -1;
+
+		for(int axis=0; axis<3; axis++)
+		{
+			if(!(cbound[2*axis+1] - cbound[2*axis] > 0))
+			{
+				continue;
+			}
+
+			// sweep from the right to get the areas of all right hand sides
+			empty(acc, 0);
+			for(int b=BINS-1; b>0; b--)
+			{
+				grow(acc, 0, bins.bounds, axis*BINS + b);
+				rightArea[b] = area(acc, 0);
+			}
+
+			// sweep from the left and evaluate the cost of each split
+			empty(acc, 0);
+			int leftCount = 0;
+			for(int b=0; b<BINS-1; b++)
+			{
+				grow(acc, 0, bins.bounds, axis*BINS + b);
+				leftCount += bins.count[axis*BINS + b];
+				int rightCount = node.count - leftCount;
+				if(leftCount == 0 || rightCount == 0)
+				{
+					continue;
+				}
+				float cost = leftCount*area(acc, 0) + rightCount*rightArea[b+1];
+				if(cost < bestCost)
+				{
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		if(bestAxis < 0)
+		{	// all centroids coincide, no split possible
+			return -1;
+		}
+
+		float parentArea = area(node.bound, 0);
+		float splitCost = TRAVERSAL_COST + (parentArea > 0 ? bestCost/parentArea : node.count);
+		if(node.count <= maxLeafSize && splitCost >= node.count)
+		{
+			return -1;
+		}
+
+		node.axis = bestAxis;
+		return partition(start, end, bestAxis, cbound, bestBin, temp, parallel);
+	}
+
+	/**
+	 * Compute the bounds and the centroid bounds of primIndices[start, end).
+	 */
+	void computeBounds(int start, int end, float[] bound, float[] cbound, boolean parallel)
+	{
+		if(parallel && end - start > CHUNK_SIZE)
+		{
+			int chunks = (end - start + CHUNK_SIZE - 1)/CHUNK_SIZE;
+			BoundsTask[] tasks = new BoundsTask[chunks];
+			for(int c=0; c<chunks; c++)
+			{
+				tasks[c] = new BoundsTask(start + c*CHUNK_SIZE, Math.min(start + (c+1)*CHUNK_SIZE, end));
+			}
+			ForkJoinTask.invokeAll(tasks);
+
+			empty(bound, 0);
+			empty(cbound, 0);
+			for(BoundsTask task:tasks)
+			{
+				grow(bound, 0, task.bound, 0);
+				grow(cbound, 0, task.cbound, 0);
+			}
+			return;
+		}
+
+		empty(bound, 0);
+		empty(cbound, 0);
+		for(int i=start; i<end; i++)
+		{
+			int p = primIndices[i];
+			grow(bound, 0, primBounds, p);
+			for(int axis=0; axis<3; axis++)
+			{
+				float c = centroids[3*p+axis];
+				cbound[2*axis] = Math.min(cbound[2*axis], c);
+				cbound[2*axis+1] = Math.max(cbound[2*axis+1], c);
+			}
+		}
+	}
+
+	/**
+	 * Sort the centroids of primIndices[start, end) into the bins of all axes.
+	 */
+	Bins computeBins(int start, int end, float[] cbound, boolean parallel)
+	{
+		if(parallel && end - start > CHUNK_SIZE)
+		{
+			int chunks = (end - start + CHUNK_SIZE - 1)/CHUNK_SIZE;
+			BinTask[] tasks = new BinTask[chunks];
+			for(int c=0; c<chunks; c++)
+			{
+				tasks[c] = new BinTask(start + c*CHUNK_SIZE, Math.min(start + (c+1)*CHUNK_SIZE, end), cbound);
+			}
+			ForkJoinTask.invokeAll(tasks);
+
+			Bins bins = new Bins();
+			for(BinTask task:tasks)
+			{
+				bins.merge(task.getRawResult());
+			}
+			return bins;
+		}
+
+		Bins bins = new Bins();
+		for(int axis=0; axis<3; axis++)
+		{
+			float cmin = cbound[2*axis];
+			float extent = cbound[2*axis+1] - cmin;
+			if(!(extent > 0))
+			{
+				continue;
+			}
+			float scale = BINS/extent;
+			for(int i=start; i<end; i++)
+			{
+				int p = primIndices[i];
+				int b = axis*BINS + bin(centroids[3*p+axis], cmin, scale);
+				bins.count[b]++;
+				grow(bins.bounds, b, primBounds, p);
+			}
+		}
+		return bins;
+	}
+
+	/**
+	 * Stable partition of primIndices[start, end), primitives in bins <= splitBin go to the left.
+	 *
+	 * @return index of the first primitive on the right
+	 */
+	int partition(int start, int end, int axis, float[] cbound, int splitBin, int[] temp, boolean parallel)
+	{
+		float cmin = cbound[2*axis];
+		float scale = BINS/(cbound[2*axis+1] - cmin);
+
+		if(parallel && end - start > CHUNK_SIZE)
+		{
+			int chunks = (end - start + CHUNK_SIZE - 1)/CHUNK_SIZE;
+			CountTask[] counts = new CountTask[chunks];
+			for(int c=0; c<chunks; c++)
+			{
+				counts[c] = new CountTask(start + c*CHUNK_SIZE, Math.min(start + (c+1)*CHUNK_SIZE, end), axis, cmin, scale, splitBin);
+			}
+			ForkJoinTask.invokeAll(counts);
+
+			int nLeft = 0;
+			for(CountTask task:counts)
+			{
+				nLeft += task.getRawResult();
+			}
+
+			// every chunk scatters its primitives to their final position in temp
+			ScatterTask[] scatters = new ScatterTask[chunks];
+			int left = start;
+			int right = start + nLeft;
+			for(int c=0; c<chunks; c++)
+			{
+				scatters[c] = new ScatterTask(counts[c].start, counts[c].end, axis, cmin, scale, splitBin, temp, left, right);
+				left += counts[c].getRawResult();
+				right += (counts[c].end - counts[c].start) - counts[c].getRawResult();
+			}
+			ForkJoinTask.invokeAll(scatters);
+			System.arraycopy(temp, start, primIndices, start, end - start);
+			return start + nLeft;
+		}
+
+		int l = start;
+		int r = start;
+		for(int i=start; i<end; i++)
+		{
+			int p = primIndices[i];
+			if(bin(centroids[3*p+axis], cmin, scale) <= splitBin)
+			{
+				primIndices[l++] = p;
+			}else
+			{
+				temp[r++] = p;
+			}
+		}
+		System.arraycopy(temp, start, primIndices, l, r - start);
+		return l;
+	}
+
+	/**
+	 * Builds a subtree.
+	 */
+	@SuppressWarnings("serial")
+	class SubtreeTask extends RecursiveTask<BuildNode>
+	{
+		int start, end;
+		int[] temp;
+
+		SubtreeTask(int start, int end, int[] temp)
+		{
+			this.start = start;
+			this.end = end;
+			this.temp = temp;
+		}
+
+		@Override
+		protected BuildNode compute()
+		{
+			return buildRange(start, end, temp, true);
+		}
+	}
+
+	/**
+	 * Computes bounds and centroid bounds of a chunk.
+	 */
+	@SuppressWarnings("serial")
+	class BoundsTask extends RecursiveAction
+	{
+		int start, end;
+		float[] bound = new float[6];
+		float[] cbound = new float[6];
+
+		BoundsTask(int start, int end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			computeBounds(start, end, bound, cbound, false);
+		}
+	}
+
+	/**
+	 * Bins a chunk.
+	 */
+	@SuppressWarnings("serial")
+	class BinTask extends RecursiveTask<Bins>
+	{
+		int start, end;
+		float[] cbound;
+
+		BinTask(int start, int end, float[] cbound)
+		{
+			this.start = start;
+			this.end = end;
+			this.cbound = cbound;
+		}
+
+		@Override
+		protected Bins compute()
+		{
+			return computeBins(start, end, cbound, false);
+		}
+	}
+
+	/**
+	 * Counts the primitives of a chunk that go to the left.
+	 */
+	@SuppressWarnings("serial")
+	class CountTask extends RecursiveTask<Integer>
+	{
+		int start, end, axis, splitBin;
+		float cmin, scale;
+
+		CountTask(int start, int end, int axis, float cmin, float scale, int splitBin)
+		{
+			this.start = start;
+			this.end = end;
+			this.axis = axis;
+			this.cmin = cmin;
+			this.scale = scale;
+			this.splitBin = splitBin;
+		}
+
+		@Override
+		protected Integer compute()
+		{
+			int n = 0;
+			for(int i=start; i<end; i++)
+			{
+				if(bin(centroids[3*primIndices[i]+axis], cmin, scale) <= splitBin)
+				{
+					n++;
+				}
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Writes the primitives of a chunk to their partitioned positions in temp.
+	 */
+	@SuppressWarnings("serial")
+	class ScatterTask extends RecursiveAction
+	{
+		int start, end, axis, splitBin, left, right;
+		float cmin, scale;
+		int[] temp;
+
+		ScatterTask(int start, int end, int axis, float cmin, float scale, int splitBin, int[] temp, int left, int right)
+		{
+			this.start = start;
+			this.end = end;
+			this.axis = axis;
+			this.cmin = cmin;
+			this.scale = scale;
+			this.splitBin = splitBin;
+			this.temp = temp;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		protected void compute()
+		{
+			for(int i=start; i<end; i++)
+			{
+				int p = primIndices[i];
+				if(bin(centroids[3*p+axis], cmin, scale) <= splitBin)
+				{
+					temp[left++] = p;
+				}else
+				{
+					temp[right++] = p;
+				}
+			}
+		}
+	}
+
+	static int countNodes(BuildNode node)
+	{
+		if(node.left == null)
+		{
+			return 1;
+		}
+		return 1 + countNodes(node.left) + countNodes(node.right);
+	}
+
+	/**
+	 * Write the subtree rooted at node to the flat arrays, starting at the given index.
+	 *
+	 * @return index of the next free node
+	 */
+	int flatten(BuildNode node, int index, int depth)
+	{
+		System.arraycopy(node.bound, 0, nodeBounds, 6*index, 6);
+		maxDepth = Math.max(maxDepth, depth);
+
+		if(node.left == null)
+		{
+			nodes[2*index] = node.start;
+			nodes[2*index+1] = node.count;
+			return index + 1;
+		}
+
+		int right = flatten(node.left, index + 1, depth + 1);
+		nodes[2*index] = right;
+		nodes[2*index+1] = -(node.axis + 1);
+		return flatten(node.right, right, depth + 1);
+	}
+
+	static int bin(float c, float cmin, float scale)
+	{
+		int b = (int) ((c - cmin)*scale);
+		return Math.min(Math.max(b, 0), BINS - 1);
+	}
+
+	/**
+	 * Set the box at index i of the array to the empty box.
+	 */
+	static void empty(float[] boxes, int i)
+	{
+		for(int axis=0; axis<3; axis++)
+		{
+			boxes[6*i+2*axis] = Float.POSITIVE_INFINITY;
+			boxes[6*i+2*axis+1] = Float.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Extend box i of the array a so that it contains box j of the array b.
+	 */
+	static void grow(float[] a, int i, float[] b, int j)
+	{
+		a[6*i] = Math.min(a[6*i], b[6*j]);
+		a[6*i+1] = Math.max(a[6*i+1], b[6*j+1]);
+		a[6*i+2] = Math.min(a[6*i+2], b[6*j+2]);
+		a[6*i+3] = Math.max(a[6*i+3], b[6*j+3]);
+		a[6*i+4] = Math.min(a[6*i+4], b[6*j+4]);
+		a[6*i+5] = Math.max(a[6*i+5], b[6*j+5]);
+	}
+
+	/**
+	 * Half of the surface area of box i of the array, 0 for empty boxes.
+	 */
+	static float area(float[] boxes, int i)
+	{
+		float w = boxes[6*i+1] - boxes[6*i];
+		float h = boxes[6*i+3] - boxes[6*i+2];
+		float d = boxes[6*i+5] - boxes[6*i+4];
+		if(w < 0 || h < 0 || d < 0)
+		{
+			return 0;
+		}
+		return w*h + w*d + h*d;
+	}
+}
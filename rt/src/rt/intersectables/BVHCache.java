@@ -0,0 +1,267 @@
+package rt.intersectables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores the hierarchies built by {@link BVHAccelerator} on disk, so that later runs of the
+ * same scene can map them back into memory instead of building them again. A file is named
+ * after a 128 bit hash of everything the build depends on: the bounds of the primitives in the
+ * order the aggregate lists them, the triangle vertices for spatial splits, the build
+ * parameters and the versions of the build algorithms, {@link BVHBuilder#ALGORITHM_VERSION}
+ * and {@link SBVHBuilder#SPLIT_ALGORITHM_VERSION}. A changed mesh, parameter or algorithm
+ * therefore simply misses the cache, as long as the versions are increased with every
+ * change to the builders. Old files are never read again.
+ * <p>
+ * The cache is off by default, it is enabled by setting {@link BVHCache#directory}, see
+ * {@link rt.Main#bvhCache}. Problems with the cache directory are reported and otherwise
+ * ignored, and files that do not hold a valid tree are rejected; the hierarchy is then
+ * built as usual.
+ */
+public class BVHCache
+{
+	/**
+	 * Directory of the cache files, or null if the cache is disabled, which is the default.
+	 */
+	public static File directory = null;
+
+	/**
+	 * Aggregates with fewer primitives are built faster than their file is read.
+	 */
+	public static final int MIN_PRIMITIVES = 1024;
+
+	/**
+	 * Identifies cache files, and the version of their layout.
+	 */
+	static final int MAGIC = 0x42564843;
+	static final int VERSION = 1;
+
+	/**
+	 * Compute the cache key of a build.
+	 *
+	 * @param primBounds bounds of the primitives, as passed to the builder
+	 * @param triangles triangle vertices for spatial splits, or null
+	 * @return the key as hexadecimal string
+	 */
+	public static String key(float[] primBounds, float[] triangles)
+	{
+		String parameters = "BVH " + VERSION + " " + BVHBuilder.ALGORITHM_VERSION + " " + BVHAccelerator.MAX_LEAF_SIZE
+				+ " " + BVHBuilder.BINS + " " + BVHBuilder.TRAVERSAL_COST;
+		if(triangles != null)
+		{
+			parameters += " SBVH " + SBVHBuilder.SPLIT_ALGORITHM_VERSION + " " + SBVHBuilder.DEFAULT_SPLIT_BUDGET
+					+ " " + SBVHBuilder.OVERLAP_THRESHOLD;
+		}
+
+		long[] hash = {parameters.hashCode(), 0x9e3779b97f4a7c15L};
+		update(hash, primBounds);
+		if(triangles != null)
+		{
+			update(hash, triangles);
+		}
+		return hex(mix(hash[0] ^ hash[1])) + hex(mix(hash[1] + hash[0]));
+	}
+
+	/**
+	 * Load the hierarchy with the given key into the accelerator. The file must have the
+	 * size its header implies and hold a valid tree, see
+	 * {@link BVHCache#validTree(int[], int)}, otherwise it is ignored. The maximum depth is
+	 * recomputed from the nodes.
+	 *
+	 * @return true if the hierarchy was found and loaded
+	 */
+	static boolean load(BVHAccelerator bvh, String key)
+	{
+		if(directory == null)
+		{
+			return false;
+		}
+		File file = file(key);
+		if(!file.isFile())
+		{
+			return false;
+		}
+
+		try(RandomAccessFile in = new RandomAccessFile(file, "r"))
+		{
+			MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != bvh.primitiveCount())
+			{
+				return false;
+			}
+			int nodeCount = buffer.getInt();
+			int references = buffer.getInt();
+			buffer.getInt();	// maximum depth, recomputed below
+			if(nodeCount <= 0 || references < 0 || in.length() != 4*(6 + 9L*nodeCount + references))
+			{
+				System.out.printf("Ignoring invalid BVH cache file %s\n", file);
+				return false;
+			}
+
+			int[] nodes = new int[2*nodeCount];
+			float[] nodeBounds = new float[6*nodeCount];
+			float[] buildCost = new float[nodeCount];
+			int[] primIndices = new int[references];
+			buffer.asIntBuffer().get(nodes);
+			buffer.position(buffer.position() + 4*nodes.length);
+			buffer.asFloatBuffer().get(nodeBounds);
+			buffer.position(buffer.position() + 4*nodeBounds.length);
+			buffer.asFloatBuffer().get(buildCost);
+			buffer.position(buffer.position() + 4*buildCost.length);
+			buffer.asIntBuffer().get(primIndices);
+			boolean valid = validTree(nodes, references);
+			for(int p:primIndices)
+			{
+				valid &= p >= 0 && p < bvh.primitiveCount();
+			}
+			if(!valid)
+			{
+				System.out.printf("Ignoring invalid BVH cache file %s\n", file);
+				return false;
+			}
+
+			bvh.nodes = nodes;
+			bvh.nodeBounds = nodeBounds;
+			bvh.buildCost = buildCost;
+			bvh.primIndices = primIndices;
+			bvh.updateMaxDepth();
+			return true;
+		} catch(IOException | RuntimeException e)
+		{	// unreadable or truncated file
+			System.out.printf("Could not read BVH cache file %s\n", file);
+			return false;
+		}
+	}
+
+	/**
+	 * Test if node data, see {@link BVHBuilder#nodes}, is a tree that traversal can walk
+	 * without leaving the arrays: every interior node has a valid axis, its first child
+	 * directly follows it and its second child lies behind that, every node but the root has
+	 * exactly one parent, and every leaf references a nonempty range of the references.
+	 *
+	 * @param references number of references to primitives
+	 */
+	static boolean validTree(int[] nodes, int references)
+	{
+		int nodeCount = nodes.length/2;
+		int[] parents = new int[nodeCount];
+		for(int node=0; node<nodeCount; node++)
+		{
+			int data = nodes[2*node];
+			int code = nodes[2*node+1];
+			if(code > 0)
+			{	// leaf
+				if(data < 0 || data > references - code)
+				{
+					return false;
+				}
+			}else
+			{
+				if(code < -3 || code == 0 || node + 1 >= nodeCount || data <= node + 1 || data >= nodeCount)
+				{
+					return false;
+				}
+				parents[node + 1]++;
+				parents[data]++;
+			}
+		}
+		for(int node=0; node<nodeCount; node++)
+		{
+			if(parents[node] != (node == 0 ? 0 : 1))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Store the hierarchy of the accelerator under the given key. The file is written under a
+	 * temporary name first, so concurrent runs never see a partial file.
+	 */
+	static void store(BVHAccelerator bvh, String key)
+	{
+		if(directory == null)
+		{
+			return;
+		}
+
+		int nodeCount = bvh.nodes.length/2;
+		ByteBuffer buffer = ByteBuffer.allocate(4*(6 + 9*nodeCount + bvh.primIndices.length));
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(bvh.primitiveCount());
+		buffer.putInt(nodeCount);
+		buffer.putInt(bvh.primIndices.length);
+		buffer.putInt(bvh.maxDepth);
+		buffer.asIntBuffer().put(bvh.nodes);
+		buffer.position(buffer.position() + 4*bvh.nodes.length);
+		buffer.asFloatBuffer().put(bvh.nodeBounds);
+		buffer.position(buffer.position() + 4*bvh.nodeBounds.length);
+		buffer.asFloatBuffer().put(bvh.buildCost);
+		buffer.position(buffer.position() + 4*bvh.buildCost.length);
+		buffer.asIntBuffer().put(bvh.primIndices);
+		buffer.rewind();
+
+		File file = file(key);
+		try
+		{
+			directory.mkdirs();
+			File temp = File.createTempFile(key, ".tmp", directory);
+			try(RandomAccessFile out = new RandomAccessFile(temp, "rw"))
+			{
+				out.getChannel().write(buffer);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e)
+		{
+			System.out.printf("Could not write BVH cache file %s\n", file);
+		}
+	}
+
+	static File file(String key)
+	{
+		return new File(directory, key + ".bvh");
+	}
+
+	/**
+	 * Add the values to a 128 bit hash. This is not a cryptographic hash, but every input
+	 * bit affects both halves of the result, which is all a cache key needs; unlike the
+	 * hashes of {@link java.security.MessageDigest}, it needs no lengthy initialization.
+	 */
+	static void update(long[] hash, float[] values)
+	{
+		long h0 = hash[0] ^ values.length;
+		long h1 = hash[1];
+		for(float v:values)
+		{
+			long k = Float.floatToIntBits(v) & 0xffffffffL;
+			h0 = Long.rotateLeft(h0 ^ mix(k), 27)*0x9e3779b97f4a7c15L;
+			h1 = Long.rotateLeft(h1 + mix(k ^ h0), 31)*0xc2b2ae3d27d4eb4fL;
+		}
+		hash[0] = h0;
+		hash[1] = h1;
+	}
+
+	/**
+	 * Finalizer of the SplitMix64 generator, scrambles all bits of x.
+	 */
+	static long mix(long x)
+	{
+		x = (x ^ (x >>> 30))*0xbf58476d1ce4e5b9L;
+		x = (x ^ (x >>> 27))*0x94d049bb133111ebL;
+		return x ^ (x >>> 31);
+	}
+
+	static String hex(long x)
+	{
+		String s = Long.toHexString(x);
+		return "0000000000000000".substring(s.length()) + s;
+	}
+}
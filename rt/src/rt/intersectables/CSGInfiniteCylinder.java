@@ -70,7 +70,7 @@ public class CSGInfiniteCylinder extends CSGSolid {
 		b1.type = BoundaryType.START;
 		b1.t = t1;
 		
-		b2.hitRecord = createHitRecord(r, t1);
+		b2.hitRecord = createHitRecord(r, t2);
 		b2.type = BoundaryType.END;
 		b2.t = t2;
 		
@@ -114,4 +114,11 @@ public class CSGInfiniteCylinder extends CSGSolid {
 		return null;
 	}
 
+	@Override
+	public BoundingBox getBoundingBox(BoundingBox region)
+	{
+		// radius 1 around the y axis
+		return ClippedIntersectable.intersection(new BoundingBox(-1, 1, region.getMiny(), region.getMaxy(), -1, 1), region);
+	}
+
 }
@@ -36,28 +36,7 @@ public class CSGInstance extends CSGSolid{
 		bound = base.getBoundingBox();
 		if(bound != null)
 		{
-			Point3f p1 = new Point3f(bound.getMinx(), bound.getMiny(), bound.getMinz());
-			Point3f p2 = new Point3f(bound.getMaxx(), bound.getMiny(), bound.getMinz());
-			Point3f p3 = new Point3f(bound.getMinx(), bound.getMaxy(), bound.getMinz());
-			Point3f p4 = new Point3f(bound.getMaxx(), bound.getMaxy(), bound.getMinz());
-			Point3f p5 = new Point3f(bound.getMinx(), bound.getMiny(), bound.getMaxz());
-			Point3f p6 = new Point3f(bound.getMaxx(), bound.getMiny(), bound.getMaxz());
-			Point3f p7 = new Point3f(bound.getMinx(), bound.getMaxy(), bound.getMaxz());
-			Point3f p8 = new Point3f(bound.getMaxx(), bound.getMaxy(), bound.getMaxz());
-			t.transform(p1);
-			t.transform(p2);
-			t.transform(p3);
-			t.transform(p4);
-			t.transform(p5);
-			t.transform(p6);
-			t.transform(p7);
-			t.transform(p8);
-			bound = new BoundingBox(min(p1.x,p2.x,p3.x,p4.x,p5.x,p6.x,p7.x,p8.x),
-									max(p1.x,p2.x,p3.x,p4.x,p5.x,p6.x,p7.x,p8.x),
-									min(p1.y,p2.y,p3.y,p4.y,p5.y,p6.y,p7.y,p8.y),
-									max(p1.y,p2.y,p3.y,p4.y,p5.y,p6.y,p7.y,p8.y),
-									min(p1.z,p2.z,p3.z,p4.z,p5.z,p6.z,p7.z,p8.z),
-									max(p1.z,p2.z,p3.z,p4.z,p5.z,p6.z,p7.z,p8.z));
+			bound = transform(bound, t);
 		}
 	}
 	
@@ -99,6 +78,47 @@ public class CSGInstance extends CSGSolid{
 		return bound;
 	}
 
+	@Override
+	public BoundingBox getBoundingBox(BoundingBox region)
+	{
+		// clip the base to the region in its own coordinates
+		BoundingBox b = base.getBoundingBox(transform(region, rayt));
+		if(b == null)
+		{
+			return null;
+		}
+		return ClippedIntersectable.intersection(transform(b, t), region);
+	}
+
+	/**
+	 * Bounds of the transformed corners of a box.
+	 */
+	private BoundingBox transform(BoundingBox bound, Matrix4f t)
+	{
+		Point3f p1 = new Point3f(bound.getMinx(), bound.getMiny(), bound.getMinz());
+		Point3f p2 = new Point3f(bound.getMaxx(), bound.getMiny(), bound.getMinz());
+		Point3f p3 = new Point3f(bound.getMinx(), bound.getMaxy(), bound.getMinz());
+		Point3f p4 = new Point3f(bound.getMaxx(), bound.getMaxy(), bound.getMinz());
+		Point3f p5 = new Point3f(bound.getMinx(), bound.getMiny(), bound.getMaxz());
+		Point3f p6 = new Point3f(bound.getMaxx(), bound.getMiny(), bound.getMaxz());
+		Point3f p7 = new Point3f(bound.getMinx(), bound.getMaxy(), bound.getMaxz());
+		Point3f p8 = new Point3f(bound.getMaxx(), bound.getMaxy(), bound.getMaxz());
+		t.transform(p1);
+		t.transform(p2);
+		t.transform(p3);
+		t.transform(p4);
+		t.transform(p5);
+		t.transform(p6);
+		t.transform(p7);
+		t.transform(p8);
+		return new BoundingBox(min(p1.x,p2.x,p3.x,p4.x,p5.x,p6.x,p7.x,p8.x),
+								max(p1.x,p2.x,p3.x,p4.x,p5.x,p6.x,p7.x,p8.x),
+								min(p1.y,p2.y,p3.y,p4.y,p5.y,p6.y,p7.y,p8.y),
+								max(p1.y,p2.y,p3.y,p4.y,p5.y,p6.y,p7.y,p8.y),
+								min(p1.z,p2.z,p3.z,p4.z,p5.z,p6.z,p7.z,p8.z),
+								max(p1.z,p2.z,p3.z,p4.z,p5.z,p6.z,p7.z,p8.z));
+	}
+
 	private float min(float a, float b, float c, float d, float e, float f, float g, float h)
 	{
 		return Math.min(a, Math.min(b, Math.min(c, Math.min(d, Math.min(e, Math.min(f, Math.min(g, h)))))));
@@ -31,31 +31,64 @@ public class CSGNode extends CSGSolid {
 
 	private void createBoundingBox()
 	{
+		BoundingBox l = left.getBoundingBox();
+		BoundingBox r = right.getBoundingBox();
 		switch (operation) {
 			case INTERSECT:
-				if(left.getBoundingBox() == null)
+				if(l == null)
 				{
-					bound = right.getBoundingBox();
+					bound = r;
+				}else if(r == null)
+				{
+					bound = l;
 				}else
 				{
-					bound = new BoundingBox(left.getBoundingBox());
-					bound = bound.intersectionWith(left.getBoundingBox());
+					bound = new BoundingBox(l).intersectionWith(r);
+					if(bound == null)
+					{	// empty, keep the bounds of the left solid
+						bound = l;
+					}
 				}
 				break;
 			case SUBTRACT:	// easy recalculation not possible
-				bound = left.getBoundingBox();
+				bound = l;
+				break;
 			case ADD:
-				if(left.getBoundingBox() == null || right.getBoundingBox() == null)
+				if(l == null || r == null)
 				{
 					bound = null;
 				}else
 				{
-					bound = new BoundingBox(left.getBoundingBox());
-					bound = bound.combinationWith(right.getBoundingBox());
+					bound = new BoundingBox(l);
+					bound = bound.combinationWith(r);
 				}
 		}
 	}
 
+	@Override
+	public BoundingBox getBoundingBox(BoundingBox region)
+	{
+		BoundingBox l = left.getBoundingBox(region);
+		if(operation == OperationType.SUBTRACT)
+		{
+			return l;
+		}
+		if(operation == OperationType.INTERSECT)
+		{
+			// The intersection lies in the part of each operand inside the bounds of the
+			// other, so the bounds of one narrow the region for the other
+			BoundingBox r = l == null ? null : right.getBoundingBox(l);
+			l = r == null ? null : left.getBoundingBox(r);
+			return l == null ? null : ClippedIntersectable.intersection(l, r);
+		}
+		BoundingBox r = right.getBoundingBox(region);
+		if(l == null)
+		{
+			return r;
+		}
+		return r == null ? l : l.combinationWith(r);
+	}
+
 	/**
 	 * Get boundaries of intersection intervals. The main idea is to first get
 	 * the boundaries of the two CSG solids to be combined. Then, the boundaries
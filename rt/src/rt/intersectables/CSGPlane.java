@@ -144,4 +144,10 @@ public class CSGPlane extends CSGSolid {
 		//infinite
 		return null;
 	}
+
+	@Override
+	public BoundingBox getBoundingBox(BoundingBox region)
+	{
+		return ClippedIntersectable.clip(region, normal, d);
+	}
 }
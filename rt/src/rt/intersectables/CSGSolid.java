@@ -2,6 +2,7 @@ package rt.intersectables;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import rt.BoundingBox;
 import rt.HitRecord;
 import rt.Intersectable;
 import rt.Ray;
@@ -42,6 +43,13 @@ public abstract class CSGSolid implements Intersectable {
 	
 	public HitRecord intersect(Ray r) {
 
+		// Skip the interval computation if the ray misses the bounding box
+		BoundingBox bound = getBoundingBox();
+		if(bound != null && bound.intersect(r) == Float.NEGATIVE_INFINITY)
+		{
+			return null;
+		}
+		
 		// Get the intersection interval boundaries
 		ArrayList<IntervalBoundary> intervalBoundaries = getIntervalBoundaries(r);
 		
@@ -52,8 +60,12 @@ public abstract class CSGSolid implements Intersectable {
 		{
 			HitRecord firstHit = it.next().hitRecord;
 			
-			if(firstHit!=null && firstHit.t>0.f)
-			{		
+			if(firstHit!=null && firstHit.t>0.f && firstHit.t>=r.tmin)
+			{
+				if(firstHit.t >= r.tmax)
+				{	// the first hit is behind a closer hit found before
+					return null;
+				}
 				firstHit.intersectable = this;
 				return firstHit;			
 			}
@@ -62,6 +74,33 @@ public abstract class CSGSolid implements Intersectable {
 		return null;
 	}
 		
+	public boolean occluded(Ray r, float tMax) {
+		
+		// Skip the interval computation if the ray misses the bounding box
+		BoundingBox bound = getBoundingBox();
+		if(bound != null)
+		{
+			float t = bound.intersect(r);
+			if(t == Float.NEGATIVE_INFINITY || t >= tMax)
+			{
+				return false;
+			}
+		}
+		
+		// Only the first boundary in range is visible, the same one that intersect returns
+		ArrayList<IntervalBoundary> intervalBoundaries = getIntervalBoundaries(r);
+		for(IntervalBoundary b:intervalBoundaries)
+		{
+			HitRecord hit = b.hitRecord;
+			if(hit!=null && hit.t>0.f && hit.t>=r.tmin)
+			{
+				return hit.t<tMax && (hit.material == null || hit.material.castsShadows());
+			}
+		}
+		
+		return false;
+	}
+		
 	/**
 	 * Compute the boundaries of the intersection intervals of this CSG solid with a ray. 
 	 * 
@@ -69,4 +108,20 @@ public abstract class CSGSolid implements Intersectable {
 	 * @return boundaries of intersection intervals 
 	 */
 	abstract ArrayList<IntervalBoundary> getIntervalBoundaries(Ray r);
+
+	/**
+	 * Conservative bounds of the part of the solid inside a region, which are finite even
+	 * if the solid is not. Used to clip unbounded solids, see {@link ClippedIntersectable}.
+	 *
+	 * @return new bounds, or null if the solid does not reach into the region
+	 */
+	public BoundingBox getBoundingBox(BoundingBox region)
+	{
+		BoundingBox bound = getBoundingBox();
+		if(bound == null)
+		{
+			return new BoundingBox(region);
+		}
+		return ClippedIntersectable.intersection(bound, region);
+	}
 }
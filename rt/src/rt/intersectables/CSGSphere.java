@@ -88,7 +88,7 @@ ArrayList<IntervalBoundary> bounds = new ArrayList<IntervalBoundary>(2);
 		b1.type = BoundaryType.START;
 		b1.t = t1;
 		
-		b2.hitRecord = createHitRecord(r, t1);
+		b2.hitRecord = createHitRecord(r, t2);
 		b2.type = BoundaryType.END;
 		b2.t = t2;
 		
@@ -50,14 +50,15 @@ public class CSGTwoSidedInfiniteCone extends CSGSolid {
 		
 		det = (float) Math.sqrt(det);
 		
-		float t1 = (-b - det)/2/a;
-		float t2 = (-b + det)/2/a;
+		// a is negative for rays steeper than the cone, keep t1 < t2
+		float t1 = Math.min((-b - det)/2/a, (-b + det)/2/a);
+		float t2 = Math.max((-b - det)/2/a, (-b + det)/2/a);
 		
 		b1.hitRecord = createHitRecord(r, t1);
 		b1.type = BoundaryType.START;
 		b1.t = t1;
 		
-		b2.hitRecord = createHitRecord(r, t1);
+		b2.hitRecord = createHitRecord(r, t2);
 		b2.type = BoundaryType.END;
 		b2.t = t2;
 		
@@ -127,4 +128,12 @@ public class CSGTwoSidedInfiniteCone extends CSGSolid {
 		return null;
 	}
 
+	@Override
+	public BoundingBox getBoundingBox(BoundingBox region)
+	{
+		// the radius around the y axis is |y|
+		float r = Math.max(Math.abs(region.getMiny()), Math.abs(region.getMaxy()));
+		return ClippedIntersectable.intersection(new BoundingBox(-r, r, region.getMiny(), region.getMaxy(), -r, r), region);
+	}
+
 }
@@ -0,0 +1,353 @@
+package rt.intersectables;
+
+import java.util.Iterator;
+
+import javax.vecmath.Vector3f;
+
+import rt.BoundingBox;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+
+/**
+ * The part inside or the part outside of a box shaped region of an unbounded CSG tree, a
+ * {@link CSGNode} or {@link CSGInstance} without finite bounds. {@link rt.Scene#prepare()}
+ * replaces such objects by both parts, see {@link ClippedIntersectable#clip}, with a region
+ * around the finite objects of the scene and the camera. Single planes and other unbounded
+ * primitives are not clipped, they are as cheap to intersect as the region.
+ * <p>
+ * The inside part only reports hits in the region. It has finite bounds, so acceleration
+ * structures cull it like any other object. The outside part reports the other hits and
+ * has no bounds, but a ray whose remaining range [tmin, tmax) lies in the region skips it
+ * after a box test. Accelerators test objects without bounds after their hierarchy, so
+ * rays that hit something inside the region no longer test the object itself. Together
+ * the two parts report exactly the hits of the object, so the region only affects speed.
+ * <p>
+ * A clipped object restricts the range [tmin, tmax) of the rays passed to the object, also
+ * for occlusion queries, which CSG solids respect.
+ */
+public class ClippedIntersectable implements Intersectable
+{
+	/**
+	 * The region extends beyond the bounds of the finite objects by this fraction of their
+	 * largest extent, so the surfaces around objects resting on a plane are inside it.
+	 */
+	public static final float REGION_MARGIN = 0.05f;
+
+	/**
+	 * The bounds of the clipped parts are enlarged by this fraction of the largest extent of
+	 * the region, so rounding in the bounds of the acceleration structure does not lose hits.
+	 */
+	public static final float BOUNDS_EPSILON = 1e-4f;
+
+	protected Intersectable object;
+
+	/**
+	 * Whether this is the part inside the region.
+	 */
+	protected boolean inside;
+
+	/**
+	 * minx,maxx,miny,maxy,minz,maxz of the region.
+	 */
+	protected float[] region;
+
+	/**
+	 * Bounds of the part of the object inside the region, or null for the outside part.
+	 */
+	protected BoundingBox bound;
+
+	/**
+	 * @param inside make the part inside the region, which must reach into it, otherwise
+	 * the part outside
+	 */
+	public ClippedIntersectable(Intersectable object, BoundingBox region, boolean inside)
+	{
+		this.object = object;
+		this.inside = inside;
+		this.region = bounds(region);
+		if(inside)
+		{
+			BoundingBox b = clippedBounds(object, region);
+			float e = BOUNDS_EPSILON*extent(region);
+			bound = new BoundingBox(b.getMinx() - e, b.getMaxx() + e, b.getMiny() - e, b.getMaxy() + e,
+					b.getMinz() - e, b.getMaxz() + e);
+		}
+	}
+
+	/**
+	 * Test if an object can be clipped, that is if it is a {@link CSGNode} or a
+	 * {@link CSGInstance} without finite bounds.
+	 */
+	public static boolean clippable(Intersectable o)
+	{
+		return (o instanceof CSGNode || o instanceof CSGInstance) && o.getBoundingBox() == null;
+	}
+
+	/**
+	 * Add the parts of a clippable object to a list, the part inside the region unless the
+	 * object does not reach into it, and the part outside.
+	 */
+	public static void clip(Intersectable o, BoundingBox region, IntersectableList list)
+	{
+		if(clippedBounds(o, region) != null)
+		{
+			list.add(new ClippedIntersectable(o, region, true));
+		}
+		list.add(new ClippedIntersectable(o, region, false));
+	}
+
+	/**
+	 * Bounds of the objects of a scene graph that have finite bounds. Aggregates are
+	 * searched for them, other objects without bounds are skipped.
+	 *
+	 * @return the bounds, or null if there are no such objects
+	 */
+	public static BoundingBox finiteBounds(Intersectable o)
+	{
+		BoundingBox b = o.getBoundingBox();
+		if(b != null)
+		{
+			return new BoundingBox(b);
+		}
+		if(!(o instanceof Aggregate) || o instanceof IndexedPrimitives)
+		{
+			return null;
+		}
+		Iterator<Intersectable> it = ((Aggregate) o).iterator();
+		while(it.hasNext())
+		{
+			BoundingBox c = finiteBounds(it.next());
+			if(c != null)
+			{
+				b = b == null ? c : b.combinationWith(c);
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Enlarge a box by {@link ClippedIntersectable#REGION_MARGIN}.
+	 */
+	public static BoundingBox region(BoundingBox b)
+	{
+		float m = REGION_MARGIN*extent(b) + Float.MIN_NORMAL;
+		return new BoundingBox(b.getMinx() - m, b.getMaxx() + m, b.getMiny() - m, b.getMaxy() + m,
+				b.getMinz() - m, b.getMaxz() + m);
+	}
+
+	/**
+	 * Conservative bounds of the part of an object inside a region.
+	 *
+	 * @return the bounds, or null if the object does not reach into the region
+	 */
+	static BoundingBox clippedBounds(Intersectable o, BoundingBox region)
+	{
+		return ((CSGSolid) o).getBoundingBox(region);
+	}
+
+	/**
+	 * Bounds of the points x of a box with normal.x + d <= 0.
+	 *
+	 * @return the bounds, or null if there are no such points
+	 */
+	static BoundingBox clip(BoundingBox box, Vector3f normal, float d)
+	{
+		float[] b = {box.getMinx(), box.getMaxx(), box.getMiny(), box.getMaxy(), box.getMinz(), box.getMaxz()};
+		float[] corners = new float[24];
+		float[] dist = new float[8];
+		for(int c=0; c<8; c++)
+		{
+			corners[3*c] = b[c & 1];
+			corners[3*c+1] = b[2 + ((c >> 1) & 1)];
+			corners[3*c+2] = b[4 + ((c >> 2) & 1)];
+			dist[c] = normal.x*corners[3*c] + normal.y*corners[3*c+1] + normal.z*corners[3*c+2] + d;
+		}
+
+		float[] bounds = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		boolean empty = true;
+		float[] p = new float[3];
+		for(int c=0; c<8; c++)
+		{
+			if(dist[c] <= 0)
+			{
+				System.arraycopy(corners, 3*c, p, 0, 3);
+				grow(bounds, p);
+				empty = false;
+			}
+
+			// Points where the edges to the neighbouring corners cross the plane
+			for(int bit=1; bit<8; bit<<=1)
+			{
+				int n = c | bit;
+				if(n != c && (dist[c] < 0) != (dist[n] < 0) && dist[c] != 0 && dist[n] != 0)
+				{
+					float s = dist[c]/(dist[c] - dist[n]);
+					for(int k=0; k<3; k++)
+					{
+						p[k] = corners[3*c+k] + s*(corners[3*n+k] - corners[3*c+k]);
+					}
+					grow(bounds, p);
+					empty = false;
+				}
+			}
+		}
+		if(empty)
+		{
+			return null;
+		}
+		return new BoundingBox(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+	}
+
+	/**
+	 * Intersection of two boxes that may touch or be flat, unlike
+	 * {@link BoundingBox#intersectionWith(BoundingBox)}.
+	 *
+	 * @return a new box, or null if the boxes do not overlap
+	 */
+	static BoundingBox intersection(BoundingBox a, BoundingBox b)
+	{
+		float minx = Math.max(a.getMinx(), b.getMinx());
+		float maxx = Math.min(a.getMaxx(), b.getMaxx());
+		float miny = Math.max(a.getMiny(), b.getMiny());
+		float maxy = Math.min(a.getMaxy(), b.getMaxy());
+		float minz = Math.max(a.getMinz(), b.getMinz());
+		float maxz = Math.min(a.getMaxz(), b.getMaxz());
+		if(minx > maxx || miny > maxy || minz > maxz)
+		{
+			return null;
+		}
+		return new BoundingBox(minx, maxx, miny, maxy, minz, maxz);
+	}
+
+	static void grow(float[] bounds, float[] p)
+	{
+		for(int k=0; k<3; k++)
+		{
+			bounds[2*k] = Math.min(bounds[2*k], p[k]);
+			bounds[2*k+1] = Math.max(bounds[2*k+1], p[k]);
+		}
+	}
+
+	static float[] bounds(BoundingBox b)
+	{
+		return new float[] {b.getMinx(), b.getMaxx(), b.getMiny(), b.getMaxy(), b.getMinz(), b.getMaxz()};
+	}
+
+	static float extent(BoundingBox b)
+	{
+		return Math.max(b.getMaxx() - b.getMinx(), Math.max(b.getMaxy() - b.getMiny(), b.getMaxz() - b.getMinz()));
+	}
+
+	/**
+	 * Parameter where the line of a ray enters the region. Comparisons are written such that
+	 * NaNs (0*inf) never reject the region.
+	 */
+	protected float enter(Ray r)
+	{
+		float t = Float.NEGATIVE_INFINITY;
+		float t0 = (region[r.sign[0]] - r.origin.x)*r.invDirection.x;
+		if(t0 > t) t = t0;
+		t0 = (region[2+r.sign[1]] - r.origin.y)*r.invDirection.y;
+		if(t0 > t) t = t0;
+		t0 = (region[4+r.sign[2]] - r.origin.z)*r.invDirection.z;
+		if(t0 > t) t = t0;
+		return t;
+	}
+
+	/**
+	 * Parameter where the line of a ray leaves the region.
+	 */
+	protected float exit(Ray r)
+	{
+		float t = Float.POSITIVE_INFINITY;
+		float t1 = (region[1-r.sign[0]] - r.origin.x)*r.invDirection.x;
+		if(t1 < t) t = t1;
+		t1 = (region[3-r.sign[1]] - r.origin.y)*r.invDirection.y;
+		if(t1 < t) t = t1;
+		t1 = (region[5-r.sign[2]] - r.origin.z)*r.invDirection.z;
+		if(t1 < t) t = t1;
+		return t;
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		float enter = enter(r);
+		float exit = exit(r);
+		float tmin = r.tmin;
+		float tmax = r.tmax;
+		HitRecord hitRecord = null;
+		if(inside)
+		{	// hits in [enter, exit)
+			if(enter < exit && enter < tmax && exit > tmin)
+			{
+				r.tmin = Math.max(tmin, enter);
+				r.tmax = Math.min(tmax, exit);
+				hitRecord = object.intersect(r);
+			}
+		}else if(!(enter < exit))
+		{	// the ray misses the region
+			return object.intersect(r);
+		}else
+		{	// hits in [tmin, enter), then in [exit, tmax)
+			if(tmin < enter)
+			{
+				r.tmax = Math.min(tmax, enter);
+				hitRecord = object.intersect(r);
+			}
+			if(hitRecord == null && exit < tmax)
+			{
+				r.tmin = Math.max(tmin, exit);
+				r.tmax = tmax;
+				hitRecord = object.intersect(r);
+			}
+		}
+		r.tmin = tmin;
+		r.tmax = tmax;
+		return hitRecord;
+	}
+
+	/**
+	 * Occlusion by the part of the object, consistent with
+	 * {@link ClippedIntersectable#intersect(Ray)}.
+	 */
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		float enter = enter(r);
+		float exit = exit(r);
+		if(inside)
+		{
+			return enter < exit && occluded(r, enter, Math.min(exit, tMax));
+		}else if(!(enter < exit))
+		{
+			return object.occluded(r, tMax);
+		}
+		return occluded(r, 0, Math.min(enter, tMax)) || occluded(r, exit, tMax);
+	}
+
+	/**
+	 * Occlusion by the object in the range [from, to) of the ray. CSG solids only
+	 * report blockers at or after r.tmin, like their hits.
+	 */
+	protected boolean occluded(Ray r, float from, float to)
+	{
+		if(!(from < to) || to <= 0)
+		{
+			return false;
+		}
+		float tmin = r.tmin;
+		r.tmin = Math.max(tmin, from);
+		boolean occluded = object.occluded(r, to);
+		r.tmin = tmin;
+		return occluded;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		return bound;
+	}
+}
@@ -0,0 +1,531 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+import rt.TraversalCounters;
+
+/**
+ * A tree of axis aligned split planes over the objects of an {@link Aggregate}, stored in
+ * flat arrays. Subclasses build the tree, see {@link KdTreeAccelerator} and
+ * {@link BSPAccelerator}, this class traverses it. Traversal keeps track of the parametric
+ * interval [tmin, tmax] of the ray inside each cell, starting from the range of the
+ * {@link Ray}, visits the cells front to back and stops as soon as the closest hit lies
+ * inside the current cell. Every ray carries a mailbox, so a primitive that is referenced
+ * by several leaves is only tested once per ray. Objects without a finite
+ * {@link BoundingBox} are tested separately for every ray.
+ */
+public abstract class FlatKdTree implements Intersectable
+{
+	protected Intersectable[] primitives;
+
+	/**
+	 * The primitives grouped by kind, see {@link PrimitiveBuckets}.
+	 */
+	protected PrimitiveBuckets buckets;
+
+	protected ArrayList<Intersectable> infinites;
+
+	/**
+	 * Bounds of the tree, or null if it holds no objects.
+	 */
+	protected BoundingBox bound;
+	protected float[] rootBound;
+
+	/**
+	 * Two entries per node. For a leaf: offset into {@link FlatKdTree#primIndices} and
+	 * number of objects, at least 0. For an interior node: index of the child above the
+	 * split plane and -(axis+1). The child below the split plane directly follows its parent.
+	 */
+	protected int[] nodes;
+
+	/**
+	 * Position of the split plane of each interior node.
+	 */
+	protected float[] splits;
+
+	protected int[] primIndices;
+	protected int maxDepth;
+
+	/**
+	 * Per thread scratch data for traversal, so that rays do not allocate.
+	 */
+	protected ThreadLocal<TraversalState> state;
+
+	/**
+	 * Mailbox, traversal stack and ray of one thread.
+	 */
+	static class TraversalState
+	{
+		int[] mailbox;
+		int rayId;
+		int[] stackNode;
+		float[] stackMin;
+		float[] stackMax;
+		float[] origin = new float[3];
+		float[] direction = new float[3];
+		float[] invDirection = new float[3];
+
+		/**
+		 * Range of the ray inside the bounds of the tree, see {@link FlatKdTree#clip}.
+		 */
+		float tmin, tmax;
+
+		TraversalState(int nPrimitives, int maxDepth)
+		{
+			mailbox = new int[nPrimitives];
+			stackNode = new int[maxDepth + 1];
+			stackMin = new float[maxDepth + 1];
+			stackMax = new float[maxDepth + 1];
+		}
+
+		/**
+		 * Start a new ray and return its id.
+		 */
+		int nextRay()
+		{
+			rayId++;
+			if(rayId == 0)
+			{	// wrapped around, forget old ids
+				Arrays.fill(mailbox, 0);
+				rayId = 1;
+			}
+			return rayId;
+		}
+
+		/**
+		 * Copy the origin and direction of a ray into arrays, so they can be indexed by axis.
+		 */
+		void setRay(Ray r)
+		{
+			origin[0] = r.origin.x;
+			origin[1] = r.origin.y;
+			origin[2] = r.origin.z;
+			direction[0] = r.direction.x;
+			direction[1] = r.direction.y;
+			direction[2] = r.direction.z;
+			invDirection[0] = r.invDirection.x;
+			invDirection[1] = r.invDirection.y;
+			invDirection[2] = r.invDirection.z;
+		}
+	}
+
+	/**
+	 * Sort the objects of the aggregate into {@link FlatKdTree#primitives} and
+	 * {@link FlatKdTree#infinites}. The subclass builds the tree and then calls
+	 * {@link FlatKdTree#initState()}.
+	 */
+	protected FlatKdTree(Aggregate aggr)
+	{
+		infinites = new ArrayList<Intersectable>();
+		ArrayList<Intersectable> finites = new ArrayList<Intersectable>();
+
+		Iterator<Intersectable> it = aggr.iterator();
+		while(it.hasNext())
+		{
+			Intersectable i = it.next();
+			if(i.getBoundingBox() == null)
+			{
+				infinites.add(i);
+			}else
+			{
+				finites.add(i);
+			}
+		}
+
+		primitives = finites.toArray(new Intersectable[finites.size()]);
+		buckets = new PrimitiveBuckets(primitives);
+		nodes = new int[0];
+		splits = new float[0];
+		primIndices = new int[0];
+	}
+
+	/**
+	 * Create the per thread traversal state, once the tree is built.
+	 */
+	protected void initState()
+	{
+		final int nPrimitives = primitives.length;
+		final int depth = maxDepth;
+		state = new ThreadLocal<TraversalState>() {
+			@Override
+			protected TraversalState initialValue()
+			{
+				return new TraversalState(nPrimitives, depth);
+			}
+		};
+	}
+
+	/**
+	 * Store the nodes in treelets of the given number of nodes, see {@link NodeLayout}, so
+	 * the upper levels of the tree share cache lines. With 0, the nodes are stored depth
+	 * first, as built. Must not be called while rays are intersected with the accelerator.
+	 */
+	public void layoutTreelets(int treeletSize)
+	{
+		int[] order;
+		if(treeletSize > 0)
+		{
+			order = NodeLayout.treelets(nodes, NodeLayout.cellAreas(nodes, splits, rootBound), treeletSize);
+		}else
+		{
+			order = NodeLayout.depthFirst(nodes);
+		}
+		nodes = NodeLayout.apply(nodes, order);
+		splits = NodeLayout.apply(splits, 1, order);
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord hitRecord = intersectNodes(r);
+
+		// Intersect all objects in infinites after the tree, return closest hit. Objects
+		// only report hits closer than r.tmax, which is lowered with every hit.
+		for(Intersectable o:infinites)
+		{
+			hitRecord = ClosestHit.intersect(o, r, hitRecord);
+		}
+		return ClosestHit.complete(r, hitRecord);
+	}
+
+	/**
+	 * Closest hit with the objects in the tree, r.tmax is lowered with every hit. The hit
+	 * may still have to be completed, see {@link ClosestHit}.
+	 */
+	protected HitRecord intersectNodes(Ray r)
+	{
+		if(bound == null)
+		{
+			return null;
+		}
+
+		TraversalCounters counters = TraversalCounters.get();
+		if(counters != null)
+		{
+			counters.traversals++;
+		}
+
+		TraversalState s = state.get();
+		s.setRay(r);
+		if(!clip(r, s, r.tmin, r.tmax))
+		{
+			return null;
+		}
+		return intersectCells(r, s, s.tmin, s.tmax, counters);
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		for(Intersectable o:infinites)
+		{
+			if(o.occluded(r, tMax))
+			{
+				return true;
+			}
+		}
+
+		if(bound == null)
+		{
+			return false;
+		}
+
+		TraversalCounters counters = TraversalCounters.get();
+		if(counters != null)
+		{
+			counters.occlusionTraversals++;
+		}
+
+		TraversalState s = state.get();
+		s.setRay(r);
+		if(!clip(r, s, 0, tMax))
+		{
+			return false;
+		}
+		return occludedCells(r, tMax, s, s.tmin, s.tmax, counters);
+	}
+
+	/**
+	 * Clip a ray range to the bounds of the tree and store it in s. Comparisons are written
+	 * such that NaNs (0*inf) never reject the box.
+	 *
+	 * @return whether the clipped range is not empty
+	 */
+	protected boolean clip(Ray r, TraversalState s, float tmin, float tmax)
+	{
+		float[] o = s.origin;
+		float[] inv = s.invDirection;
+		for(int axis=0; axis<3; axis++)
+		{
+			float t0 = (rootBound[2*axis+r.sign[axis]] - o[axis])*inv[axis];
+			float t1 = (rootBound[2*axis+1-r.sign[axis]] - o[axis])*inv[axis];
+			if(t0 > tmin) tmin = t0;
+			if(t1 < tmax) tmax = t1;
+		}
+		s.tmin = tmin;
+		s.tmax = tmax;
+		return tmin <= tmax;
+	}
+
+	/**
+	 * Visit the cells along the ray front to back with a traversal stack, until the closest
+	 * hit lies inside the current cell.
+	 *
+	 * @param s holds the ray and its mailbox
+	 * @param tmin start of the ray range inside the tree
+	 * @param tmax end of the ray range inside the tree
+	 */
+	protected HitRecord intersectCells(Ray r, TraversalState s, float tmin, float tmax, TraversalCounters counters)
+	{
+		HitRecord hitRecord = null;
+		float[] o = s.origin;
+		float[] dir = s.direction;
+		float[] inv = s.invDirection;
+		int rayId = s.nextRay();
+		int[] mailbox = s.mailbox;
+		int sp = 0;
+		int node = 0;
+		while(true)
+		{
+			if(r.tmax < tmin)
+			{	// closest hit lies in an already visited cell
+				break;
+			}
+			if(counters != null)
+			{
+				counters.nodeVisits++;
+			}
+
+			int count = nodes[2*node+1];
+			if(count < 0)
+			{
+				int axis = -count - 1;
+				float split = splits[node];
+				float tPlane = (split - o[axis])*inv[axis];
+				if(tPlane != tPlane)
+				{	// ray lies in the split plane and never crosses it
+					tPlane = Float.POSITIVE_INFINITY;
+				}
+
+				int first, second;
+				boolean belowFirst = o[axis] < split || (o[axis] == split && dir[axis] <= 0);
+				if(belowFirst)
+				{
+					first = node + 1;
+					second = nodes[2*node];
+				}else
+				{
+					first = nodes[2*node];
+					second = node + 1;
+				}
+
+				if(tPlane > tmax || tPlane <= 0)
+				{
+					node = first;
+				}else if(tPlane < tmin)
+				{
+					node = second;
+				}else
+				{
+					s.stackNode[sp] = second;
+					s.stackMin[sp] = tPlane;
+					s.stackMax[sp] = tmax;
+					sp++;
+					node = first;
+					tmax = tPlane;
+				}
+				continue;
+			}
+
+			int offset = nodes[2*node];
+			for(int i=offset; i<offset+count; i++)
+			{
+				int p = primIndices[i];
+				if(mailbox[p] == rayId)
+				{	// already tested by this ray in another cell
+					continue;
+				}
+				mailbox[p] = rayId;
+				if(counters != null)
+				{
+					counters.primitiveTests++;
+				}
+
+				hitRecord = buckets.intersect(p, r, hitRecord);
+			}
+
+			if(r.tmax <= tmax || sp == 0)
+			{	// closest hit is inside this cell, or no cells left
+				break;
+			}
+			sp--;
+			node = s.stackNode[sp];
+			tmin = s.stackMin[sp];
+			tmax = s.stackMax[sp];
+		}
+
+		return hitRecord;
+	}
+
+	/**
+	 * Visit the cells along the ray like {@link FlatKdTree#intersectCells}, until a blocker
+	 * is found. Any blocker will do, but the cells are still visited front to back.
+	 */
+	protected boolean occludedCells(Ray r, float tMax, TraversalState s, float tmin, float tmax, TraversalCounters counters)
+	{
+		float[] o = s.origin;
+		float[] dir = s.direction;
+		float[] inv = s.invDirection;
+		int rayId = s.nextRay();
+		int[] mailbox = s.mailbox;
+		int sp = 0;
+		int node = 0;
+		while(true)
+		{
+			if(counters != null)
+			{
+				counters.nodeVisits++;
+			}
+
+			int count = nodes[2*node+1];
+			if(count < 0)
+			{
+				int axis = -count - 1;
+				float split = splits[node];
+				float tPlane = (split - o[axis])*inv[axis];
+				if(tPlane != tPlane)
+				{	// ray lies in the split plane and never crosses it
+					tPlane = Float.POSITIVE_INFINITY;
+				}
+
+				int first, second;
+				boolean belowFirst = o[axis] < split || (o[axis] == split && dir[axis] <= 0);
+				if(belowFirst)
+				{
+					first = node + 1;
+					second = nodes[2*node];
+				}else
+				{
+					first = nodes[2*node];
+					second = node + 1;
+				}
+
+				if(tPlane > tmax || tPlane <= 0)
+				{
+					node = first;
+				}else if(tPlane < tmin)
+				{
+					node = second;
+				}else
+				{
+					s.stackNode[sp] = second;
+					s.stackMin[sp] = tPlane;
+					s.stackMax[sp] = tmax;
+					sp++;
+					node = first;
+					tmax = tPlane;
+				}
+				continue;
+			}
+
+			int offset = nodes[2*node];
+			for(int i=offset; i<offset+count; i++)
+			{
+				int p = primIndices[i];
+				if(mailbox[p] == rayId)
+				{	// already tested by this ray in another cell
+					continue;
+				}
+				mailbox[p] = rayId;
+				if(counters != null)
+				{
+					counters.primitiveTests++;
+				}
+
+				if(buckets.occluded(p, r, tMax))
+				{
+					return true;
+				}
+			}
+
+			if(sp == 0)
+			{
+				return false;
+			}
+			sp--;
+			node = s.stackNode[sp];
+			tmin = s.stackMin[sp];
+			tmax = s.stackMax[sp];
+		}
+	}
+
+	/**
+	 * Compute the quality measures of the tree, see {@link AcceleratorStatistics}. The
+	 * memory includes the mailbox of one thread.
+	 */
+	public AcceleratorStatistics getStatistics()
+	{
+		AcceleratorStatistics stats = new AcceleratorStatistics(getClass().getSimpleName(), primitives.length);
+		stats.nodes = nodes.length/2;
+		stats.memory = 4*(2 + 1)*(long) stats.nodes + 4*(long) primIndices.length + 2*4*(long) primitives.length;
+		if(bound != null)
+		{
+			stats.sahCost = statistics(0, 1, rootBound.clone(), stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Add the nodes of a subtree to the statistics.
+	 *
+	 * @param cell bounds of the cell of the node, modified
+	 * @return the SAH cost of the subtree
+	 */
+	protected float statistics(int node, int depth, float[] cell, AcceleratorStatistics stats)
+	{
+		int count = nodes[2*node+1];
+		if(count >= 0)
+		{
+			stats.addLeaf(depth, count);
+			return count;
+		}
+
+		int axis = -count - 1;
+		float area = BVHBuilder.area(cell, 0);
+		float min = cell[2*axis];
+		float max = cell[2*axis+1];
+
+		cell[2*axis+1] = splits[node];
+		float belowArea = BVHBuilder.area(cell, 0);
+		float below = statistics(node + 1, depth + 1, cell, stats);
+		cell[2*axis] = splits[node];
+		cell[2*axis+1] = max;
+		float aboveArea = BVHBuilder.area(cell, 0);
+		float above = statistics(nodes[2*node], depth + 1, cell, stats);
+		cell[2*axis] = min;
+
+		if(area > 0)
+		{
+			return BVHBuilder.TRAVERSAL_COST + (belowArea*below + aboveArea*above)/area;
+		}
+		return BVHBuilder.TRAVERSAL_COST + below + above;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		if(infinites.isEmpty())
+		{
+			return bound;
+		}
+		return null;
+	}
+
+}
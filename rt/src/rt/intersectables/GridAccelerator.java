@@ -0,0 +1,543 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+
+/**
+ * A uniform grid over the objects of an {@link Aggregate}. Rays step from cell to cell with
+ * a 3D digital differential analyzer (3D-DDA) and stop at the first cell that contains a hit.
+ * For many objects of similar size, this is cheaper than descending a tree. The resolution is
+ * chosen from the number of objects, and each cell stores the indices of the objects that
+ * overlap it in one compact int array.
+ * <p>
+ * When the objects are unevenly distributed, crowded cells can get a grid of their own
+ * (two level grid), so dense clusters do not make whole cells expensive.
+ */
+public class GridAccelerator implements Intersectable
+{
+	/**
+	 * Number of cells per object, the resolution along each axis follows from this and the
+	 * shape of the bounding box.
+	 */
+	public static final float DENSITY = 2.f;
+
+	/**
+	 * Largest number of cells along one axis.
+	 */
+	public static final int MAX_RESOLUTION = 128;
+
+	/**
+	 * In a two level grid, cells that overlap more objects than this get a grid of their own.
+	 */
+	public static final int SUBGRID_THRESHOLD = 16;
+
+	protected Intersectable[] primitives;
+	protected ArrayList<Intersectable> infinites;
+	protected BoundingBox bound;
+
+	/**
+	 * Bounds of the grid, minx,maxx,miny,maxy,minz,maxz.
+	 */
+	protected float[] gridBounds = new float[6];
+
+	/**
+	 * Number of cells along each axis.
+	 */
+	protected int[] resolution = new int[3];
+
+	/**
+	 * Size of a cell along each axis.
+	 */
+	protected float[] cellSize = new float[3];
+
+	/**
+	 * The objects of cell c are cellPrims[cellStart[c]] to cellPrims[cellStart[c+1]-1]. Cells
+	 * are numbered x first, then y, then z.
+	 */
+	protected int[] cellStart;
+	protected int[] cellPrims;
+
+	/**
+	 * Grids of crowded cells in a two level grid, null for all other cells, or null if
+	 * there are none.
+	 */
+	protected GridAccelerator[] subgrids;
+
+	/**
+	 * Per thread 3D-DDA state, so that rays do not allocate. Subgrids use the state of their
+	 * parent grid, one level below it.
+	 */
+	protected ThreadLocal<TraversalState[]> state;
+
+	/**
+	 * Number of grid levels that a ray walks through at the same time, the grid and the
+	 * grid of a crowded cell.
+	 */
+	static final int LEVELS = 2;
+
+	/**
+	 * 3D-DDA state of a ray in one level of the grid.
+	 */
+	static class TraversalState
+	{
+		float[] origin = new float[3];
+		float[] direction = new float[3];
+		float[] invDirection = new float[3];
+
+		/**
+		 * Range of the ray inside the grid.
+		 */
+		float tmin, tmax;
+
+		/**
+		 * Current cell, ray parameter of the next cell boundary, distance in ray parameter
+		 * between cell boundaries, direction of cell steps, and cell index just outside the
+		 * grid in step direction, along each axis.
+		 */
+		int[] cell = new int[3];
+		float[] next = new float[3];
+		float[] delta = new float[3];
+		int[] step = new int[3];
+		int[] end = new int[3];
+	}
+
+	public GridAccelerator(Aggregate aggr)
+	{
+		this(aggr, false);
+	}
+
+	/**
+	 * @param twoLevel give crowded cells a grid of their own
+	 */
+	public GridAccelerator(Aggregate aggr, boolean twoLevel)
+	{
+		infinites = new ArrayList<Intersectable>();
+		ArrayList<Intersectable> finites = new ArrayList<Intersectable>();
+		ArrayList<BoundingBox> bounds = new ArrayList<BoundingBox>();
+
+		Iterator<Intersectable> it = aggr.iterator();
+		while(it.hasNext())
+		{
+			Intersectable i = it.next();
+			BoundingBox b = i.getBoundingBox();
+			if(b == null)
+			{
+				infinites.add(i);
+			}else
+			{
+				finites.add(i);
+				bounds.add(b);
+			}
+		}
+
+		primitives = finites.toArray(new Intersectable[finites.size()]);
+		float[] primBounds = new float[6*primitives.length];
+		int[] prims = new int[primitives.length];
+		BVHBuilder.empty(gridBounds, 0);
+		for(int i=0; i<primitives.length; i++)
+		{
+			BVHAccelerator.setBounds(primBounds, i, bounds.get(i));
+			BVHBuilder.grow(gridBounds, 0, primBounds, i);
+			prims[i] = i;
+		}
+		if(primitives.length == 0)
+		{
+			return;
+		}
+
+		bound = new BoundingBox(gridBounds[0], gridBounds[1], gridBounds[2], gridBounds[3], gridBounds[4], gridBounds[5]);
+		build(primBounds, prims, twoLevel);
+
+		state = new ThreadLocal<TraversalState[]>() {
+			@Override
+			protected TraversalState[] initialValue()
+			{
+				TraversalState[] s = new TraversalState[LEVELS];
+				for(int level=0; level<LEVELS; level++)
+				{
+					s[level] = new TraversalState();
+				}
+				return s;
+			}
+		};
+	}
+
+	/**
+	 * Make the grid of a crowded cell, over some of the objects of the parent grid.
+	 *
+	 * @param cellBounds bounds of the cell, the grid covers the part of it that the objects overlap
+	 */
+	protected GridAccelerator(Intersectable[] primitives, float[] primBounds, int[] prims, float[] cellBounds)
+	{
+		this.primitives = primitives;
+		infinites = new ArrayList<Intersectable>();
+		BVHBuilder.empty(gridBounds, 0);
+		for(int p:prims)
+		{
+			BVHBuilder.grow(gridBounds, 0, primBounds, p);
+		}
+		for(int axis=0; axis<3; axis++)
+		{
+			gridBounds[2*axis] = Math.max(gridBounds[2*axis], cellBounds[2*axis]);
+			gridBounds[2*axis+1] = Math.min(gridBounds[2*axis+1], cellBounds[2*axis+1]);
+		}
+		build(primBounds, prims, false);
+	}
+
+	/**
+	 * Choose the resolution and sort the objects into the cells of {@link GridAccelerator#gridBounds}.
+	 */
+	protected void build(float[] primBounds, int[] prims, boolean twoLevel)
+	{
+		// Cubic cells, about DENSITY cells per object, shaped like the bounding box
+		float maxExtent = 0;
+		for(int axis=0; axis<3; axis++)
+		{
+			maxExtent = Math.max(maxExtent, gridBounds[2*axis+1] - gridBounds[2*axis]);
+		}
+		float cellsPerUnit = maxExtent > 0 ? (float) Math.cbrt(DENSITY*prims.length)/maxExtent : 0;
+		int cells = 1;
+		for(int axis=0; axis<3; axis++)
+		{
+			float extent = gridBounds[2*axis+1] - gridBounds[2*axis];
+			resolution[axis] = Math.max(1, Math.min(MAX_RESOLUTION, Math.round(extent*cellsPerUnit)));
+			cellSize[axis] = extent/resolution[axis];
+			cells *= resolution[axis];
+		}
+
+		// Count the objects per cell, then store them in one array
+		int[] range = new int[6];
+		cellStart = new int[cells + 1];
+		for(int p:prims)
+		{
+			cellRange(primBounds, p, range);
+			for(int z=range[4]; z<=range[5]; z++)
+			{
+				for(int y=range[2]; y<=range[3]; y++)
+				{
+					for(int x=range[0]; x<=range[1]; x++)
+					{
+						cellStart[cell(x, y, z) + 1]++;
+					}
+				}
+			}
+		}
+		for(int c=0; c<cells; c++)
+		{
+			cellStart[c+1] += cellStart[c];
+		}
+		cellPrims = new int[cellStart[cells]];
+		int[] fill = new int[cells];
+		for(int p:prims)
+		{
+			cellRange(primBounds, p, range);
+			for(int z=range[4]; z<=range[5]; z++)
+			{
+				for(int y=range[2]; y<=range[3]; y++)
+				{
+					for(int x=range[0]; x<=range[1]; x++)
+					{
+						int c = cell(x, y, z);
+						cellPrims[cellStart[c] + fill[c]++] = p;
+					}
+				}
+			}
+		}
+
+		if(!twoLevel)
+		{
+			return;
+		}
+		float[] cellBounds = new float[6];
+		for(int z=0; z<resolution[2]; z++)
+		{
+			for(int y=0; y<resolution[1]; y++)
+			{
+				for(int x=0; x<resolution[0]; x++)
+				{
+					int c = cell(x, y, z);
+					int count = cellStart[c+1] - cellStart[c];
+					if(count <= SUBGRID_THRESHOLD)
+					{
+						continue;
+					}
+					int[] xyz = {x, y, z};
+					for(int axis=0; axis<3; axis++)
+					{
+						cellBounds[2*axis] = gridBounds[2*axis] + xyz[axis]*cellSize[axis];
+						cellBounds[2*axis+1] = gridBounds[2*axis] + (xyz[axis] + 1)*cellSize[axis];
+					}
+					int[] cellPrimList = new int[count];
+					System.arraycopy(cellPrims, cellStart[c], cellPrimList, 0, count);
+					if(subgrids == null)
+					{
+						subgrids = new GridAccelerator[cells];
+					}
+					subgrids[c] = new GridAccelerator(primitives, primBounds, cellPrimList, cellBounds);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the range of cells, minx,maxx,miny,maxy,minz,maxz, that the bounds of an
+	 * object overlap.
+	 */
+	protected void cellRange(float[] primBounds, int p, int[] range)
+	{
+		for(int axis=0; axis<3; axis++)
+		{
+			range[2*axis] = cellIndex(primBounds[6*p+2*axis], axis);
+			range[2*axis+1] = cellIndex(primBounds[6*p+2*axis+1], axis);
+		}
+	}
+
+	protected int cellIndex(float v, int axis)
+	{
+		if(!(cellSize[axis] > 0))
+		{
+			return 0;
+		}
+		int i = (int) Math.floor((v - gridBounds[2*axis])/cellSize[axis]);
+		return Math.max(0, Math.min(resolution[axis] - 1, i));
+	}
+
+	protected int cell(int x, int y, int z)
+	{
+		return x + resolution[0]*(y + resolution[1]*z);
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord hitRecord = null;
+
+		// Intersect all objects in infinites, objects only report hits closer than r.tmax,
+		// which is lowered with every hit
+		for(Intersectable o:infinites)
+		{
+			hitRecord = ClosestHit.intersect(o, r, hitRecord);
+		}
+
+		if(cellStart == null)
+		{
+			return ClosestHit.complete(r, hitRecord);
+		}
+		return ClosestHit.complete(r, intersectCells(r, hitRecord, state.get(), 0));
+	}
+
+	/**
+	 * Walk along the ray through the cells and intersect their objects, until a cell
+	 * contains the closest hit. An object that overlaps several cells may report a hit
+	 * beyond the current cell, so the walk only stops once r.tmax lies within the cell.
+	 *
+	 * @param hitRecord the closest hit so far, or null
+	 * @param states the traversal state of the calling thread
+	 * @param level the level of this grid, 0 for the top grid
+	 * @return the closest hit, which may still have to be completed, see {@link ClosestHit}
+	 */
+	protected HitRecord intersectCells(Ray r, HitRecord hitRecord, TraversalState[] states, int level)
+	{
+		TraversalState s = states[level];
+		if(!enter(r, r.tmax, s))
+		{
+			return hitRecord;
+		}
+		setup(s);
+		int[] cell = s.cell;
+		float[] next = s.next;
+		float[] delta = s.delta;
+		int[] step = s.step;
+		int[] end = s.end;
+
+		while(true)
+		{
+			int c = cell(cell[0], cell[1], cell[2]);
+			if(subgrids != null && subgrids[c] != null)
+			{
+				hitRecord = subgrids[c].intersectCells(r, hitRecord, states, level + 1);
+			}else
+			{
+				for(int i=cellStart[c]; i<cellStart[c+1]; i++)
+				{
+					hitRecord = ClosestHit.intersect(primitives[cellPrims[i]], r, hitRecord);
+				}
+			}
+
+			// step to the neighbour across the closest cell boundary
+			int axis = nextAxis(next);
+			if(r.tmax <= next[axis] || next[axis] > s.tmax)
+			{
+				return hitRecord;
+			}
+			cell[axis] += step[axis];
+			if(cell[axis] == end[axis])
+			{
+				return hitRecord;
+			}
+			next[axis] += delta[axis];
+		}
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		for(Intersectable o:infinites)
+		{
+			if(o.occluded(r, tMax))
+			{
+				return true;
+			}
+		}
+
+		return cellStart != null && occludedCells(r, tMax, state.get(), 0);
+	}
+
+	protected boolean occludedCells(Ray r, float tMax, TraversalState[] states, int level)
+	{
+		TraversalState s = states[level];
+		if(!enter(r, tMax, s))
+		{
+			return false;
+		}
+		setup(s);
+		int[] cell = s.cell;
+		float[] next = s.next;
+		float[] delta = s.delta;
+		int[] step = s.step;
+		int[] end = s.end;
+
+		while(true)
+		{
+			int c = cell(cell[0], cell[1], cell[2]);
+			if(subgrids != null && subgrids[c] != null)
+			{
+				if(subgrids[c].occludedCells(r, tMax, states, level + 1))
+				{
+					return true;
+				}
+			}else
+			{
+				for(int i=cellStart[c]; i<cellStart[c+1]; i++)
+				{
+					if(primitives[cellPrims[i]].occluded(r, tMax))
+					{
+						return true;
+					}
+				}
+			}
+
+			int axis = nextAxis(next);
+			if(next[axis] > s.tmax)
+			{
+				return false;
+			}
+			cell[axis] += step[axis];
+			if(cell[axis] == end[axis])
+			{
+				return false;
+			}
+			next[axis] += delta[axis];
+		}
+	}
+
+	/**
+	 * Copy the ray into s and clip the ray range [r.tmin, tmax] to the grid bounds.
+	 *
+	 * @param s receives the ray and the clipped range
+	 * @return false if the ray misses the grid
+	 */
+	protected boolean enter(Ray r, float tmax, TraversalState s)
+	{
+		float[] o = s.origin;
+		float[] d = s.direction;
+		float[] id = s.invDirection;
+		o[0] = r.origin.x;
+		o[1] = r.origin.y;
+		o[2] = r.origin.z;
+		d[0] = r.direction.x;
+		d[1] = r.direction.y;
+		d[2] = r.direction.z;
+		id[0] = r.invDirection.x;
+		id[1] = r.invDirection.y;
+		id[2] = r.invDirection.z;
+
+		float tmin = r.tmin;
+		for(int axis=0; axis<3; axis++)
+		{
+			// comparisons are written such that NaNs (0*inf) never reject the box
+			float t0 = (gridBounds[2*axis+r.sign[axis]] - o[axis])*id[axis];
+			float t1 = (gridBounds[2*axis+1-r.sign[axis]] - o[axis])*id[axis];
+			if(t0 > tmin) tmin = t0;
+			if(t1 < tmax) tmax = t1;
+		}
+		s.tmin = tmin;
+		s.tmax = tmax;
+		return tmin <= tmax;
+	}
+
+	/**
+	 * Initialize the 3D-DDA of s at the point where the ray enters the grid, see
+	 * {@link GridAccelerator#enter}.
+	 */
+	protected void setup(TraversalState s)
+	{
+		float[] o = s.origin;
+		float[] d = s.direction;
+		float[] id = s.invDirection;
+		int[] cell = s.cell;
+		float[] next = s.next;
+		float[] delta = s.delta;
+		int[] step = s.step;
+		int[] end = s.end;
+		for(int axis=0; axis<3; axis++)
+		{
+			cell[axis] = cellIndex(o[axis] + s.tmin*d[axis], axis);
+			if(d[axis] == 0)
+			{
+				next[axis] = Float.POSITIVE_INFINITY;
+				delta[axis] = Float.POSITIVE_INFINITY;
+				step[axis] = 1;
+				end[axis] = resolution[axis];
+			}else if(d[axis] > 0)
+			{
+				next[axis] = (gridBounds[2*axis] + (cell[axis] + 1)*cellSize[axis] - o[axis])*id[axis];
+				delta[axis] = cellSize[axis]*id[axis];
+				step[axis] = 1;
+				end[axis] = resolution[axis];
+			}else
+			{
+				next[axis] = (gridBounds[2*axis] + cell[axis]*cellSize[axis] - o[axis])*id[axis];
+				delta[axis] = -cellSize[axis]*id[axis];
+				step[axis] = -1;
+				end[axis] = -1;
+			}
+		}
+	}
+
+	static int nextAxis(float[] next)
+	{
+		if(next[0] < next[1])
+		{
+			return next[0] < next[2] ? 0 : 2;
+		}
+		return next[1] < next[2] ? 1 : 2;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		if(infinites.isEmpty())
+		{
+			return bound;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,43 @@
+package rt.intersectables;
+
+import rt.DeferredIntersectable;
+import rt.HitRecord;
+import rt.Ray;
+
+/**
+ * A group of primitives that are stored in flat arrays and referred to by their index
+ * instead of by an object each, like the triangles of a {@link Mesh}. Acceleration structures
+ * over such a group, see {@link BVHAccelerator}, store the indices and call the methods here
+ * directly, which saves an object per primitive and keeps the intersection loop monomorphic.
+ * <p>
+ * Hits with a primitive are deferred, see {@link DeferredIntersectable}: they set
+ * {@link HitRecord#deferred} to the group and {@link HitRecord#primitive} to the index, and
+ * {@link DeferredIntersectable#completeHit(Ray, HitRecord)} of the group completes them.
+ */
+public interface IndexedPrimitives extends DeferredIntersectable {
+
+	/**
+	 * Number of primitives, they have the indices 0 to count - 1.
+	 */
+	public int getPrimitiveCount();
+	
+	/**
+	 * Store the bounds of a primitive as minx,maxx,miny,maxy,minz,maxz.
+	 */
+	public void getPrimitiveBounds(int primitive, float[] bounds, int offset);
+	
+	/**
+	 * Test for a hit with a primitive closer than r.tmax, see
+	 * {@link DeferredIntersectable#intersect(Ray, HitRecord)}.
+	 * 
+	 * @param hit a record to reuse, or null to make a new one if there is a hit
+	 * @return the record, or null if there is no hit, in which case hit is not modified
+	 */
+	public HitRecord intersect(int primitive, Ray r, HitRecord hit);
+	
+	/**
+	 * Test for a hit with a primitive that casts shadows, see
+	 * {@link rt.Intersectable#occluded(Ray, float)}.
+	 */
+	public boolean occluded(int primitive, Ray r, float tMax);
+}
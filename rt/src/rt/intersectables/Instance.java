@@ -10,13 +10,20 @@ import rt.Intersectable;
 import rt.Ray;
 
 /**
- * Instances hold Instance specific data and a reference to the instanced Intersectable
+ * Instances hold Instance specific data and a reference to the instanced Intersectable.
+ * <p>
+ * If the instanced Intersectable is an {@link Aggregate}, such as a {@link Mesh}, rays are
+ * intersected with the accelerator of the aggregate (see {@link Aggregate#getAccelerator()}).
+ * It is built once and shared by all instances of the aggregate, so an aggregate can be
+ * placed many times at the memory cost of a single acceleration structure. Putting the
+ * instances themselves into an accelerator gives a two level hierarchy.
  * 
  * @author Florian
  */
 public class Instance implements Intersectable
 {
 	Intersectable intersectable;
+	Aggregate aggregate;
 	Matrix4f rayt;
 	Matrix4f t;
 	Matrix4f normalt;
@@ -31,12 +38,35 @@ public class Instance implements Intersectable
 	public Instance(Intersectable intersectable, Matrix4f t)
 	{
 		this.intersectable = intersectable;
+		if(intersectable instanceof Aggregate)
+		{
+			aggregate = (Aggregate) intersectable;
+		}
+		setTransformation(t);
+	}
+	
+	/**
+	 * Change the transformation of the instance, for example between the frames of an
+	 * animation. Accelerators containing the instance need to be refit afterwards.
+	 * 
+	 * @param t object to world transformation applied to the instance
+	 */
+	public void setTransformation(Matrix4f t)
+	{
 		this.t= new Matrix4f(t);
 		rayt = new Matrix4f(t);
 		rayt.invert();
 		normalt = new Matrix4f(rayt);
 		normalt.transpose();
 		
+		refit();
+	}
+	
+	/**
+	 * Update the bounding box of the instance after the instanced Intersectable has changed.
+	 */
+	public void refit()
+	{
 		bound = intersectable.getBoundingBox();
 		if(bound != null)
 		{
@@ -74,7 +104,10 @@ public class Instance implements Intersectable
 		rayt.transform(origin);
 		rayt.transform(direction);
 		
-		HitRecord hit = intersectable.intersect(new Ray(new Vector3f(origin), direction));
+		// descend into the shared acceleration structure of instanced aggregates
+		Intersectable target = aggregate != null ? aggregate.getAccelerator() : intersectable;
+		// the ray parameter is the same in both coordinate systems, so is its range
+		HitRecord hit = target.intersect(new Ray(new Vector3f(origin), direction, r.tmin, r.tmax));
 		
 		if(hit == null)
 		{
@@ -93,6 +126,19 @@ public class Instance implements Intersectable
 		return hit;
 	}
 
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		// transform ray to intersectable coordinates, t stays the same
+		Point3f origin = new Point3f(r.origin);
+		Vector3f direction = new Vector3f(r.direction);
+		rayt.transform(origin);
+		rayt.transform(direction);
+		
+		Intersectable target = aggregate != null ? aggregate.getAccelerator() : intersectable;
+		return target.occluded(new Ray(new Vector3f(origin), direction), tMax);
+	}
+
 	@Override
 	public BoundingBox getBoundingBox()
 	{
@@ -32,6 +32,29 @@ public class IntersectableList extends Aggregate {
 		list.add(i);
 	}
 	
+	/**
+	 * Update the bounding box and the accelerator of the list after its objects have moved.
+	 */
+	@Override
+	public void refit()
+	{
+		bound = null;
+		Iterator<Intersectable> it = list.iterator();
+		if(it.hasNext())
+		{
+			bound = it.next().getBoundingBox();
+			if(bound != null)
+			{
+				bound = new BoundingBox(bound);
+			}
+		}
+		while(it.hasNext() && bound != null)
+		{
+			bound = bound.combinationWith(it.next().getBoundingBox());
+		}
+		super.refit();
+	}
+	
 	public Iterator<Intersectable> iterator() {
 		return list.iterator();
 	}
@@ -0,0 +1,44 @@
+package rt.intersectables;
+
+import rt.BoundingBox;
+
+/**
+ * A kd-tree over the objects of an {@link Aggregate}, built by a {@link KdTreeBuilder}.
+ * The split planes are placed with the surface area heuristic. Traversal is shared with the
+ * other trees of split planes, see {@link FlatKdTree}.
+ */
+public class KdTreeAccelerator extends FlatKdTree
+{
+	public KdTreeAccelerator(Aggregate aggr)
+	{
+		super(aggr);
+
+		int n = primitives.length;
+		float[] primBounds = new float[6*n];
+		for(int i=0; i<n; i++)
+		{
+			BoundingBox b = primitives[i].getBoundingBox();
+			primBounds[6*i] = b.getMinx();
+			primBounds[6*i+1] = b.getMaxx();
+			primBounds[6*i+2] = b.getMiny();
+			primBounds[6*i+3] = b.getMaxy();
+			primBounds[6*i+4] = b.getMinz();
+			primBounds[6*i+5] = b.getMaxz();
+		}
+
+		KdTreeBuilder builder = new KdTreeBuilder(primBounds);
+		builder.build();
+		nodes = builder.nodes;
+		splits = builder.splits;
+		primIndices = builder.primIndices;
+		PrimitiveBuckets.sortLeaves(nodes, primIndices);
+		maxDepth = builder.maxDepth;
+		rootBound = builder.rootBound;
+		if(n > 0)
+		{
+			bound = new BoundingBox(rootBound[0], rootBound[1], rootBound[2], rootBound[3], rootBound[4], rootBound[5]);
+		}
+		initState();
+	}
+
+}
@@ -0,0 +1,370 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a kd-tree over a set of axis aligned primitive bounds. Split planes are chosen with
+ * the surface area heuristic over all primitive bound edges, and primitives that straddle a
+ * split plane are referenced by both children. The finished tree is stored in flat arrays in
+ * depth first order: the child below the split plane directly follows its parent, the child
+ * above is referenced by index.
+ * <p>
+ * Large subtrees are built as separate tasks on a {@link ForkJoinPool}. The tree is flattened
+ * after construction, so the result is identical to the serial build.
+ */
+public class KdTreeBuilder
+{
+	static final float INTERSECTION_COST = 80.f;
+	static final float TRAVERSAL_COST = 1.f;
+	static final float EMPTY_BONUS = 0.5f;
+	static final int MAX_LEAF_SIZE = 1;
+
+	/**
+	 * Subtrees over more primitives than this are built in their own task.
+	 */
+	static final int SUBTREE_GRAIN = 512;
+
+	float[] primBounds;
+
+	/**
+	 * Bounds of all primitives, minx,maxx,miny,maxy,minz,maxz.
+	 */
+	public float[] rootBound;
+
+	/**
+	 * Two entries per node. For a leaf: offset into {@link KdTreeBuilder#primIndices}
+	 * and number of primitives (>= 0). For an interior node: index of the child above the
+	 * split plane and -(split axis + 1).
+	 */
+	public int[] nodes;
+
+	/**
+	 * Position of the split plane of each interior node.
+	 */
+	public float[] splits;
+
+	/**
+	 * Primitive indices referenced by the leaves.
+	 */
+	public int[] primIndices;
+
+	public int nodeCount;
+
+	/**
+	 * Maximal depth of the tree, the root has depth 0.
+	 */
+	public int maxDepth;
+
+	/**
+	 * Node of the tree while it is being built.
+	 */
+	static class BuildNode
+	{
+		BuildNode below;
+		BuildNode above;
+		int axis;
+		float split;
+		int[] prims;
+		int nPrims;
+	}
+
+	/**
+	 * Prepare a build over the given primitive bounds.
+	 *
+	 * @param primBounds minx,maxx,miny,maxy,minz,maxz for each primitive consecutively
+	 */
+	public KdTreeBuilder(float[] primBounds)
+	{
+		this.primBounds = primBounds;
+
+		int n = primBounds.length/6;
+		rootBound = new float[6];
+		BVHBuilder.empty(rootBound, 0);
+		for(int i=0; i<n; i++)
+		{
+			BVHBuilder.grow(rootBound, 0, primBounds, i);
+		}
+		maxDepth = (int) Math.round(8 + 1.3*Math.log(Math.max(n, 1))/Math.log(2));
+	}
+
+	/**
+	 * Build the tree on the default {@link BVHBuilder#POOL} and store it in the flat output arrays.
+	 */
+	public void build()
+	{
+		build(BVHBuilder.POOL);
+	}
+
+	/**
+	 * Build the tree and store it in the flat output arrays.
+	 *
+	 * @param pool pool to run the build on, or null to build serially in the calling thread
+	 */
+	public void build(ForkJoinPool pool)
+	{
+		int n = primBounds.length/6;
+		nodeCount = 0;
+		if(n == 0)
+		{
+			nodes = new int[0];
+			splits = new float[0];
+			primIndices = new int[0];
+			return;
+		}
+
+		int[] prims = new int[n];
+		for(int i=0; i<n; i++)
+		{
+			prims[i] = i;
+		}
+
+		BuildNode root;
+		if(pool == null)
+		{
+			root = buildNode(rootBound, prims, n, 0, 0, false);
+		}else
+		{
+			root = pool.invoke(new SubtreeTask(rootBound, prims, n, 0, 0));
+		}
+
+		int[] counts = new int[2];
+		count(root, counts);
+		nodes = new int[2*counts[0]];
+		splits = new float[counts[0]];
+		primIndices = new int[counts[1]];
+		flatten(root, new int[2]);
+		nodeCount = counts[0];
+	}
+
+	/**
+	 * Recursively build the subtree for the given primitives inside the node bounds.
+	 *
+	 * @param parallel whether the calling thread runs inside a fork-join pool
+	 */
+	BuildNode buildNode(float[] nodeBound, int[] prims, int nPrims, int depth, int badRefines, boolean parallel)
+	{
+		BuildNode node = new BuildNode();
+		node.prims = prims;
+		node.nPrims = nPrims;
+
+		if(nPrims <= MAX_LEAF_SIZE || depth == maxDepth)
+		{
+			return node;
+		}
+
+		// Choose split axis and position with the SAH
+		float w = nodeBound[1] - nodeBound[0];
+		float h = nodeBound[3] - nodeBound[2];
+		float d = nodeBound[5] - nodeBound[4];
+		float invArea = 1.f/(w*h + w*d + h*d);
+		float oldCost = INTERSECTION_COST*nPrims;
+		float bestCost = Float.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		float bestSplit = 0;
+		int retries = 0;
+		int axis = (w > h && w > d) ? 0 : (h > d ? 1 : 2);
+		long[] edges = new long[2*nPrims];
+
+		while(bestAxis == -1 && retries < 3)
+		{
+			int nEdges = sortEdges(axis, primBounds, prims, nPrims, edges);
+			float min = nodeBound[2*axis];
+			float max = nodeBound[2*axis+1];
+			float other0 = axis == 0 ? h : w;
+			float other1 = axis == 2 ? h : d;
+
+			int nBelow = 0;
+			int nAbove = nPrims;
+			for(int i=0; i<nEdges; i++)
+			{
+				boolean end = isEnd(edges[i]);
+				if(end)
+				{
+					nAbove--;
+				}
+				float t = edgePosition(edges[i]);
+				if(t > min && t < max)
+				{
+					float belowArea = other0*other1 + (t - min)*(other0 + other1);
+					float aboveArea = other0*other1 + (max - t)*(other0 + other1);
+					float pBelow = belowArea*invArea;
+					float pAbove = aboveArea*invArea;
+					float bonus = (nAbove == 0 || nBelow == 0) ? EMPTY_BONUS : 0;
+					float cost = TRAVERSAL_COST + INTERSECTION_COST*(1 - bonus)*(pBelow*nBelow + pAbove*nAbove);
+					if(cost < bestCost)
+					{
+						bestCost = cost;
+						bestAxis = axis;
+						bestSplit = t;
+					}
+				}
+				if(!end)
+				{
+					nBelow++;
+				}
+			}
+
+			if(bestAxis == -1)
+			{
+				retries++;
+				axis = (axis + 1) % 3;
+			}
+		}
+
+		if(bestCost > oldCost)
+		{
+			badRefines++;
+		}
+		if((bestCost > 4*oldCost && nPrims < 16) || bestAxis == -1 || badRefines == 3)
+		{
+			return node;
+		}
+
+		// Classify primitives with respect to the split, straddling primitives go to both sides
+		int[] below = new int[nPrims];
+		int[] above = new int[nPrims];
+		int n0 = 0;
+		int n1 = 0;
+		for(int i=0; i<nPrims; i++)
+		{
+			int p = prims[i];
+			float pmin = primBounds[6*p+2*bestAxis];
+			float pmax = primBounds[6*p+2*bestAxis+1];
+			if(pmin < bestSplit)
+			{
+				below[n0++] = p;
+			}
+			if(pmax > bestSplit || (pmin == bestSplit && pmax == bestSplit))
+			{
+				above[n1++] = p;
+			}
+		}
+
+		float[] belowBound = nodeBound.clone();
+		belowBound[2*bestAxis+1] = bestSplit;
+		float[] aboveBound = nodeBound.clone();
+		aboveBound[2*bestAxis] = bestSplit;
+
+		node.prims = null;
+		node.axis = bestAxis;
+		node.split = bestSplit;
+		if(parallel && nPrims > SUBTREE_GRAIN)
+		{
+			SubtreeTask task = new SubtreeTask(belowBound, below, n0, depth + 1, badRefines);
+			task.fork();
+			node.above = buildNode(aboveBound, above, n1, depth + 1, badRefines, true);
+			node.below = task.join();
+		}else
+		{
+			node.below = buildNode(belowBound, below, n0, depth + 1, badRefines, parallel);
+			node.above = buildNode(aboveBound, above, n1, depth + 1, badRefines, parallel);
+		}
+		return node;
+	}
+
+	/**
+	 * Builds a subtree.
+	 */
+	@SuppressWarnings("serial")
+	class SubtreeTask extends RecursiveTask<BuildNode>
+	{
+		float[] nodeBound;
+		int[] prims;
+		int nPrims, depth, badRefines;
+
+		SubtreeTask(float[] nodeBound, int[] prims, int nPrims, int depth, int badRefines)
+		{
+			this.nodeBound = nodeBound;
+			this.prims = prims;
+			this.nPrims = nPrims;
+			this.depth = depth;
+			this.badRefines = badRefines;
+		}
+
+		@Override
+		protected BuildNode compute()
+		{
+			return buildNode(nodeBound, prims, nPrims, depth, badRefines, true);
+		}
+	}
+
+	/**
+	 * Count nodes and primitive references of a subtree.
+	 *
+	 * @param counts incremented by the number of nodes (index 0) and references (index 1)
+	 */
+	static void count(BuildNode node, int[] counts)
+	{
+		counts[0]++;
+		if(node.prims != null)
+		{
+			counts[1] += node.nPrims;
+			return;
+		}
+		count(node.below, counts);
+		count(node.above, counts);
+	}
+
+	/**
+	 * Write a subtree to the flat arrays.
+	 *
+	 * @param next index of the next free node (index 0) and primitive reference (index 1)
+	 */
+	void flatten(BuildNode node, int[] next)
+	{
+		int index = next[0]++;
+		if(node.prims != null)
+		{
+			System.arraycopy(node.prims, 0, primIndices, next[1], node.nPrims);
+			nodes[2*index] = next[1];
+			nodes[2*index+1] = node.nPrims;
+			next[1] += node.nPrims;
+			return;
+		}
+
+		flatten(node.below, next);
+		nodes[2*index] = next[0];
+		nodes[2*index+1] = -(node.axis + 1);
+		splits[index] = node.split;
+		flatten(node.above, next);
+	}
+
+	/**
+	 * Fill the edge array with the sorted start and end edges of the primitives along an axis.
+	 * Each edge is encoded in a long, ordered by position, then start before end.
+	 *
+	 * @return number of edges
+	 */
+	static int sortEdges(int axis, float[] primBounds, int[] prims, int nPrims, long[] edges)
+	{
+		for(int i=0; i<nPrims; i++)
+		{
+			int p = prims[i];
+			edges[2*i] = encodeEdge(primBounds[6*p+2*axis], false, p);
+			edges[2*i+1] = encodeEdge(primBounds[6*p+2*axis+1], true, p);
+		}
+		Arrays.sort(edges, 0, 2*nPrims);
+		return 2*nPrims;
+	}
+
+	static long encodeEdge(float t, boolean end, int prim)
+	{
+		int bits = Float.floatToIntBits(t);
+		bits ^= (bits >> 31) & 0x7fffffff;	// order preserving for negative floats
+		return ((long) bits << 32) | (end ? 0x80000000L : 0L) | prim;
+	}
+
+	static float edgePosition(long edge)
+	{
+		int bits = (int) (edge >> 32);
+		bits ^= (bits >> 31) & 0x7fffffff;
+		return Float.intBitsToFloat(bits);
+	}
+
+	static boolean isEnd(long edge)
+	{
+		return (edge & 0x80000000L) != 0;
+	}
+}
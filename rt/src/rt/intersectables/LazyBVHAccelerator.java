@@ -0,0 +1,451 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+
+/**
+ * A bounding volume hierarchy that is built on demand. Construction only computes the bounds
+ * of the objects; a node is split with the binned surface area heuristic of
+ * {@link BVHBuilder} when the first ray reaches it. Parts of the scene that no ray gets to,
+ * such as the back sides of meshes or hidden objects, are never built, so rendering starts
+ * right away and the build work follows what is actually visible.
+ * <p>
+ * Rendering threads expand nodes concurrently without locks. A thread that reaches an
+ * unbuilt node splits it into new children and publishes them with a compare-and-set. If
+ * another thread published children first, its result is used and the local one is dropped.
+ * Both are identical, so the tree does not depend on the order in which rays arrive.
+ */
+public class LazyBVHAccelerator implements Intersectable
+{
+	/**
+	 * A node of the hierarchy. Until it is expanded, a node owns the list of its objects.
+	 * Leaves keep their list, interior nodes release it once their children are published.
+	 */
+	static final class Node
+	{
+		final float[] bound;
+		volatile int[] prims;
+
+		/**
+		 * Null while the node is not expanded, {@link LazyBVHAccelerator#LEAF} for leaves,
+		 * the two children otherwise.
+		 */
+		volatile Node[] children;
+
+		/**
+		 * Split axis of an interior node.
+		 */
+		int axis;
+
+		Node(float[] bound, int[] prims)
+		{
+			this.bound = bound;
+			this.prims = prims;
+		}
+	}
+
+	static final Node[] LEAF = new Node[0];
+
+	static final AtomicReferenceFieldUpdater<Node, Node[]> CHILDREN =
+			AtomicReferenceFieldUpdater.newUpdater(Node.class, Node[].class, "children");
+
+	protected Intersectable[] primitives;
+	protected ArrayList<Intersectable> infinites;
+	protected BoundingBox bound;
+
+	/**
+	 * Object bounds, see {@link BVHBuilder#primBounds}.
+	 */
+	protected float[] primBounds;
+
+	/**
+	 * Object centroids, see {@link BVHBuilder#centroids}.
+	 */
+	protected float[] centroids;
+
+	protected Node root;
+
+	/**
+	 * Per thread traversal stack, grown as the tree gets deeper.
+	 */
+	protected ThreadLocal<Node[]> stacks = new ThreadLocal<Node[]>();
+
+	public LazyBVHAccelerator(Aggregate aggr)
+	{
+		infinites = new ArrayList<Intersectable>();
+		ArrayList<Intersectable> finites = new ArrayList<Intersectable>();
+		ArrayList<BoundingBox> bounds = new ArrayList<BoundingBox>();
+
+		Iterator<Intersectable> it = aggr.iterator();
+		while(it.hasNext())
+		{
+			Intersectable i = it.next();
+			BoundingBox b = i.getBoundingBox();
+			if(b == null)
+			{
+				infinites.add(i);
+			}else
+			{
+				finites.add(i);
+				bounds.add(b);
+			}
+		}
+
+		int n = finites.size();
+		primitives = finites.toArray(new Intersectable[n]);
+		primBounds = new float[6*n];
+		centroids = new float[3*n];
+		int[] prims = new int[n];
+		float[] rootBound = new float[6];
+		BVHBuilder.empty(rootBound, 0);
+		for(int i=0; i<n; i++)
+		{
+			BVHAccelerator.setBounds(primBounds, i, bounds.get(i));
+			for(int axis=0; axis<3; axis++)
+			{
+				centroids[3*i+axis] = (primBounds[6*i+2*axis] + primBounds[6*i+2*axis+1])/2.f;
+			}
+			BVHBuilder.grow(rootBound, 0, primBounds, i);
+			prims[i] = i;
+		}
+
+		if(n > 0)
+		{
+			root = new Node(rootBound, prims);
+			bound = new BoundingBox(rootBound[0], rootBound[1], rootBound[2], rootBound[3], rootBound[4], rootBound[5]);
+		}
+	}
+
+	/**
+	 * Get the children of a node, expanding it if this has not happened yet.
+	 *
+	 * @return the two children, or {@link LazyBVHAccelerator#LEAF}
+	 */
+	protected Node[] expand(Node node)
+	{
+		Node[] children = node.children;
+		if(children != null)
+		{
+			return children;
+		}
+		int[] prims = node.prims;
+		if(prims == null)
+		{	// another thread expanded the node in the meantime
+			return node.children;
+		}
+
+		children = split(node, prims);
+		if(CHILDREN.compareAndSet(node, null, children))
+		{
+			if(children != LEAF)
+			{
+				node.prims = null;
+			}
+			return children;
+		}
+		return node.children;
+	}
+
+	/**
+	 * Evaluate the binned SAH for the objects of a node like {@link BVHBuilder} and make the
+	 * two children. Of the node itself only the split axis is set, before the children are
+	 * published; threads that split the same node concurrently all set the same axis.
+	 *
+	 * @return the two children, or {@link LazyBVHAccelerator#LEAF} if splitting does not pay off
+	 */
+	Node[] split(Node node, int[] prims)
+	{
+		int n = prims.length;
+		if(n == 1)
+		{
+			return LEAF;
+		}
+
+		float[] cbound = new float[6];
+		BVHBuilder.empty(cbound, 0);
+		for(int p:prims)
+		{
+			for(int axis=0; axis<3; axis++)
+			{
+				float c = centroids[3*p+axis];
+				cbound[2*axis] = Math.min(cbound[2*axis], c);
+				cbound[2*axis+1] = Math.max(cbound[2*axis+1], c);
+			}
+		}
+
+		BVHBuilder.Bins bins = new BVHBuilder.Bins();
+		for(int axis=0; axis<3; axis++)
+		{
+			float extent = cbound[2*axis+1] - cbound[2*axis];
+			if(!(extent > 0))
+			{
+				continue;
+			}
+			float scale = BVHBuilder.BINS/extent;
+			for(int p:prims)
+			{
+				int b = axis*BVHBuilder.BINS + BVHBuilder.bin(centroids[3*p+axis], cbound[2*axis], scale);
+				bins.count[b]++;
+				BVHBuilder.grow(bins.bounds, b, primBounds, p);
+			}
+		}
+
+		float[] rightArea = new float[BVHBuilder.BINS];
+		float[] acc = new float[6];
+		float bestCost = Float.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		int bestBin = -1;
+		for(int axis=0; axis<3; axis++)
+		{
+			if(!(cbound[2*axis+1] - cbound[2*axis] > 0))
+			{
+				continue;
+			}
+			BVHBuilder.empty(acc, 0);
+			for(int b=BVHBuilder.BINS-1; b>0; b--)
+			{
+				BVHBuilder.grow(acc, 0, bins.bounds, axis*BVHBuilder.BINS + b);
+				rightArea[b] = BVHBuilder.area(acc, 0);
+			}
+			BVHBuilder.empty(acc, 0);
+			int leftCount = 0;
+			for(int b=0; b<BVHBuilder.BINS-1; b++)
+			{
+				BVHBuilder.grow(acc, 0, bins.bounds, axis*BVHBuilder.BINS + b);
+				leftCount += bins.count[axis*BVHBuilder.BINS + b];
+				if(leftCount == 0 || leftCount == n)
+				{
+					continue;
+				}
+				float cost = leftCount*BVHBuilder.area(acc, 0) + (n - leftCount)*rightArea[b+1];
+				if(cost < bestCost)
+				{
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+		if(bestAxis < 0)
+		{	// all centroids coincide
+			return LEAF;
+		}
+		float parentArea = BVHBuilder.area(node.bound, 0);
+		float splitCost = BVHBuilder.TRAVERSAL_COST + (parentArea > 0 ? bestCost/parentArea : n);
+		if(n <= BVHAccelerator.MAX_LEAF_SIZE && splitCost >= n)
+		{
+			return LEAF;
+		}
+
+		// Stable partition into the arrays of the children
+		int nLeft = 0;
+		for(int b=0; b<=bestBin; b++)
+		{
+			nLeft += bins.count[bestAxis*BVHBuilder.BINS + b];
+		}
+		int[] left = new int[nLeft];
+		int[] right = new int[n - nLeft];
+		float[] leftBound = new float[6];
+		float[] rightBound = new float[6];
+		BVHBuilder.empty(leftBound, 0);
+		BVHBuilder.empty(rightBound, 0);
+		float cmin = cbound[2*bestAxis];
+		float scale = BVHBuilder.BINS/(cbound[2*bestAxis+1] - cmin);
+		int l = 0;
+		int r = 0;
+		for(int p:prims)
+		{
+			if(BVHBuilder.bin(centroids[3*p+bestAxis], cmin, scale) <= bestBin)
+			{
+				left[l++] = p;
+				BVHBuilder.grow(leftBound, 0, primBounds, p);
+			}else
+			{
+				right[r++] = p;
+				BVHBuilder.grow(rightBound, 0, primBounds, p);
+			}
+		}
+
+		node.axis = bestAxis;
+		return new Node[] {new Node(leftBound, left), new Node(rightBound, right)};
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord hitRecord = null;
+
+		// Intersect all objects in infinites, objects only report hits closer than r.tmax,
+		// which is lowered with every hit
+		for(Intersectable o:infinites)
+		{
+			hitRecord = ClosestHit.intersect(o, r, hitRecord);
+		}
+
+		if(root == null)
+		{
+			return ClosestHit.complete(r, hitRecord);
+		}
+
+		Node[] stack = stack(0);
+		int sp = 0;
+		Node node = root;
+		while(true)
+		{
+			if(intersectNode(node, r, r.tmax))
+			{
+				Node[] children = expand(node);
+				if(children == LEAF)
+				{
+					for(int p:node.prims)
+					{
+						hitRecord = ClosestHit.intersect(primitives[p], r, hitRecord);
+					}
+				}else
+				{	// visit the child on the near side of the split first
+					if(sp == stack.length)
+					{
+						stack = stack(sp);
+					}
+					int near = r.sign[node.axis];
+					stack[sp++] = children[1 - near];
+					node = children[near];
+					continue;
+				}
+			}
+			if(sp == 0)
+			{
+				break;
+			}
+			node = stack[--sp];
+			stack[sp] = null;
+		}
+
+		return ClosestHit.complete(r, hitRecord);
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		for(Intersectable o:infinites)
+		{
+			if(o.occluded(r, tMax))
+			{
+				return true;
+			}
+		}
+
+		if(root == null)
+		{
+			return false;
+		}
+
+		Node[] stack = stack(0);
+		int sp = 0;
+		Node node = root;
+		boolean occluded = false;
+		while(true)
+		{
+			if(intersectNode(node, r, tMax))
+			{
+				Node[] children = expand(node);
+				if(children == LEAF)
+				{
+					for(int p:node.prims)
+					{
+						if(primitives[p].occluded(r, tMax))
+						{
+							occluded = true;
+							break;
+						}
+					}
+					if(occluded)
+					{
+						break;
+					}
+				}else
+				{
+					if(sp == stack.length)
+					{
+						stack = stack(sp);
+					}
+					int near = r.sign[node.axis];
+					stack[sp++] = children[1 - near];
+					node = children[near];
+					continue;
+				}
+			}
+			if(sp == 0)
+			{
+				break;
+			}
+			node = stack[--sp];
+		}
+
+		// do not keep nodes reachable from the stack
+		Arrays.fill(stack, 0, sp, null);
+		return occluded;
+	}
+
+	/**
+	 * Get the traversal stack of the calling thread, with room for more than the given
+	 * number of entries.
+	 */
+	protected Node[] stack(int size)
+	{
+		Node[] stack = stacks.get();
+		if(stack == null || stack.length <= size)
+		{
+			stack = stack == null ? new Node[64] : Arrays.copyOf(stack, 2*stack.length);
+			stacks.set(stack);
+		}
+		return stack;
+	}
+
+	/**
+	 * Slab test of the ray against the bounds of a node, see
+	 * {@link BVHAccelerator#intersectNode(int, float, float, float, float, float, float, int, int, int, float, float)}.
+	 */
+	static boolean intersectNode(Node node, Ray r, float tmax)
+	{
+		float[] b = node.bound;
+		float tmin = r.tmin;
+
+		// comparisons are written such that NaNs (0*inf) never reject the box
+		float t0 = (b[r.sign[0]] - r.origin.x)*r.invDirection.x;
+		float t1 = (b[1-r.sign[0]] - r.origin.x)*r.invDirection.x;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		t0 = (b[2+r.sign[1]] - r.origin.y)*r.invDirection.y;
+		t1 = (b[3-r.sign[1]] - r.origin.y)*r.invDirection.y;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		t0 = (b[4+r.sign[2]] - r.origin.z)*r.invDirection.z;
+		t1 = (b[5-r.sign[2]] - r.origin.z)*r.invDirection.z;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		return tmin <= tmax;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		if(infinites.isEmpty())
+		{
+			return bound;
+		}
+		return null;
+	}
+
+}
@@ -2,18 +2,25 @@ package rt.intersectables;
 
 import java.util.Iterator;
 
+import javax.vecmath.Vector3f;
+
 import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.HitRecord;
 import rt.Intersectable;
 import rt.Material;
+import rt.Ray;
 import rt.Spectrum;
 import rt.materials.Diffuse;
 
 /**
  * A triangle mesh. The mesh internally stores the triangles using vertex
- * and index arrays. The mesh also instantiates a {@link MeshTriangle} for each triangle,
- * and the mesh provides an iterator to iterate through the triangles.
+ * and index arrays. Acceleration structures that support {@link IndexedPrimitives} refer
+ * to the triangles by their index. For all others, the mesh provides an iterator to
+ * iterate through the triangles, which instantiates a {@link MeshTriangle} for each
+ * triangle on first use.
  */
-public class Mesh extends Aggregate
+public class Mesh extends Aggregate implements IndexedPrimitives
 {
 	/**
 	 * BoundingBox that contains the whole mesh
@@ -38,9 +45,18 @@ public class Mesh extends Aggregate
 	public int[] indices;
 	
 	/**
-	 * Array of triangles stored in the mesh.
+	 * Array of triangles stored in the mesh, made by the first call of
+	 * {@link Mesh#iterator()}.
+	 */
+	private volatile MeshTriangle[] triangles;
+	
+	/**
+	 * Precomputed data for ray-triangle intersection, the first vertex p0 and the edges
+	 * p1 - p0 and p2 - p0 of each triangle, nine floats per triangle, see
+	 * {@link Mesh#intersect(int, Ray, HitRecord)}. This costs 36 bytes per triangle,
+	 * but saves the lookups through the index array and two subtractions per test.
 	 */
-	private MeshTriangle[] triangles;
+	float[] triangleData;
 	
 	/**
 	 * A material.
@@ -57,8 +73,43 @@ public class Mesh extends Aggregate
 		this.vertices = vertices;
 		this.normals = normals;
 		this.indices = indices;
-		triangles = new MeshTriangle[indices.length/3];
 		
+		computeBoundingBox();
+		computeTriangleData();
+	}
+	
+	/**
+	 * Update the bounding box and the accelerator of the mesh after the
+	 * {@link Mesh#vertices} have changed.
+	 */
+	@Override
+	public void refit()
+	{
+		computeBoundingBox();
+		computeTriangleData();
+		super.refit();
+	}
+	
+	private void computeTriangleData()
+	{
+		float[] data = new float[3*indices.length];
+		for(int i=0; i<indices.length/3; i++)
+		{
+			int v0 = 3*indices[3*i];
+			int v1 = 3*indices[3*i+1];
+			int v2 = 3*indices[3*i+2];
+			for(int k=0; k<3; k++)
+			{
+				data[9*i+k] = vertices[v0+k];
+				data[9*i+3+k] = vertices[v1+k] - vertices[v0+k];
+				data[9*i+6+k] = vertices[v2+k] - vertices[v0+k];
+			}
+		}
+		triangleData = data;
+	}
+	
+	private void computeBoundingBox()
+	{
 		// calculate bounding box
 		float xmin = Float.POSITIVE_INFINITY;
 		float xmax = Float.NEGATIVE_INFINITY;
@@ -78,15 +129,264 @@ public class Mesh extends Aggregate
 		}
 		
 		this.bound = new BoundingBox(xmin, xmax, ymin, ymax, zmin, zmax);
-		
-		// A triangle simply stores a triangle index and refers back to the mesh 
-		// to look up the vertex data
+	}
+	
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		return ClosestHit.complete(r, intersect(r, null));
+	}
+	
+	/**
+	 * Closest hit with the triangles, r.tmax is lowered with every hit.
+	 */
+	@Override
+	public HitRecord intersect(Ray r, HitRecord hit)
+	{
+		HitRecord closest = null;
+		for(int i=0; i<indices.length/3; i++)
+		{
+			HitRecord tmp = intersect(i, r, closest != null ? closest : hit);
+			if(tmp != null)
+			{
+				r.tmax = tmp.t;
+				closest = tmp;
+			}
+		}
+		return closest;
+	}
+	
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		if(material != null && !material.castsShadows())
+		{
+			return false;
+		}
 		for(int i=0; i<indices.length/3; i++)
-			triangles[i] = new MeshTriangle(this, i);
+		{
+			if(occluded(i, r, tMax))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public int getPrimitiveCount()
+	{
+		return indices.length/3;
+	}
+	
+	@Override
+	public void getPrimitiveBounds(int triangle, float[] bounds, int offset)
+	{
+		for(int k=0; k<3; k++)
+		{
+			float a = vertices[3*indices[3*triangle]+k];
+			float b = vertices[3*indices[3*triangle+1]+k];
+			float c = vertices[3*indices[3*triangle+2]+k];
+			bounds[offset+2*k] = Math.min(a, Math.min(b, c));
+			bounds[offset+2*k+1] = Math.max(a, Math.max(b, c));
+		}
+	}
+	
+	/**
+	 * Copy the coordinates of the three vertices of a triangle, x0,y0,z0,x1,y1,z1,x2,y2,z2.
+	 */
+	void getVertices(int triangle, float[] v, int offset)
+	{
+		for(int i=0; i<3; i++)
+		{
+			int vi = indices[triangle*3+i];
+			v[offset+3*i] = vertices[vi*3];
+			v[offset+3*i+1] = vertices[vi*3+1];
+			v[offset+3*i+2] = vertices[vi*3+2];
+		}
+	}
+	
+	/**
+	 * Store the barycentric coordinates of the hit with respect to the second and third
+	 * vertex in {@link HitRecord#u} and {@link HitRecord#v}.
+	 * <p>
+	 * Moeller-Trumbore test on the first vertex p0 and the edges e1 = p1 - p0 and
+	 * e2 = p2 - p0 in {@link Mesh#triangleData}. The hit o + t*d = p0 + beta*e1 + gamma*e2
+	 * is found with Cramer's rule, and the test stops as soon as a barycentric coordinate is
+	 * out of bounds.
+	 */
+	@Override
+	public HitRecord intersect(int triangle, Ray r, HitRecord hit)
+	{
+		float data[] = triangleData;
+		int i = 9*triangle;
+		float e1x = data[i+3];
+		float e1y = data[i+4];
+		float e1z = data[i+5];
+		float e2x = data[i+6];
+		float e2y = data[i+7];
+		float e2z = data[i+8];
+		float dx = r.direction.x;
+		float dy = r.direction.y;
+		float dz = r.direction.z;
+		
+		// p = d x e2
+		float px = dy*e2z - dz*e2y;
+		float py = dz*e2x - dx*e2z;
+		float pz = dx*e2y - dy*e2x;
+		float det = e1x*px + e1y*py + e1z*pz;
+		if(det == 0)
+		{
+			return null;
+		}
+		float invDet = 1.f/det;
+		
+		// s = o - p0
+		float sx = r.origin.x - data[i];
+		float sy = r.origin.y - data[i+1];
+		float sz = r.origin.z - data[i+2];
+		float beta = (sx*px + sy*py + sz*pz)*invDet;
+		if(beta < 0 || beta > 1)
+		{
+			return null;
+		}
+		
+		// q = s x e1
+		float qx = sy*e1z - sz*e1y;
+		float qy = sz*e1x - sx*e1z;
+		float qz = sx*e1y - sy*e1x;
+		float gamma = (dx*qx + dy*qy + dz*qz)*invDet;
+		if(gamma < 0 || beta + gamma > 1)
+		{
+			return null;
+		}
+		
+		float t = (e2x*qx + e2y*qy + e2z*qz)*invDet;
+		if(t < 0 || t < r.tmin || t >= r.tmax)	// no hit
+		{
+			return null;
+		}
+		
+		if(hit == null)
+		{
+			hit = new HitRecord();
+		}
+		hit.intersectable = this;
+		hit.deferred = this;
+		hit.primitive = triangle;
+		hit.t = t;
+		hit.u = beta;
+		hit.v = gamma;
+		return hit;
+	}
+	
+	@Override
+	public void completeHit(Ray r, HitRecord hr)
+	{
+		int v0 = indices[hr.primitive*3];
+		int v1 = indices[hr.primitive*3+1];
+		int v2 = indices[hr.primitive*3+2];
+		
+		float beta = hr.u;
+		float gamma = hr.v;
+		float alpha = 1 - beta - gamma;
+		
+		hr.material = material;
+		hr.w = new Vector3f(r.direction);
+		hr.w.negate();
+		hr.w.normalize();
+		
+		hr.position = new Vector3f(r.origin.x + r.direction.x*hr.t, r.origin.y + r.direction.y*hr.t, r.origin.z + r.direction.z*hr.t);
+		
+		hr.normal = new Vector3f(alpha*normals[v0*3] + beta*normals[v1*3] + gamma*normals[v2*3],
+								 alpha*normals[v0*3+1] + beta*normals[v1*3+1] + gamma*normals[v2*3+1],
+								 alpha*normals[v0*3+2] + beta*normals[v1*3+2] + gamma*normals[v2*3+2]);
+		hr.normal.normalize();
+		
+		int i = 9*hr.primitive;
+		hr.t1 = new Vector3f(triangleData[i+3], triangleData[i+4], triangleData[i+5]);
+		hr.t1.normalize();
+		
+		hr.t2 = new Vector3f();
+		hr.t2.cross(hr.normal, hr.t1);
+		
+		// the mesh has no texture coordinates
+		hr.u = 0;
+		hr.v = 0;
+	}
+	
+	@Override
+	public boolean occluded(int triangle, Ray r, float tMax)
+	{
+		if(material != null && !material.castsShadows())
+		{
+			return false;
+		}
+		
+		// Same test as in intersect
+		float data[] = triangleData;
+		int i = 9*triangle;
+		float e1x = data[i+3];
+		float e1y = data[i+4];
+		float e1z = data[i+5];
+		float e2x = data[i+6];
+		float e2y = data[i+7];
+		float e2z = data[i+8];
+		float dx = r.direction.x;
+		float dy = r.direction.y;
+		float dz = r.direction.z;
+		
+		float px = dy*e2z - dz*e2y;
+		float py = dz*e2x - dx*e2z;
+		float pz = dx*e2y - dy*e2x;
+		float det = e1x*px + e1y*py + e1z*pz;
+		if(det == 0)
+		{
+			return false;
+		}
+		float invDet = 1.f/det;
+		
+		float sx = r.origin.x - data[i];
+		float sy = r.origin.y - data[i+1];
+		float sz = r.origin.z - data[i+2];
+		float beta = (sx*px + sy*py + sz*pz)*invDet;
+		if(beta < 0 || beta > 1)
+		{
+			return false;
+		}
+		
+		float qx = sy*e1z - sz*e1y;
+		float qy = sz*e1x - sx*e1z;
+		float qz = sx*e1y - sy*e1x;
+		float gamma = (dx*qx + dy*qy + dz*qz)*invDet;
+		if(gamma < 0 || beta + gamma > 1)
+		{
+			return false;
+		}
+		
+		float t = (e2x*qx + e2y*qy + e2z*qz)*invDet;
+		return t > 0 && t < tMax;
 	}
 	
 	public Iterator<Intersectable> iterator() {
-		return new MeshIterator(triangles);
+		MeshTriangle[] t = triangles;
+		if(t == null)
+		{
+			synchronized(this)
+			{
+				t = triangles;
+				if(t == null)
+				{
+					// A triangle simply stores a triangle index and refers back to the mesh 
+					// to look up the vertex data
+					t = new MeshTriangle[indices.length/3];
+					for(int i=0; i<t.length; i++)
+						t[i] = new MeshTriangle(this, i);
+					triangles = t;
+				}
+			}
+		}
+		return new MeshIterator(t);
 	}
 	
 	private class MeshIterator implements Iterator<Intersectable>
@@ -0,0 +1,305 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Reorders the nodes of the flat binary trees of {@link BVHAccelerator},
+ * {@link QuantizedBVHAccelerator}, {@link KdTreeAccelerator} and {@link BSPAccelerator} in
+ * memory. In all of them, a node is
+ * stored as two ints where the second one is negative for interior nodes, the first child of
+ * an interior node directly follows it and the first int holds the index of the second
+ * child. A layout is therefore free to arrange the chains of first children, each chain
+ * starting at the root or at a second child and ending at a leaf, in any order, as long as
+ * parents stay in front of their children.
+ * <p>
+ * The builders store the nodes depth first, which keeps every subtree contiguous but
+ * scatters the upper levels of the tree, the ones every ray visits, over all of memory. The
+ * treelet layout instead stores the chains most likely to be visited by a ray, judged by
+ * their surface area, in blocks of a few cache lines, and the blocks below each block right
+ * after it. The hot upper levels then share cache lines and pages, while the lower levels
+ * stay close to their parents.
+ * <p>
+ * The nodes of {@link WideBVHAccelerator} refer to all of their children explicitly, so
+ * its treelets are grown node by node instead of chain by chain, see
+ * {@link NodeLayout#wideTreelets(int[], int, float[], int)}.
+ */
+public class NodeLayout
+{
+	/**
+	 * Compute the treelet layout of a tree.
+	 *
+	 * @param nodes node data, two ints per node as described above
+	 * @param area surface area of each node, or of its cell in a kd-tree
+	 * @param treeletSize number of nodes per treelet
+	 * @return the old index of the node at each new position
+	 */
+	public static int[] treelets(int[] nodes, float[] area, int treeletSize)
+	{
+		int[] order = new int[nodes.length/2];
+		if(order.length == 0)
+		{
+			return order;
+		}
+
+		// Treelet roots in the order in which their treelets are stored
+		ArrayList<Integer> roots = new ArrayList<Integer>();
+		roots.add(0);
+		int next = 0;
+		for(int t=0; t<roots.size(); t++)
+		{
+			// Grow the treelet by the chain with the largest area among the candidates
+			final float[] a = area;
+			PriorityQueue<Integer> candidates = new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i, Integer j)
+				{
+					return Float.compare(a[j], a[i]);
+				}
+			});
+			candidates.add(roots.get(t));
+			int size = 0;
+			while(!candidates.isEmpty() && size < treeletSize)
+			{
+				int node = candidates.poll();
+				while(true)
+				{
+					order[next++] = node;
+					size++;
+					if(nodes[2*node+1] >= 0)
+					{
+						break;
+					}
+					candidates.add(nodes[2*node]);
+					node++;
+				}
+			}
+			roots.addAll(candidates);
+		}
+		return order;
+	}
+
+	/**
+	 * Compute the depth first layout of a tree, as made by the builders.
+	 *
+	 * @return the old index of the node at each new position
+	 */
+	public static int[] depthFirst(int[] nodes)
+	{
+		int[] order = new int[nodes.length/2];
+		if(order.length == 0)
+		{
+			return order;
+		}
+
+		int[] stack = new int[order.length];
+		int sp = 0;
+		stack[sp++] = 0;
+		int next = 0;
+		while(sp > 0)
+		{
+			int node = stack[--sp];
+			while(true)
+			{
+				order[next++] = node;
+				if(nodes[2*node+1] >= 0)
+				{
+					break;
+				}
+				stack[sp++] = nodes[2*node];
+				node++;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Compute the treelet layout of a wide tree. Any order that keeps the root first is
+	 * valid, so the treelets grow by the single node with the largest area among the
+	 * candidates.
+	 *
+	 * @param children child data, 2*width ints per node, see
+	 * {@link WideBVHAccelerator#children}
+	 * @param area surface area of each node
+	 * @param treeletSize number of nodes per treelet
+	 * @return the old index of the node at each new position
+	 */
+	public static int[] wideTreelets(int[] children, int width, float[] area, int treeletSize)
+	{
+		int[] order = new int[children.length/(2*width)];
+		if(order.length == 0)
+		{
+			return order;
+		}
+
+		ArrayList<Integer> roots = new ArrayList<Integer>();
+		roots.add(0);
+		int next = 0;
+		for(int t=0; t<roots.size(); t++)
+		{
+			final float[] a = area;
+			PriorityQueue<Integer> candidates = new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i, Integer j)
+				{
+					return Float.compare(a[j], a[i]);
+				}
+			});
+			candidates.add(roots.get(t));
+			int size = 0;
+			while(!candidates.isEmpty() && size < treeletSize)
+			{
+				int node = candidates.poll();
+				order[next++] = node;
+				size++;
+				for(int c=0; c<width; c++)
+				{
+					int s = 2*(width*node + c);
+					if(children[s+1] == 0)
+					{
+						candidates.add(children[s]);
+					}
+				}
+			}
+			roots.addAll(candidates);
+		}
+		return order;
+	}
+
+	/**
+	 * Compute the depth first layout of a wide tree, as made by
+	 * {@link WideBVHAccelerator}, with the children of each node in slot order.
+	 *
+	 * @return the old index of the node at each new position
+	 */
+	public static int[] wideDepthFirst(int[] children, int width)
+	{
+		int[] order = new int[children.length/(2*width)];
+		if(order.length == 0)
+		{
+			return order;
+		}
+
+		int[] stack = new int[order.length];
+		int sp = 0;
+		stack[sp++] = 0;
+		int next = 0;
+		while(sp > 0)
+		{
+			int node = stack[--sp];
+			order[next++] = node;
+			for(int c=width-1; c>=0; c--)
+			{
+				int s = 2*(width*node + c);
+				if(children[s+1] == 0)
+				{
+					stack[sp++] = children[s];
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Reorder the child data of a wide tree and update the references to interior children.
+	 *
+	 * @param order the old index of the node at each new position
+	 */
+	public static int[] applyWide(int[] children, int width, int[] order)
+	{
+		int[] position = new int[order.length];
+		for(int i=0; i<order.length; i++)
+		{
+			position[order[i]] = i;
+		}
+		int[] reordered = new int[children.length];
+		for(int i=0; i<order.length; i++)
+		{
+			System.arraycopy(children, 2*width*order[i], reordered, 2*width*i, 2*width);
+			for(int c=0; c<width; c++)
+			{
+				int s = 2*(width*i + c);
+				if(reordered[s+1] == 0)
+				{
+					reordered[s] = position[reordered[s]];
+				}
+			}
+		}
+		return reordered;
+	}
+
+	/**
+	 * Reorder node data and update the references to second children.
+	 *
+	 * @param order the old index of the node at each new position
+	 */
+	public static int[] apply(int[] nodes, int[] order)
+	{
+		int[] position = new int[order.length];
+		for(int i=0; i<order.length; i++)
+		{
+			position[order[i]] = i;
+		}
+		int[] reordered = new int[nodes.length];
+		for(int i=0; i<order.length; i++)
+		{
+			int node = order[i];
+			int data = nodes[2*node];
+			reordered[2*i] = nodes[2*node+1] < 0 ? position[data] : data;
+			reordered[2*i+1] = nodes[2*node+1];
+		}
+		return reordered;
+	}
+
+	/**
+	 * Reorder per node data.
+	 *
+	 * @param stride number of values per node
+	 * @param order the old index of the node at each new position
+	 */
+	public static float[] apply(float[] data, int stride, int[] order)
+	{
+		float[] reordered = new float[data.length];
+		for(int i=0; i<order.length; i++)
+		{
+			System.arraycopy(data, stride*order[i], reordered, stride*i, stride);
+		}
+		return reordered;
+	}
+
+	/**
+	 * Compute the surface areas of the cells of a kd-tree or BSP tree.
+	 *
+	 * @param splits position of the split plane of each interior node
+	 * @param rootBound bounds of the root cell, minx,maxx,miny,maxy,minz,maxz
+	 */
+	public static float[] cellAreas(int[] nodes, float[] splits, float[] rootBound)
+	{
+		float[] area = new float[nodes.length/2];
+		if(area.length > 0)
+		{
+			cellAreas(nodes, splits, 0, rootBound.clone(), area);
+		}
+		return area;
+	}
+
+	static void cellAreas(int[] nodes, float[] splits, int node, float[] cell, float[] area)
+	{
+		area[node] = BVHBuilder.area(cell, 0);
+		int code = nodes[2*node+1];
+		if(code >= 0)
+		{
+			return;
+		}
+		int axis = -code - 1;
+		float min = cell[2*axis];
+		float max = cell[2*axis+1];
+		cell[2*axis+1] = splits[node];
+		cellAreas(nodes, splits, node + 1, cell, area);
+		cell[2*axis] = splits[node];
+		cell[2*axis+1] = max;
+		cellAreas(nodes, splits, nodes[2*node], cell, area);
+		cell[2*axis] = min;
+	}
+}
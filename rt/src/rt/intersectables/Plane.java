@@ -43,7 +43,7 @@ public class Plane implements Intersectable {
 
 		if (tmp != 0) {
 			float t = -(normal.dot(r.origin) + d) / tmp;
-			if (t <= 0)
+			if (t <= 0 || t < r.tmin || t >= r.tmax)
 				return null;
 			Vector3f position = new Vector3f(r.direction);
 			position.scaleAdd(t, r.origin);
@@ -59,6 +59,18 @@ public class Plane implements Intersectable {
 		}
 	}
 
+	public boolean occluded(Ray r, float tMax) {
+		
+		if (material != null && !material.castsShadows())
+			return false;
+		
+		float tmp = normal.dot(r.direction);
+		if (tmp == 0)
+			return false;
+		float t = -(normal.dot(r.origin) + d) / tmp;
+		return t > 0 && t >= r.tmin && t < tMax;
+	}
+
 	@Override
 	public BoundingBox getBoundingBox()
 	{
@@ -0,0 +1,201 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+
+import rt.ClosestHit;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+
+/**
+ * The objects of an acceleration structure, grouped by their concrete class. The objects are
+ * reordered so that the {@link Sphere}s come first, then the {@link MeshTriangle}s and then
+ * all other objects, and the kind of an object follows from its index. Spheres are
+ * intersected by a static kernel on a flat copy of their centers and radii, triangles
+ * directly by their {@link Mesh}, and only the other objects through the
+ * {@link Intersectable} interface. The call sites for spheres and triangles therefore stay
+ * monomorphic in scenes that mix many kinds of objects, and the JIT can inline them.
+ * <p>
+ * The accelerators sort the indices in each leaf, see
+ * {@link PrimitiveBuckets#sortLeaves(int[], int[])}, so the objects of a leaf form one run
+ * per kind and the branches on the kind are predictable.
+ */
+public class PrimitiveBuckets
+{
+	protected Intersectable[] primitives;
+
+	/**
+	 * The spheres have the indices 0 to sphereEnd - 1, the triangles sphereEnd to
+	 * triangleEnd - 1.
+	 */
+	protected int sphereEnd;
+	protected int triangleEnd;
+
+	/**
+	 * x,y,z,radius of each sphere.
+	 */
+	protected float[] sphereData;
+	protected Sphere[] spheres;
+
+	/**
+	 * Mesh and index in the mesh of each triangle.
+	 */
+	protected Mesh[] meshes;
+	protected int[] triangles;
+
+	/**
+	 * Group the objects by kind, the array is reordered in place. Within each kind the
+	 * objects keep their order.
+	 */
+	public PrimitiveBuckets(Intersectable[] primitives)
+	{
+		this.primitives = primitives;
+		Intersectable[] sorted = new Intersectable[primitives.length];
+		int next = 0;
+		for(int kind=0; kind<3; kind++)
+		{
+			for(Intersectable o:primitives)
+			{
+				if(kind(o) == kind)
+				{
+					sorted[next++] = o;
+				}
+			}
+			if(kind == 0)
+			{
+				sphereEnd = next;
+			}else if(kind == 1)
+			{
+				triangleEnd = next;
+			}
+		}
+		System.arraycopy(sorted, 0, primitives, 0, primitives.length);
+
+		sphereData = new float[4*sphereEnd];
+		spheres = new Sphere[sphereEnd];
+		for(int i=0; i<sphereEnd; i++)
+		{
+			Sphere s = (Sphere) primitives[i];
+			spheres[i] = s;
+			sphereData[4*i] = s.position.x;
+			sphereData[4*i+1] = s.position.y;
+			sphereData[4*i+2] = s.position.z;
+			sphereData[4*i+3] = s.radius;
+		}
+
+		meshes = new Mesh[triangleEnd - sphereEnd];
+		triangles = new int[triangleEnd - sphereEnd];
+		for(int i=sphereEnd; i<triangleEnd; i++)
+		{
+			MeshTriangle t = (MeshTriangle) primitives[i];
+			meshes[i - sphereEnd] = t.mesh;
+			triangles[i - sphereEnd] = t.index;
+		}
+	}
+
+	/**
+	 * 0 for spheres, 1 for mesh triangles, 2 for all other objects. Subclasses may override
+	 * the intersection methods and are not grouped.
+	 */
+	static int kind(Intersectable o)
+	{
+		if(o.getClass() == Sphere.class)
+		{
+			return 0;
+		}
+		if(o.getClass() == MeshTriangle.class)
+		{
+			return 1;
+		}
+		return 2;
+	}
+
+	/**
+	 * Sort the indices in each leaf of a flat binary tree, stored as described in
+	 * {@link NodeLayout}, whose leaves hold an offset into the indices and a count.
+	 */
+	public static void sortLeaves(int[] nodes, int[] primIndices)
+	{
+		for(int node=0; 2*node<nodes.length; node++)
+		{
+			if(nodes[2*node+1] > 0)
+			{
+				Arrays.sort(primIndices, nodes[2*node], nodes[2*node] + nodes[2*node+1]);
+			}
+		}
+	}
+
+	/**
+	 * Intersect a ray with an object, like {@link ClosestHit#intersect(Intersectable, Ray, HitRecord)}.
+	 *
+	 * @param p index of the object
+	 * @param closest the closest hit so far, or null
+	 * @return the closest hit, which may still have to be completed
+	 */
+	public HitRecord intersect(int p, Ray r, HitRecord closest)
+	{
+		if(p >= triangleEnd)
+		{
+			return ClosestHit.intersect(primitives[p], r, closest);
+		}
+
+		// reuse the record only if it was made by a deferred intersectable of this search
+		HitRecord reuse = closest != null && closest.deferred != null ? closest : null;
+		HitRecord hit;
+		if(p < sphereEnd)
+		{
+			hit = intersectSphere(p, r, reuse);
+		}else
+		{
+			int i = p - sphereEnd;
+			hit = meshes[i].intersect(triangles[i], r, reuse);
+		}
+		if(hit != null)
+		{
+			r.tmax = hit.t;
+			return hit;
+		}
+		return closest;
+	}
+
+	protected HitRecord intersectSphere(int p, Ray r, HitRecord hit)
+	{
+		float t = Sphere.distance(sphereData[4*p], sphereData[4*p+1], sphereData[4*p+2], sphereData[4*p+3], r);
+		if(t < 0)
+		{
+			return null;
+		}
+
+		if(hit == null)
+		{
+			hit = new HitRecord();
+		}
+		hit.intersectable = spheres[p];
+		hit.deferred = spheres[p];
+		hit.t = t;
+		return hit;
+	}
+
+	/**
+	 * Test for a hit with an object, see {@link Intersectable#occluded(Ray, float)}.
+	 *
+	 * @param p index of the object
+	 */
+	public boolean occluded(int p, Ray r, float tMax)
+	{
+		if(p < sphereEnd)
+		{
+			if(spheres[p].material != null && !spheres[p].material.castsShadows())
+			{
+				return false;
+			}
+			return Sphere.occluded(sphereData[4*p], sphereData[4*p+1], sphereData[4*p+2], sphereData[4*p+3], r, tMax);
+		}
+		if(p < triangleEnd)
+		{
+			int i = p - sphereEnd;
+			return meshes[i].occluded(triangles[i], r, tMax);
+		}
+		return primitives[p].occluded(r, tMax);
+	}
+}
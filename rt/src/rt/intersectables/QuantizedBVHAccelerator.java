@@ -0,0 +1,651 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+
+import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+import rt.TraversalCounters;
+
+/**
+ * A bounding volume hierarchy like the one of {@link BVHAccelerator}, with node bounds
+ * compressed to 8 or 16 bit integers. The bounds of each node are stored as fractions of
+ * the bounds of its parent, so the precision adapts to the size of the nodes. With 8 bits
+ * a node takes 14 bytes instead of the 36 of a {@link BVHAccelerator}, which lets larger
+ * meshes fit into memory and more nodes into the caches.
+ * <p>
+ * Quantized bounds are rounded outwards and therefore conservative: they are decoded with
+ * exactly the same float operations during the build and during traversal, and minima and
+ * maxima are measured from the minimum and the maximum of the parent, respectively, so the
+ * extreme values reproduce the bounds of the parent exactly. Traversal decodes the bounds
+ * of the children of a node from the decoded bounds of the node itself, the bounds of the
+ * nodes on the stack are kept on the stack.
+ */
+public class QuantizedBVHAccelerator implements Intersectable
+{
+	protected Intersectable[] primitives;
+
+	/**
+	 * See {@link BVHAccelerator#indexed}.
+	 */
+	protected IndexedPrimitives indexed;
+
+	/**
+	 * See {@link BVHAccelerator#buckets}.
+	 */
+	protected PrimitiveBuckets buckets;
+	protected ArrayList<Intersectable> infinites;
+	protected BoundingBox bound;
+
+	/**
+	 * Bounds of the root, minx,maxx,miny,maxy,minz,maxz, at full precision.
+	 */
+	protected float[] rootBound;
+
+	/**
+	 * Node data, see {@link BVHBuilder#nodes}.
+	 */
+	protected int[] nodes;
+
+	protected int[] primIndices;
+	protected int maxDepth;
+
+	/**
+	 * Quantized bounds of each node except the root, six values per node, relative to the
+	 * bounds of the parent. One of the arrays is used, depending on the number of bits.
+	 */
+	protected byte[] bounds8;
+	protected char[] bounds16;
+
+	/**
+	 * Largest quantized value, 2^bits-1.
+	 */
+	protected int levels;
+	protected float invLevels;
+
+	/**
+	 * Per thread traversal state, so that rays do not allocate.
+	 */
+	protected ThreadLocal<TraversalState> state;
+
+	/**
+	 * Traversal stack of one thread. The decoded bounds of the children of a node at depth d
+	 * are kept in the slots 2d and 2d+1 of the box pool, where they stay until the traversal
+	 * returns to depth d, so stack entries only refer to their slot.
+	 */
+	static class TraversalState
+	{
+		int[] stackNode;
+		int[] stackBox;
+		int[] stackDepth;
+		float[] stackT;
+		float[] boxes;
+
+		TraversalState(int maxDepth)
+		{
+			stackNode = new int[maxDepth];
+			stackBox = new int[maxDepth];
+			stackDepth = new int[maxDepth];
+			stackT = new float[maxDepth];
+			boxes = new float[6*2*(maxDepth + 1)];
+		}
+	}
+
+	public QuantizedBVHAccelerator(Aggregate aggr)
+	{
+		this(aggr, 8);
+	}
+
+	/**
+	 * @param bits bits per quantized value, 8 or 16
+	 */
+	public QuantizedBVHAccelerator(Aggregate aggr, int bits)
+	{
+		// Build the hierarchy at full precision, then compress it
+		BVHAccelerator bvh = new BVHAccelerator(aggr);
+		primitives = bvh.primitives;
+		indexed = bvh.indexed;
+		buckets = bvh.buckets;
+		infinites = bvh.infinites;
+		bound = bvh.bound;
+		nodes = bvh.nodes;
+		primIndices = bvh.primIndices;
+		maxDepth = bvh.maxDepth;
+
+		levels = bits > 8 ? 0xffff : 0xff;
+		invLevels = 1.f/levels;
+		int nodeCount = nodes.length/2;
+		if(levels == 0xff)
+		{
+			bounds8 = new byte[6*nodeCount];
+		}else
+		{
+			bounds16 = new char[6*nodeCount];
+		}
+		if(nodeCount > 0)
+		{
+			rootBound = new float[6];
+			System.arraycopy(bvh.nodeBounds, 0, rootBound, 0, 6);
+			quantize(bvh.nodeBounds);
+		}
+
+		final int depth = maxDepth;
+		state = new ThreadLocal<TraversalState>() {
+			@Override
+			protected TraversalState initialValue()
+			{
+				return new TraversalState(depth);
+			}
+		};
+	}
+
+	/**
+	 * Quantize the bounds of all nodes. Children come after their parent, so the decoded
+	 * bounds of a parent are known before its children are quantized against them.
+	 */
+	protected void quantize(float[] nodeBounds)
+	{
+		int nodeCount = nodes.length/2;
+		float[] decoded = new float[6*nodeCount];
+		System.arraycopy(rootBound, 0, decoded, 0, 6);
+		for(int node=0; node<nodeCount; node++)
+		{
+			if(nodes[2*node+1] > 0)
+			{
+				continue;
+			}
+			int[] children = {node + 1, nodes[2*node]};
+			for(int child:children)
+			{
+				for(int axis=0; axis<3; axis++)
+				{
+					float pmin = decoded[6*node+2*axis];
+					float pmax = decoded[6*node+2*axis+1];
+					float scale = (pmax - pmin)*invLevels;
+					float cmin = nodeBounds[6*child+2*axis];
+					float cmax = nodeBounds[6*child+2*axis+1];
+
+					// Round outwards, then correct for the rounding of the float operations
+					int qmin = 0;
+					int qmax = levels;
+					if(scale > 0)
+					{
+						qmin = Math.max(0, Math.min(levels, (int) Math.floor((cmin - pmin)/scale)));
+						qmax = Math.max(0, Math.min(levels, levels - (int) Math.floor((pmax - cmax)/scale)));
+					}
+					while(qmin > 0 && pmin + qmin*scale > cmin)
+					{
+						qmin--;
+					}
+					while(qmax < levels && pmax - (levels - qmax)*scale < cmax)
+					{
+						qmax++;
+					}
+
+					set(6*child+2*axis, qmin);
+					set(6*child+2*axis+1, qmax);
+					decoded[6*child+2*axis] = pmin + qmin*scale;
+					decoded[6*child+2*axis+1] = pmax - (levels - qmax)*scale;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Store the nodes in treelets of the given number of nodes, see {@link NodeLayout}, so
+	 * the upper levels of the hierarchy share cache lines. With 0, the nodes are stored
+	 * depth first, as built. The quantized bounds of a node are relative to its parent and
+	 * move with the node. Must not be called while rays are intersected with the
+	 * accelerator.
+	 */
+	public void layoutTreelets(int treeletSize)
+	{
+		int[] order;
+		if(treeletSize > 0)
+		{
+			float[] decoded = decodedBounds();
+			float[] area = new float[nodes.length/2];
+			for(int node=0; node<area.length; node++)
+			{
+				area[node] = BVHBuilder.area(decoded, node);
+			}
+			order = NodeLayout.treelets(nodes, area, treeletSize);
+		}else
+		{
+			order = NodeLayout.depthFirst(nodes);
+		}
+		nodes = NodeLayout.apply(nodes, order);
+		if(bounds8 != null)
+		{
+			byte[] reordered = new byte[bounds8.length];
+			for(int i=0; i<order.length; i++)
+			{
+				System.arraycopy(bounds8, 6*order[i], reordered, 6*i, 6);
+			}
+			bounds8 = reordered;
+		}else
+		{
+			char[] reordered = new char[bounds16.length];
+			for(int i=0; i<order.length; i++)
+			{
+				System.arraycopy(bounds16, 6*order[i], reordered, 6*i, 6);
+			}
+			bounds16 = reordered;
+		}
+	}
+
+	/**
+	 * Decode the bounds of all nodes. Children come after their parent in any layout.
+	 */
+	protected float[] decodedBounds()
+	{
+		int nodeCount = nodes.length/2;
+		float[] decoded = new float[6*nodeCount];
+		float[] parent = new float[6];
+		float[] box = new float[6];
+		System.arraycopy(rootBound, 0, decoded, 0, 6);
+		for(int node=0; node<nodeCount; node++)
+		{
+			if(nodes[2*node+1] > 0)
+			{
+				continue;
+			}
+			System.arraycopy(decoded, 6*node, parent, 0, 6);
+			int[] children = {node + 1, nodes[2*node]};
+			for(int child:children)
+			{
+				decode(child, parent, box);
+				System.arraycopy(box, 0, decoded, 6*child, 6);
+			}
+		}
+		return decoded;
+	}
+
+	protected void set(int i, int q)
+	{
+		if(bounds8 != null)
+		{
+			bounds8[i] = (byte) q;
+		}else
+		{
+			bounds16[i] = (char) q;
+		}
+	}
+
+	/**
+	 * Decode the bounds of a node from the decoded bounds of its parent.
+	 *
+	 * @param parent decoded bounds of the parent
+	 * @param box receives the bounds of the node
+	 */
+	protected void decode(int node, float[] parent, float[] box)
+	{
+		int b = 6*node;
+		for(int axis=0; axis<3; axis++)
+		{
+			float pmin = parent[2*axis];
+			float pmax = parent[2*axis+1];
+			float scale = (pmax - pmin)*invLevels;
+			int qmin = bounds8 != null ? bounds8[b+2*axis] & 0xff : bounds16[b+2*axis];
+			int qmax = bounds8 != null ? bounds8[b+2*axis+1] & 0xff : bounds16[b+2*axis+1];
+			box[2*axis] = pmin + qmin*scale;
+			box[2*axis+1] = pmax - (levels - qmax)*scale;
+		}
+	}
+
+	/**
+	 * Decode the bounds of both children of a node from the decoded bounds of the node.
+	 *
+	 * @param boxes holds the bounds of the node and receives the bounds of the children
+	 * @param box offset of the bounds of the node
+	 * @param left offset for the bounds of the child below the split plane
+	 * @param right offset for the bounds of the other child
+	 */
+	protected void decodeChildren(int node, float[] boxes, int box, int left, int right)
+	{
+		int l = 6*(node + 1);
+		int r = 6*nodes[2*node];
+		if(bounds8 != null)
+		{
+			byte[] q = bounds8;
+			for(int i=0; i<6; i+=2)
+			{
+				float pmin = boxes[box+i];
+				float pmax = boxes[box+i+1];
+				float scale = (pmax - pmin)*invLevels;
+				boxes[left+i] = pmin + (q[l+i] & 0xff)*scale;
+				boxes[left+i+1] = pmax - (levels - (q[l+i+1] & 0xff))*scale;
+				boxes[right+i] = pmin + (q[r+i] & 0xff)*scale;
+				boxes[right+i+1] = pmax - (levels - (q[r+i+1] & 0xff))*scale;
+			}
+		}else
+		{
+			char[] q = bounds16;
+			for(int i=0; i<6; i+=2)
+			{
+				float pmin = boxes[box+i];
+				float pmax = boxes[box+i+1];
+				float scale = (pmax - pmin)*invLevels;
+				boxes[left+i] = pmin + q[l+i]*scale;
+				boxes[left+i+1] = pmax - (levels - q[l+i+1])*scale;
+				boxes[right+i] = pmin + q[r+i]*scale;
+				boxes[right+i+1] = pmax - (levels - q[r+i+1])*scale;
+			}
+		}
+	}
+
+	/**
+	 * Slab test of the ray against a box.
+	 *
+	 * @return the distance where the ray enters the box, or NaN if it misses the box
+	 * between tmin and tmax
+	 */
+	static float enter(float[] boxes, int b, float ox, float oy, float oz, float idx, float idy, float idz,
+			int sx, int sy, int sz, float tmin, float tmax)
+	{
+		// comparisons are written such that NaNs (0*inf) never reject the box
+		float t0 = (boxes[b+sx] - ox)*idx;
+		float t1 = (boxes[b+1-sx] - ox)*idx;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		t0 = (boxes[b+2+sy] - oy)*idy;
+		t1 = (boxes[b+3-sy] - oy)*idy;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		t0 = (boxes[b+4+sz] - oz)*idz;
+		t1 = (boxes[b+5-sz] - oz)*idz;
+		if(t0 > tmin) tmin = t0;
+		if(t1 < tmax) tmax = t1;
+
+		return tmin <= tmax ? tmin : Float.NaN;
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord hitRecord = null;
+
+		// Intersect all objects in infinites, return closest hit. Objects only report hits
+		// closer than r.tmax, which is lowered with every hit.
+		for(Intersectable o:infinites)
+		{
+			hitRecord = ClosestHit.intersect(o, r, hitRecord);
+		}
+
+		if(nodes.length == 0)
+		{
+			return ClosestHit.complete(r, hitRecord);
+		}
+
+		TraversalCounters counters = TraversalCounters.get();
+		if(counters != null)
+		{
+			counters.traversals++;
+		}
+
+		float ox = r.origin.x;
+		float oy = r.origin.y;
+		float oz = r.origin.z;
+		float idx = r.invDirection.x;
+		float idy = r.invDirection.y;
+		float idz = r.invDirection.z;
+		int sx = r.sign[0];
+		int sy = r.sign[1];
+		int sz = r.sign[2];
+
+		TraversalState s = state.get();
+		float[] boxes = s.boxes;
+		System.arraycopy(rootBound, 0, boxes, 0, 6);
+		if(Float.isNaN(enter(boxes, 0, ox, oy, oz, idx, idy, idz, sx, sy, sz, r.tmin, r.tmax)))
+		{
+			return ClosestHit.complete(r, hitRecord);
+		}
+
+		int sp = 0;
+		int node = 0;
+		int box = 0;
+		int depth = 0;
+		while(true)
+		{
+			if(counters != null)
+			{
+				counters.nodeVisits++;
+			}
+			int count = nodes[2*node+1];
+			if(count > 0)
+			{	// leaf
+				int offset = nodes[2*node];
+				if(counters != null)
+				{
+					counters.primitiveTests += count;
+				}
+				if(indexed != null)
+				{	// all hits are deferred by the indexed primitives, reuse their record
+					for(int i=offset; i<offset+count; i++)
+					{
+						HitRecord tmp = indexed.intersect(primIndices[i], r, hitRecord);
+						if(tmp != null)
+						{
+							r.tmax = tmp.t;
+							hitRecord = tmp;
+						}
+					}
+				}else
+				{
+					for(int i=offset; i<offset+count; i++)
+					{
+						hitRecord = buckets.intersect(primIndices[i], r, hitRecord);
+					}
+				}
+			}else
+			{	// visit the nearer child first
+				depth++;
+				int left = 12*depth;
+				int right = left + 6;
+				decodeChildren(node, boxes, box, left, right);
+				float tl = enter(boxes, left, ox, oy, oz, idx, idy, idz, sx, sy, sz, r.tmin, r.tmax);
+				float tr = enter(boxes, right, ox, oy, oz, idx, idy, idz, sx, sy, sz, r.tmin, r.tmax);
+				boolean hitLeft = !Float.isNaN(tl);
+				boolean hitRight = !Float.isNaN(tr);
+				if(hitLeft && hitRight)
+				{
+					boolean leftFirst = tl <= tr;
+					s.stackNode[sp] = leftFirst ? nodes[2*node] : node + 1;
+					s.stackBox[sp] = leftFirst ? right : left;
+					s.stackDepth[sp] = depth;
+					s.stackT[sp] = leftFirst ? tr : tl;
+					sp++;
+					node = leftFirst ? node + 1 : nodes[2*node];
+					box = leftFirst ? left : right;
+					continue;
+				}else if(hitLeft || hitRight)
+				{
+					node = hitLeft ? node + 1 : nodes[2*node];
+					box = hitLeft ? left : right;
+					continue;
+				}
+			}
+
+			// pop the next node that may still contain a closer hit
+			do
+			{
+				if(sp == 0)
+				{
+					return ClosestHit.complete(r, hitRecord);
+				}
+				sp--;
+			}while(s.stackT[sp] > r.tmax);
+			node = s.stackNode[sp];
+			box = s.stackBox[sp];
+			depth = s.stackDepth[sp];
+		}
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		for(Intersectable o:infinites)
+		{
+			if(o.occluded(r, tMax))
+			{
+				return true;
+			}
+		}
+
+		if(nodes.length == 0)
+		{
+			return false;
+		}
+
+		TraversalCounters counters = TraversalCounters.get();
+		if(counters != null)
+		{
+			counters.occlusionTraversals++;
+		}
+
+		float ox = r.origin.x;
+		float oy = r.origin.y;
+		float oz = r.origin.z;
+		float idx = r.invDirection.x;
+		float idy = r.invDirection.y;
+		float idz = r.invDirection.z;
+		int sx = r.sign[0];
+		int sy = r.sign[1];
+		int sz = r.sign[2];
+
+		TraversalState s = state.get();
+		float[] boxes = s.boxes;
+		System.arraycopy(rootBound, 0, boxes, 0, 6);
+		if(Float.isNaN(enter(boxes, 0, ox, oy, oz, idx, idy, idz, sx, sy, sz, 0.f, tMax)))
+		{
+			return false;
+		}
+
+		// Any blocker will do, the order of the children does not matter
+		int sp = 0;
+		int node = 0;
+		int box = 0;
+		int depth = 0;
+		while(true)
+		{
+			if(counters != null)
+			{
+				counters.nodeVisits++;
+			}
+			int count = nodes[2*node+1];
+			if(count > 0)
+			{	// leaf
+				int offset = nodes[2*node];
+				for(int i=offset; i<offset+count; i++)
+				{
+					if(counters != null)
+					{
+						counters.primitiveTests++;
+					}
+					if(indexed != null ? indexed.occluded(primIndices[i], r, tMax)
+							: buckets.occluded(primIndices[i], r, tMax))
+					{
+						return true;
+					}
+				}
+			}else
+			{
+				depth++;
+				int left = 12*depth;
+				int right = left + 6;
+				decodeChildren(node, boxes, box, left, right);
+				boolean hitLeft = !Float.isNaN(enter(boxes, left, ox, oy, oz, idx, idy, idz, sx, sy, sz, 0.f, tMax));
+				boolean hitRight = !Float.isNaN(enter(boxes, right, ox, oy, oz, idx, idy, idz, sx, sy, sz, 0.f, tMax));
+				if(hitLeft && hitRight)
+				{
+					s.stackNode[sp] = nodes[2*node];
+					s.stackBox[sp] = right;
+					s.stackDepth[sp] = depth;
+					sp++;
+				}
+				if(hitLeft || hitRight)
+				{
+					node = hitLeft ? node + 1 : nodes[2*node];
+					box = hitLeft ? left : right;
+					continue;
+				}
+			}
+
+			if(sp == 0)
+			{
+				return false;
+			}
+			sp--;
+			node = s.stackNode[sp];
+			box = s.stackBox[sp];
+			depth = s.stackDepth[sp];
+		}
+	}
+
+	/**
+	 * Compute the quality measures of the hierarchy, see {@link AcceleratorStatistics}. The
+	 * SAH cost is the one of the quantized bounds.
+	 */
+	public AcceleratorStatistics getStatistics()
+	{
+		AcceleratorStatistics stats = new AcceleratorStatistics("QuantizedBVHAccelerator",
+				indexed != null ? indexed.getPrimitiveCount() : primitives.length);
+		int nodeCount = nodes.length/2;
+		stats.nodes = nodeCount;
+		stats.memory = 8*(long) nodeCount + (bounds8 != null ? 6 : 12)*(long) nodeCount
+				+ 4*(long) primIndices.length + 4*(long) primitives.length;
+		if(nodeCount == 0)
+		{
+			return stats;
+		}
+
+		int[] depth = new int[nodeCount];
+		depth[0] = 1;
+		for(int node=0; node<nodeCount; node++)
+		{
+			int count = nodes[2*node+1];
+			if(count > 0)
+			{
+				stats.addLeaf(depth[node], count);
+				continue;
+			}
+			depth[node + 1] = depth[node] + 1;
+			depth[nodes[2*node]] = depth[node] + 1;
+		}
+		float[] decoded = decodedBounds();
+
+		float[] cost = new float[nodeCount];
+		for(int node=nodeCount-1; node>=0; node--)
+		{
+			int count = nodes[2*node+1];
+			if(count > 0)
+			{
+				cost[node] = count;
+				continue;
+			}
+			int l = node + 1;
+			int r = nodes[2*node];
+			float area = BVHBuilder.area(decoded, node);
+			cost[node] = BVHBuilder.TRAVERSAL_COST + (area > 0
+					? (BVHBuilder.area(decoded, l)*cost[l] + BVHBuilder.area(decoded, r)*cost[r])/area
+					: cost[l] + cost[r]);
+		}
+		stats.sahCost = cost[0];
+		return stats;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		if(infinites.isEmpty())
+		{
+			return bound;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,516 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Builds a split bounding volume hierarchy (SBVH, Stich et al. 2009). Besides the object
+ * splits of a {@link BVHBuilder}, which partition the primitives, it considers spatial
+ * splits, which cut the node with a plane and put primitives that straddle the plane into
+ * both children, each with the bounds of its part on that side. For long, thin triangles
+ * this removes most of the overlap between sibling nodes that object splits cannot avoid.
+ * <p>
+ * A primitive may therefore be referenced by several leaves. The number of references is
+ * limited by a budget relative to the number of primitives. Traversal needs no changes:
+ * primitives only report hits closer than the ray's tmax, so testing a primitive a second
+ * time never replaces the hit found the first time.
+ * <p>
+ * The output arrays have the same layout as those of {@link BVHBuilder}, except that
+ * {@link BVHBuilder#primIndices} may be longer than the number of primitives. Since the
+ * reference budget is shared by the whole tree, the build always runs serially.
+ */
+public class SBVHBuilder extends BVHBuilder
+{
+	/**
+	 * Version of the spatial split algorithm, see {@link BVHBuilder#ALGORITHM_VERSION}.
+	 */
+	static final int SPLIT_ALGORITHM_VERSION = 1;
+
+	/**
+	 * Default budget for additional references, relative to the number of primitives.
+	 */
+	public static final float DEFAULT_SPLIT_BUDGET = 0.3f;
+
+	/**
+	 * Spatial splits are only evaluated in nodes where the children of the best object split
+	 * overlap by more than this fraction of the surface area of the root.
+	 */
+	static final float OVERLAP_THRESHOLD = 1e-5f;
+
+	/**
+	 * Triangle vertices, x0,y0,z0,x1,y1,z1,x2,y2,z2 for each primitive consecutively, or null.
+	 */
+	float[] triangles;
+
+	float splitBudget;
+
+	int referenceCount;
+	int maxReferences;
+	float minOverlap;
+
+	/**
+	 * Primitive indices of the leaves, in the order the leaves are finished.
+	 */
+	int[] leafReferences;
+	int leafReferenceCount;
+
+	/**
+	 * A growable list of primitive references, each with its own bounds.
+	 */
+	static class References
+	{
+		int size;
+		int[] prims;
+		float[] bounds;
+
+		References(int capacity)
+		{
+			prims = new int[Math.max(capacity, 1)];
+			bounds = new float[6*prims.length];
+		}
+
+		void add(int prim, float[] b, int j)
+		{
+			if(size == prims.length)
+			{
+				prims = Arrays.copyOf(prims, 2*size);
+				bounds = Arrays.copyOf(bounds, 12*size);
+			}
+			prims[size] = prim;
+			System.arraycopy(b, 6*j, bounds, 6*size, 6);
+			size++;
+		}
+	}
+
+	/**
+	 * Bins for spatial splits. The count of a bin is the number of references that start in
+	 * it, the number of references that end in it is counted separately.
+	 */
+	static class SpatialBins extends Bins
+	{
+		int[] exits = new int[3*BINS];
+	}
+
+	/**
+	 * Prepare a build over the given primitives.
+	 *
+	 * @param primBounds minx,maxx,miny,maxy,minz,maxz for each primitive consecutively
+	 * @param triangles vertices x0,y0,z0,x1,y1,z1,x2,y2,z2 for each primitive consecutively.
+	 * Primitives that are not triangles have NaN as first coordinate and are split by cutting
+	 * their bounding box. May be null if there are no triangles.
+	 * @param maxLeafSize leaves with more primitives are always split if possible
+	 * @param splitBudget spatial splits stop once the number of references exceeds the number
+	 * of primitives by this fraction
+	 */
+	public SBVHBuilder(float[] primBounds, float[] triangles, int maxLeafSize, float splitBudget)
+	{
+		super(primBounds, maxLeafSize);
+		this.triangles = triangles;
+		this.splitBudget = splitBudget;
+	}
+
+	/**
+	 * Build the hierarchy serially and store it in the flat output arrays.
+	 *
+	 * @param pool ignored, the build always runs in the calling thread
+	 */
+	@Override
+	public void build(ForkJoinPool pool)
+	{
+		int n = primBounds.length/6;
+		nodeCount = 0;
+		maxDepth = 0;
+		if(n == 0)
+		{
+			nodeBounds = new float[0];
+			nodes = new int[0];
+			primIndices = new int[0];
+			return;
+		}
+
+		References refs = new References(n);
+		float[] rootBound = new float[6];
+		empty(rootBound, 0);
+		for(int i=0; i<n; i++)
+		{
+			refs.add(i, primBounds, i);
+			grow(rootBound, 0, primBounds, i);
+		}
+		referenceCount = n;
+		maxReferences = n + (int) (splitBudget*n);
+		minOverlap = OVERLAP_THRESHOLD*area(rootBound, 0);
+		leafReferences = new int[n];
+		leafReferenceCount = 0;
+
+		BuildNode root = buildNode(refs);
+		primIndices = Arrays.copyOf(leafReferences, leafReferenceCount);
+
+		nodeCount = countNodes(root);
+		nodeBounds = new float[6*nodeCount];
+		nodes = new int[2*nodeCount];
+		flatten(root, 0, 1);
+	}
+
+	/**
+	 * Recursively build the subtree over the given references.
+	 */
+	BuildNode buildNode(References refs)
+	{
+		BuildNode node = new BuildNode();
+		empty(node.bound, 0);
+		float[] cbound = new float[6];
+		empty(cbound, 0);
+		for(int r=0; r<refs.size; r++)
+		{
+			grow(node.bound, 0, refs.bounds, r);
+			for(int axis=0; axis<3; axis++)
+			{
+				float c = (refs.bounds[6*r+2*axis] + refs.bounds[6*r+2*axis+1])/2.f;
+				cbound[2*axis] = Math.min(cbound[2*axis], c);
+				cbound[2*axis+1] = Math.max(cbound[2*axis+1], c);
+			}
+		}
+		if(refs.size == 1)
+		{
+			return leaf(node, refs);
+		}
+
+		// Best object split
+		Bins bins = objectBins(refs, cbound);
+		float[] split = new float[3];
+		bestSplit(bins, bins.count, split);
+		float objectCost = split[0];
+		int objectAxis = (int) split[1];
+		int objectBin = (int) split[2];
+
+		// Best spatial split, if the object split leaves the children overlapping
+		float spatialCost = Float.POSITIVE_INFINITY;
+		int spatialAxis = -1;
+		int spatialBin = -1;
+		if(referenceCount < maxReferences && (objectAxis < 0 || overlap(bins, objectAxis, objectBin) > minOverlap))
+		{
+			SpatialBins spatial = spatialBins(refs, node.bound);
+			bestSplit(spatial, spatial.exits, split);
+			spatialCost = split[0];
+			spatialAxis = (int) split[1];
+			spatialBin = (int) split[2];
+		}
+
+		float bestCost = Math.min(objectCost, spatialCost);
+		if(objectAxis < 0 && spatialAxis < 0)
+		{	// all centroids coincide and the node can not be cut
+			return leaf(node, refs);
+		}
+		float parentArea = area(node.bound, 0);
+		float splitCost = TRAVERSAL_COST + (parentArea > 0 ? bestCost/parentArea : refs.size);
+		if(refs.size <= maxLeafSize && splitCost >= refs.size)
+		{
+			return leaf(node, refs);
+		}
+
+		References left = new References(refs.size/2);
+		References right = new References(refs.size/2);
+		if(spatialCost < objectCost)
+		{
+			float min = node.bound[2*spatialAxis];
+			float plane = min + (spatialBin + 1)*(node.bound[2*spatialAxis+1] - min)/BINS;
+			spatialPartition(refs, spatialAxis, plane, left, right);
+			node.axis = spatialAxis;
+			if(left.size == 0 || right.size == 0)
+			{	// rounding put everything on one side, use the object split instead
+				if(objectAxis < 0)
+				{
+					return leaf(node, refs);
+				}
+				left.size = 0;
+				right.size = 0;
+				spatialCost = Float.POSITIVE_INFINITY;
+			}else
+			{
+				referenceCount += left.size + right.size - refs.size;
+			}
+		}
+		if(!(spatialCost < objectCost))
+		{
+			float cmin = cbound[2*objectAxis];
+			float scale = BINS/(cbound[2*objectAxis+1] - cmin);
+			for(int r=0; r<refs.size; r++)
+			{
+				float c = (refs.bounds[6*r+2*objectAxis] + refs.bounds[6*r+2*objectAxis+1])/2.f;
+				if(bin(c, cmin, scale) <= objectBin)
+				{
+					left.add(refs.prims[r], refs.bounds, r);
+				}else
+				{
+					right.add(refs.prims[r], refs.bounds, r);
+				}
+			}
+			node.axis = objectAxis;
+		}
+
+		// The references of this node are not needed anymore while the children are built
+		refs.prims = null;
+		refs.bounds = null;
+		node.left = buildNode(left);
+		node.right = buildNode(right);
+		return node;
+	}
+
+	BuildNode leaf(BuildNode node, References refs)
+	{
+		if(leafReferenceCount + refs.size > leafReferences.length)
+		{
+			leafReferences = Arrays.copyOf(leafReferences, Math.max(2*leafReferences.length, leafReferenceCount + refs.size));
+		}
+		node.start = leafReferenceCount;
+		node.count = refs.size;
+		System.arraycopy(refs.prims, 0, leafReferences, leafReferenceCount, refs.size);
+		leafReferenceCount += refs.size;
+		return node;
+	}
+
+	/**
+	 * Sort the reference centroids into the bins of all axes.
+	 */
+	Bins objectBins(References refs, float[] cbound)
+	{
+		Bins bins = new Bins();
+		for(int axis=0; axis<3; axis++)
+		{
+			float cmin = cbound[2*axis];
+			float extent = cbound[2*axis+1] - cmin;
+			if(!(extent > 0))
+			{
+				continue;
+			}
+			float scale = BINS/extent;
+			for(int r=0; r<refs.size; r++)
+			{
+				float c = (refs.bounds[6*r+2*axis] + refs.bounds[6*r+2*axis+1])/2.f;
+				int b = axis*BINS + bin(c, cmin, scale);
+				bins.count[b]++;
+				grow(bins.bounds, b, refs.bounds, r);
+			}
+		}
+		return bins;
+	}
+
+	/**
+	 * Cut every reference into the bins of the node it overlaps, along all axes.
+	 */
+	SpatialBins spatialBins(References refs, float[] bound)
+	{
+		SpatialBins bins = new SpatialBins();
+		float[] part = new float[6];
+		float[] left = new float[6];
+		float[] right = new float[6];
+		for(int axis=0; axis<3; axis++)
+		{
+			float min = bound[2*axis];
+			float extent = bound[2*axis+1] - min;
+			if(!(extent > 0))
+			{
+				continue;
+			}
+			float scale = BINS/extent;
+			for(int r=0; r<refs.size; r++)
+			{
+				int b0 = bin(refs.bounds[6*r+2*axis], min, scale);
+				int b1 = bin(refs.bounds[6*r+2*axis+1], min, scale);
+				System.arraycopy(refs.bounds, 6*r, part, 0, 6);
+				for(int b=b0; b<b1; b++)
+				{
+					splitReference(refs.prims[r], part, axis, min + (b + 1)*extent/BINS, left, right);
+					if(!isEmpty(left))
+					{
+						grow(bins.bounds, axis*BINS + b, left, 0);
+					}
+					System.arraycopy(right, 0, part, 0, 6);
+				}
+				if(!isEmpty(part))
+				{
+					grow(bins.bounds, axis*BINS + b1, part, 0);
+				}
+				bins.count[axis*BINS + b0]++;
+				bins.exits[axis*BINS + b1]++;
+			}
+		}
+		return bins;
+	}
+
+	/**
+	 * Find the split between two bins with the lowest SAH cost.
+	 *
+	 * @param exits number of references that end in each bin, summed up from the right to
+	 * get the number of references on the right of a boundary; the bin counts for object bins
+	 * @param result receives cost, axis and the last bin on the left; axis is -1 if there
+	 * is no valid split
+	 */
+	void bestSplit(Bins bins, int[] exits, float[] result)
+	{
+		float[] rightArea = new float[BINS];
+		int[] rightCount = new int[BINS];
+		float[] acc = new float[6];
+		result[0] = Float.POSITIVE_INFINITY;
+		result[1] = -1;
+		result[2] = -1;
+
+		for(int axis=0; axis<3; axis++)
+		{
+			// sweep from the right to get the areas and counts of all right hand sides
+			empty(acc, 0);
+			int n = 0;
+			for(int b=BINS-1; b>0; b--)
+			{
+				grow(acc, 0, bins.bounds, axis*BINS + b);
+				n += exits[axis*BINS + b];
+				rightArea[b] = area(acc, 0);
+				rightCount[b] = n;
+			}
+
+			// sweep from the left and evaluate the cost of each split
+			empty(acc, 0);
+			int leftCount = 0;
+			for(int b=0; b<BINS-1; b++)
+			{
+				grow(acc, 0, bins.bounds, axis*BINS + b);
+				leftCount += bins.count[axis*BINS + b];
+				if(leftCount == 0 || rightCount[b+1] == 0)
+				{
+					continue;
+				}
+				float cost = leftCount*area(acc, 0) + rightCount[b+1]*rightArea[b+1];
+				if(cost < result[0])
+				{
+					result[0] = cost;
+					result[1] = axis;
+					result[2] = b;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Surface area of the intersection of the two children of an object split.
+	 */
+	static float overlap(Bins bins, int axis, int splitBin)
+	{
+		float[] left = new float[6];
+		float[] right = new float[6];
+		empty(left, 0);
+		empty(right, 0);
+		for(int b=0; b<BINS; b++)
+		{
+			grow(b <= splitBin ? left : right, 0, bins.bounds, axis*BINS + b);
+		}
+		for(int i=0; i<3; i++)
+		{
+			left[2*i] = Math.max(left[2*i], right[2*i]);
+			left[2*i+1] = Math.min(left[2*i+1], right[2*i+1]);
+		}
+		return area(left, 0);
+	}
+
+	/**
+	 * Distribute the references to the two sides of a plane, references that straddle the
+	 * plane are split and go to both sides.
+	 */
+	void spatialPartition(References refs, int axis, float plane, References left, References right)
+	{
+		float[] l = new float[6];
+		float[] r = new float[6];
+		float[] part = new float[6];
+		for(int i=0; i<refs.size; i++)
+		{
+			if(refs.bounds[6*i+2*axis+1] <= plane)
+			{
+				left.add(refs.prims[i], refs.bounds, i);
+			}else if(refs.bounds[6*i+2*axis] >= plane)
+			{
+				right.add(refs.prims[i], refs.bounds, i);
+			}else
+			{
+				System.arraycopy(refs.bounds, 6*i, part, 0, 6);
+				splitReference(refs.prims[i], part, axis, plane, l, r);
+				if(!isEmpty(l))
+				{
+					left.add(refs.prims[i], l, 0);
+				}
+				if(!isEmpty(r))
+				{
+					right.add(refs.prims[i], r, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the bounds of the parts of a reference on both sides of a plane. Triangles are
+	 * clipped against the plane, other primitives only have their box cut. Both parts are
+	 * limited to the current bounds of the reference, which may already have been split.
+	 *
+	 * @param bound current bounds of the reference
+	 * @param left receives the bounds of the part below the plane, may be empty
+	 * @param right receives the bounds of the part above the plane, may be empty
+	 */
+	void splitReference(int prim, float[] bound, int axis, float plane, float[] left, float[] right)
+	{
+		if(triangles == null || Float.isNaN(triangles[9*prim]))
+		{
+			System.arraycopy(bound, 0, left, 0, 6);
+			System.arraycopy(bound, 0, right, 0, 6);
+		}else
+		{
+			empty(left, 0);
+			empty(right, 0);
+			for(int i=0; i<3; i++)
+			{
+				int v = 9*prim + 3*i;
+				int w = 9*prim + 3*((i + 1)%3);
+				float a = triangles[v+axis];
+				float b = triangles[w+axis];
+				if(a <= plane)
+				{
+					growPoint(left, triangles[v], triangles[v+1], triangles[v+2]);
+				}
+				if(a >= plane)
+				{
+					growPoint(right, triangles[v], triangles[v+1], triangles[v+2]);
+				}
+				if((a < plane && b > plane) || (a > plane && b < plane))
+				{	// the edge crosses the plane
+					float t = (plane - a)/(b - a);
+					float x = triangles[v] + t*(triangles[w] - triangles[v]);
+					float y = triangles[v+1] + t*(triangles[w+1] - triangles[v+1]);
+					float z = triangles[v+2] + t*(triangles[w+2] - triangles[v+2]);
+					growPoint(left, x, y, z);
+					growPoint(right, x, y, z);
+				}
+			}
+			for(int i=0; i<3; i++)
+			{
+				left[2*i] = Math.max(left[2*i], bound[2*i]);
+				left[2*i+1] = Math.min(left[2*i+1], bound[2*i+1]);
+				right[2*i] = Math.max(right[2*i], bound[2*i]);
+				right[2*i+1] = Math.min(right[2*i+1], bound[2*i+1]);
+			}
+		}
+		left[2*axis+1] = Math.min(left[2*axis+1], plane);
+		right[2*axis] = Math.max(right[2*axis], plane);
+	}
+
+	static void growPoint(float[] box, float x, float y, float z)
+	{
+		box[0] = Math.min(box[0], x);
+		box[1] = Math.max(box[1], x);
+		box[2] = Math.min(box[2], y);
+		box[3] = Math.max(box[3], y);
+		box[4] = Math.min(box[4], z);
+		box[5] = Math.max(box[5], z);
+	}
+
+	static boolean isEmpty(float[] box)
+	{
+		return box[0] > box[1] || box[2] > box[3] || box[4] > box[5];
+	}
+}
@@ -3,8 +3,9 @@ package rt.intersectables;
 import javax.vecmath.Vector3f;
 
 import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.DeferredIntersectable;
 import rt.HitRecord;
-import rt.Intersectable;
 import rt.Material;
 import rt.Ray;
 
@@ -13,7 +14,7 @@ import rt.Ray;
  * 
  * @author Florian
  */
-public class Sphere implements Intersectable
+public class Sphere implements DeferredIntersectable
 {
 	Vector3f position;
 	float radius;
@@ -46,53 +47,138 @@ public class Sphere implements Intersectable
 	@Override
 	public HitRecord intersect(Ray r)
 	{
-		HitRecord hr = new HitRecord();
+		return ClosestHit.complete(r, intersect(r, null));
+	}
+	
+	@Override
+	public HitRecord intersect(Ray r, HitRecord hit)
+	{
+		float t = distance(r);
+		if(t < 0)
+		{
+			return null;
+		}
 		
-		hr.intersectable = this;
+		if(hit == null)
+		{
+			hit = new HitRecord();
+		}
+		hit.intersectable = this;
+		hit.deferred = this;
+		hit.t = t;
+		return hit;
+	}
+	
+	@Override
+	public void completeHit(Ray r, HitRecord hr)
+	{
 		hr.material = material;
+		completeHit(position.x, position.y, position.z, radius, r, hr);
+	}
+	
+	/**
+	 * Complete a hit with the sphere with center (x,y,z), except for the material. Also used
+	 * by {@link SphereSet}.
+	 */
+	static void completeHit(float x, float y, float z, float radius, Ray r, HitRecord hr)
+	{
 		hr.w = new Vector3f(r.direction);
 		hr.w.negate();
 		hr.w.normalize();
 		
+		hr.position = new Vector3f(r.origin.x + r.direction.x*hr.t, r.origin.y + r.direction.y*hr.t, r.origin.z + r.direction.z*hr.t);
+		
+		hr.normal = new Vector3f(hr.position.x - x, hr.position.y - y, hr.position.z - z);
+		hr.normal.scale(1.f/radius);
+		
+		hr.t2 = new Vector3f(0,1,0);
+		hr.t2.cross(hr.t2, hr.normal);
+		hr.t2.normalize();
+		
+		hr.t1 = new Vector3f();
+		hr.t1.cross(hr.normal, hr.t2);
+		hr.t1.normalize();
+		
+		hr.u = 0;
+		hr.v = 0;
+	}
+	
+	/**
+	 * Ray parameter of the closest hit in [r.tmin, r.tmax), or -1 if there is none.
+	 */
+	private float distance(Ray r)
+	{
+		return distance(position.x, position.y, position.z, radius, r);
+	}
+	
+	/**
+	 * Ray parameter of the closest hit with the sphere with center (x,y,z) in
+	 * [r.tmin, r.tmax), or -1 if there is none. Also used by {@link PrimitiveBuckets}.
+	 */
+	static float distance(float x, float y, float z, float radius, Ray r)
+	{
+		float a, b, c, det;
+		a = r.direction.x*r.direction.x + r.direction.y*r.direction.y + r.direction.z*r.direction.z;
+		b = 2 * (r.direction.x * (r.origin.x - x) + r.direction.y * (r.origin.y - y) + r.direction.z * (r.origin.z - z));
+		c = (r.origin.x - x)*(r.origin.x - x) + (r.origin.y - y)*(r.origin.y - y) + (r.origin.z - z)*(r.origin.z - z) - radius*radius;
+		det = b*b - 4*a*c;
+		
+		if(!(det > 0))	// no intersection
+		{
+			return -1;
+		}
+		
+		det = (float) Math.sqrt(det);
+		
+		float t0 = (-b - det)/2/a;
+		float t1 = (-b + det)/2/a;
+		float t = (t0 < 0 || t0 < r.tmin) ? t1 : t0;	// t0 invalid, test t1 instead
+		if(t < 0 || t < r.tmin || t >= r.tmax)
+		{
+			return -1;
+		}
+		return t;
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		if(material != null && !material.castsShadows())
+		{
+			return false;
+		}
+		return occluded(position.x, position.y, position.z, radius, r, tMax);
+	}
+	
+	/**
+	 * Test for a hit with the sphere with center (x,y,z) closer than tMax, regardless of
+	 * the material.
+	 */
+	static boolean occluded(float x, float y, float z, float radius, Ray r, float tMax)
+	{
 		float a, b, c, det;
 		a = r.direction.x*r.direction.x + r.direction.y*r.direction.y + r.direction.z*r.direction.z;
-		b = 2 * (r.direction.x * (r.origin.x - position.x) + r.direction.y * (r.origin.y - position.y) + r.direction.z * (r.origin.z - position.z));
-		c = (r.origin.x - position.x)*(r.origin.x - position.x) + (r.origin.y - position.y)*(r.origin.y - position.y) + (r.origin.z - position.z)*(r.origin.z - position.z) - radius*radius;
+		b = 2 * (r.direction.x * (r.origin.x - x) + r.direction.y * (r.origin.y - y) + r.direction.z * (r.origin.z - z));
+		c = (r.origin.x - x)*(r.origin.x - x) + (r.origin.y - y)*(r.origin.y - y) + (r.origin.z - z)*(r.origin.z - z) - radius*radius;
 		det = b*b - 4*a*c;
 		
 		if(!(det > 0))	// no intersection
 		{
-			return null;
+			return false;
 		}
 		
 		det = (float) Math.sqrt(det);
 		
 		if(-b + det < 0) //both t0 and t1 invalid
 		{
-			return null;
+			return false;
 		}
 		if(-b -det < 0)	//t0 invalid
 		{
 			det = -det;	// test t1 instead
 		}
 		
-		hr.t = (-b - det)/2/a;
-		
-		hr.position = new Vector3f(r.origin.x + r.direction.x*hr.t, r.origin.y + r.direction.y*hr.t, r.origin.z + r.direction.z*hr.t);
-		
-		hr.normal = new Vector3f(hr.position);
-		hr.normal.sub(position);
-		hr.normal.scale(1.f/radius);
-		
-		hr.t2 = new Vector3f(0,1,0);
-		hr.t2.cross(hr.t2, hr.normal);
-		hr.t2.normalize();
-		
-		hr.t1 = new Vector3f();
-		hr.t1.cross(hr.normal, hr.t2);
-		hr.t1.normalize();
-		
-		return hr;
+		return (-b - det)/2/a < tMax;
 	}
 
 	@Override
@@ -0,0 +1,245 @@
+package rt.intersectables;
+
+import java.util.Iterator;
+
+import javax.vecmath.Vector3f;
+
+import rt.BoundingBox;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Material;
+import rt.Ray;
+import rt.Spectrum;
+import rt.materials.Diffuse;
+
+/**
+ * A large set of spheres, for example particles or the atoms of a molecule. Like a
+ * {@link Mesh}, the set stores its spheres in flat arrays instead of one {@link Sphere}
+ * object each, about 20 bytes per sphere plus the hierarchy. The spheres are intersected
+ * through a {@link BVHAccelerator} over their indices, see {@link IndexedPrimitives}, which
+ * is built on first use and is the one of {@link Aggregate#getAccelerator()}. Acceleration
+ * structures that do not support indexed primitives use the iterator, which instantiates a
+ * {@link Sphere} for each sphere on first use.
+ */
+public class SphereSet extends Aggregate implements IndexedPrimitives
+{
+	/**
+	 * BoundingBox that contains all spheres
+	 */
+	private BoundingBox bound;
+
+	/**
+	 * Array of sphere centers. Stores x,y,z coordinates for each sphere consecutively.
+	 */
+	public float[] centers;
+
+	/**
+	 * Radius of each sphere.
+	 */
+	public float[] radii;
+
+	/**
+	 * Index into {@link SphereSet#materials} for each sphere, or null if all spheres have
+	 * the first material.
+	 */
+	public int[] materialIndices;
+
+	public Material[] materials;
+
+	/**
+	 * Array of spheres, made by the first call of {@link SphereSet#iterator()}.
+	 */
+	private volatile Sphere[] spheres;
+
+	/**
+	 * Make a set of diffuse white spheres.
+	 */
+	public SphereSet(float[] centers, float[] radii)
+	{
+		this(centers, radii, null, new Material[] {new Diffuse(new Spectrum(1.f, 1.f, 1.f))});
+	}
+
+	/**
+	 * Make a set of spheres with a material each.
+	 *
+	 * @param materialIndices index into materials for each sphere, or null for the first
+	 * material
+	 */
+	public SphereSet(float[] centers, float[] radii, int[] materialIndices, Material[] materials)
+	{
+		this.centers = centers;
+		this.radii = radii;
+		this.materialIndices = materialIndices;
+		this.materials = materials;
+
+		computeBoundingBox();
+	}
+
+	/**
+	 * Update the bounding box and the accelerator after the {@link SphereSet#centers} or
+	 * {@link SphereSet#radii} have changed.
+	 */
+	@Override
+	public void refit()
+	{
+		computeBoundingBox();
+		super.refit();
+	}
+
+	private void computeBoundingBox()
+	{
+		float[] b = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		for(int i=0; i<radii.length; i++)
+		{
+			for(int k=0; k<3; k++)
+			{
+				b[2*k] = Math.min(b[2*k], centers[3*i+k] - radii[i]);
+				b[2*k+1] = Math.max(b[2*k+1], centers[3*i+k] + radii[i]);
+			}
+		}
+		bound = new BoundingBox(b[0], b[1], b[2], b[3], b[4], b[5]);
+	}
+
+	/**
+	 * Material of a sphere.
+	 */
+	public Material getMaterial(int sphere)
+	{
+		return materials[materialIndices != null ? materialIndices[sphere] : 0];
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		return getAccelerator().intersect(r);
+	}
+
+	/**
+	 * Closest hit with the spheres, r.tmax is lowered with every hit. A new record is made
+	 * for the hit, hit is never reused.
+	 */
+	@Override
+	public HitRecord intersect(Ray r, HitRecord hit)
+	{
+		return getAccelerator().intersectNodes(r);
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		return getAccelerator().occluded(r, tMax);
+	}
+
+	@Override
+	public int getPrimitiveCount()
+	{
+		return radii.length;
+	}
+
+	@Override
+	public void getPrimitiveBounds(int sphere, float[] bounds, int offset)
+	{
+		for(int k=0; k<3; k++)
+		{
+			bounds[offset+2*k] = centers[3*sphere+k] - radii[sphere];
+			bounds[offset+2*k+1] = centers[3*sphere+k] + radii[sphere];
+		}
+	}
+
+	@Override
+	public HitRecord intersect(int sphere, Ray r, HitRecord hit)
+	{
+		float t = Sphere.distance(centers[3*sphere], centers[3*sphere+1], centers[3*sphere+2], radii[sphere], r);
+		if(t < 0)
+		{
+			return null;
+		}
+
+		if(hit == null)
+		{
+			hit = new HitRecord();
+		}
+		hit.intersectable = this;
+		hit.deferred = this;
+		hit.primitive = sphere;
+		hit.t = t;
+		return hit;
+	}
+
+	@Override
+	public void completeHit(Ray r, HitRecord hr)
+	{
+		int i = hr.primitive;
+		hr.material = getMaterial(i);
+		Sphere.completeHit(centers[3*i], centers[3*i+1], centers[3*i+2], radii[i], r, hr);
+	}
+
+	@Override
+	public boolean occluded(int sphere, Ray r, float tMax)
+	{
+		Material material = getMaterial(sphere);
+		if(material != null && !material.castsShadows())
+		{
+			return false;
+		}
+		return Sphere.occluded(centers[3*sphere], centers[3*sphere+1], centers[3*sphere+2], radii[sphere], r, tMax);
+	}
+
+	public Iterator<Intersectable> iterator() {
+		Sphere[] s = spheres;
+		if(s == null)
+		{
+			synchronized(this)
+			{
+				s = spheres;
+				if(s == null)
+				{
+					s = new Sphere[radii.length];
+					for(int i=0; i<s.length; i++)
+					{
+						s[i] = new Sphere(new Vector3f(centers[3*i], centers[3*i+1], centers[3*i+2]), radii[i]);
+						s[i].material = getMaterial(i);
+					}
+					spheres = s;
+				}
+			}
+		}
+		return new SphereIterator(s);
+	}
+
+	private class SphereIterator implements Iterator<Intersectable>
+	{
+		private int i;
+		private Sphere[] spheres;
+
+		public SphereIterator(Sphere[] spheres)
+		{
+			this.spheres = spheres;
+			i = 0;
+		}
+
+		public boolean hasNext()
+		{
+			return i<spheres.length;
+		}
+
+		public Sphere next()
+		{
+			int j = i;
+			i++;
+			return spheres[j];
+		}
+
+		public void remove()
+		{
+		}
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		return bound;
+	}
+
+}
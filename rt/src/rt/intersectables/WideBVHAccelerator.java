@@ -0,0 +1,484 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import rt.BoundingBox;
+import rt.ClosestHit;
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+
+/**
+ * A bounding volume hierarchy whose nodes have up to {@link WideBVHAccelerator#width}
+ * children (4 by default, or 8). The tree is collapsed from the binary SAH build of a
+ * {@link BVHBuilder}, so it has the same leaves but only about a third (or a seventh) of
+ * the interior nodes. A ray visits fewer nodes and tests all child boxes of a node in one
+ * go, which saves stack operations and branches compared to the binary
+ * {@link BVHAccelerator}.
+ * <p>
+ * The child boxes of a node are stored as structure of arrays: all min x of the children,
+ * then all max x, and so on. The box test runs over the children in a simple counted loop
+ * on consecutive floats, a shape that the JIT compiler can map to SIMD instructions.
+ */
+public class WideBVHAccelerator implements Intersectable
+{
+	/**
+	 * Number of children per node.
+	 */
+	protected int width;
+
+	protected Intersectable[] primitives;
+
+	/**
+	 * The primitives grouped by kind, see {@link PrimitiveBuckets}.
+	 */
+	protected PrimitiveBuckets buckets;
+
+	protected ArrayList<Intersectable> infinites;
+	protected BoundingBox bound;
+
+	/**
+	 * Child bounds, 6*width floats per node: min x of all children, max x of all children,
+	 * then the same for y and z. Unused child slots have empty bounds.
+	 */
+	protected float[] childBounds;
+
+	/**
+	 * Child data, 2*width ints per node, two for each child. For a leaf: offset into
+	 * {@link WideBVHAccelerator#primIndices} and number of primitives (> 0). For an interior
+	 * child: index of the child node and 0. Unused slots have -1 as second entry.
+	 */
+	protected int[] children;
+
+	/**
+	 * Indices into {@link WideBVHAccelerator#primitives} referenced by the leaves.
+	 */
+	protected int[] primIndices;
+
+	/**
+	 * Size of the traversal stack needed for the tree.
+	 */
+	protected int stackSize;
+
+	/**
+	 * Per thread traversal stacks, so that rays do not allocate.
+	 */
+	protected ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+	protected ThreadLocal<float[]> distanceStacks = new ThreadLocal<float[]>();
+
+	/**
+	 * Per thread scratch space for the entry and exit distances of the children of a node.
+	 */
+	protected ThreadLocal<float[]> entries = new ThreadLocal<float[]>();
+
+	public WideBVHAccelerator(Aggregate aggr)
+	{
+		this(aggr, 4);
+	}
+
+	/**
+	 * @param width number of children per node, at least 2
+	 */
+	public WideBVHAccelerator(Aggregate aggr, int width)
+	{
+		this.width = width;
+		infinites = new ArrayList<Intersectable>();
+		ArrayList<Intersectable> finites = new ArrayList<Intersectable>();
+
+		Iterator<Intersectable> it = aggr.iterator();
+		while(it.hasNext())
+		{
+			Intersectable i = it.next();
+			BoundingBox b = i.getBoundingBox();
+			if(b == null)
+			{
+				infinites.add(i);
+			}else
+			{
+				finites.add(i);
+			}
+		}
+
+		primitives = finites.toArray(new Intersectable[finites.size()]);
+		buckets = new PrimitiveBuckets(primitives);
+		float[] primBounds = new float[6*primitives.length];
+		for(int i=0; i<primitives.length; i++)
+		{
+			BVHAccelerator.setBounds(primBounds, i, primitives[i].getBoundingBox());
+		}
+
+		BVHBuilder builder = new BVHBuilder(primBounds, BVHAccelerator.MAX_LEAF_SIZE);
+		builder.build();
+		primIndices = builder.primIndices;
+		PrimitiveBuckets.sortLeaves(builder.nodes, primIndices);
+
+		if(builder.nodeCount == 0)
+		{
+			childBounds = new float[0];
+			children = new int[0];
+			return;
+		}
+
+		// A binary tree with n nodes has (n-1)/2 interior nodes, every wide node replaces at
+		// least one of them; a single leaf still needs one wide node as root
+		int capacity = Math.max(1, builder.nodeCount/2);
+		childBounds = new float[6*width*capacity];
+		children = new int[2*width*capacity];
+		int[] nodeCount = new int[1];
+		int depth = collapse(builder, 0, nodeCount);
+		childBounds = Arrays.copyOf(childBounds, 6*width*nodeCount[0]);
+		children = Arrays.copyOf(children, 2*width*nodeCount[0]);
+
+		// at most width-1 siblings wait on the stack per level
+		stackSize = depth*(width - 1) + 1;
+		bound = new BoundingBox(builder.nodeBounds[0], builder.nodeBounds[1], builder.nodeBounds[2],
+				builder.nodeBounds[3], builder.nodeBounds[4], builder.nodeBounds[5]);
+	}
+
+	/**
+	 * Make a wide node from the binary subtree rooted at the given node. Starting with the
+	 * node itself, the interior node with the largest surface area among the children
+	 * collected so far is replaced by its two children, until there are width children or
+	 * only leaves are left.
+	 *
+	 * @param nodeCount number of wide nodes made so far, incremented
+	 * @return depth of the wide subtree
+	 */
+	int collapse(BVHBuilder builder, int binaryNode, int[] nodeCount)
+	{
+		int node = nodeCount[0]++;
+		int[] slots = new int[width];
+		int n = 1;
+		slots[0] = binaryNode;
+		while(n < width)
+		{
+			int best = -1;
+			float bestArea = Float.NEGATIVE_INFINITY;
+			for(int c=0; c<n; c++)
+			{
+				if(builder.nodes[2*slots[c]+1] <= 0 && BVHBuilder.area(builder.nodeBounds, slots[c]) > bestArea)
+				{
+					best = c;
+					bestArea = BVHBuilder.area(builder.nodeBounds, slots[c]);
+				}
+			}
+			if(best < 0)
+			{
+				break;
+			}
+			int open = slots[best];
+			slots[best] = open + 1;
+			slots[n++] = builder.nodes[2*open];
+		}
+
+		int depth = 0;
+		int b = 6*width*node;
+		for(int c=0; c<width; c++)
+		{
+			int s = 2*(width*node + c);
+			if(c >= n)
+			{
+				for(int axis=0; axis<3; axis++)
+				{
+					childBounds[b + 2*axis*width + c] = Float.POSITIVE_INFINITY;
+					childBounds[b + (2*axis+1)*width + c] = Float.NEGATIVE_INFINITY;
+				}
+				children[s] = 0;
+				children[s+1] = -1;
+				continue;
+			}
+			for(int i=0; i<6; i++)
+			{
+				childBounds[b + i*width + c] = builder.nodeBounds[6*slots[c] + i];
+			}
+			int count = builder.nodes[2*slots[c]+1];
+			if(count > 0)
+			{
+				children[s] = builder.nodes[2*slots[c]];
+				children[s+1] = count;
+			}else
+			{
+				children[s+1] = 0;
+				children[s] = nodeCount[0];
+				depth = Math.max(depth, collapse(builder, slots[c], nodeCount));
+			}
+		}
+		return depth + 1;
+	}
+
+	/**
+	 * Store the nodes in treelets of the given number of nodes, see {@link NodeLayout}, so
+	 * the upper levels of the tree share cache lines. With 0, the nodes are stored depth
+	 * first, as built. Must not be called while rays are intersected with the accelerator.
+	 */
+	public void layoutTreelets(int treeletSize)
+	{
+		int[] order;
+		if(treeletSize > 0)
+		{
+			order = NodeLayout.wideTreelets(children, width, nodeAreas(), treeletSize);
+		}else
+		{
+			order = NodeLayout.wideDepthFirst(children, width);
+		}
+		children = NodeLayout.applyWide(children, width, order);
+		childBounds = NodeLayout.apply(childBounds, 6*width, order);
+	}
+
+	/**
+	 * Surface area of each node, the area of the union of the bounds of its children.
+	 */
+	protected float[] nodeAreas()
+	{
+		int nodeCount = children.length/(2*width);
+		float[] area = new float[nodeCount];
+		float[] box = new float[6];
+		for(int node=0; node<nodeCount; node++)
+		{
+			int b = 6*width*node;
+			for(int axis=0; axis<3; axis++)
+			{
+				box[2*axis] = Float.POSITIVE_INFINITY;
+				box[2*axis+1] = Float.NEGATIVE_INFINITY;
+				for(int c=0; c<width; c++)
+				{
+					if(children[2*(width*node + c)+1] >= 0)
+					{
+						box[2*axis] = Math.min(box[2*axis], childBounds[b + 2*axis*width + c]);
+						box[2*axis+1] = Math.max(box[2*axis+1], childBounds[b + (2*axis+1)*width + c]);
+					}
+				}
+			}
+			area[node] = BVHBuilder.area(box, 0);
+		}
+		return area;
+	}
+
+	@Override
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord hitRecord = null;
+
+		// Intersect all objects in infinites, objects only report hits closer than r.tmax,
+		// which is lowered with every hit
+		for(Intersectable o:infinites)
+		{
+			hitRecord = ClosestHit.intersect(o, r, hitRecord);
+		}
+
+		if(children.length == 0)
+		{
+			return ClosestHit.complete(r, hitRecord);
+		}
+
+		float[] entry = entries();
+		int[] stack = stack();
+		float[] distances = distanceStacks.get();
+
+		// Stack entries are nodes (>= 0) or leaf slots (-(slot + 1)), each with the distance
+		// at which the ray enters it, so that entries behind the closest hit can be skipped
+		int sp = 0;
+		stack[sp] = 0;
+		distances[sp++] = r.tmin;
+		while(sp > 0)
+		{
+			sp--;
+			if(distances[sp] > r.tmax)
+			{
+				continue;
+			}
+			int item = stack[sp];
+			if(item < 0)
+			{	// leaf
+				int s = 2*(-item - 1);
+				int offset = children[s];
+				int count = children[s+1];
+				for(int i=offset; i<offset+count; i++)
+				{
+					hitRecord = buckets.intersect(primIndices[i], r, hitRecord);
+				}
+				continue;
+			}
+
+			// Push the children that are hit, far ones first, so the nearest one is on top
+			int hits = intersectChildren(item, r, r.tmax, entry);
+			int first = sp;
+			for(int c=0; c<width; c++)
+			{
+				if((hits & (1 << c)) == 0)
+				{
+					continue;
+				}
+				int s = width*item + c;
+				int push = children[2*s+1] > 0 ? -(s + 1) : children[2*s];
+				float t = entry[c];
+				int j = sp++;
+				while(j > first && distances[j-1] < t)
+				{
+					stack[j] = stack[j-1];
+					distances[j] = distances[j-1];
+					j--;
+				}
+				stack[j] = push;
+				distances[j] = t;
+			}
+		}
+
+		return ClosestHit.complete(r, hitRecord);
+	}
+
+	@Override
+	public boolean occluded(Ray r, float tMax)
+	{
+		for(Intersectable o:infinites)
+		{
+			if(o.occluded(r, tMax))
+			{
+				return true;
+			}
+		}
+
+		if(children.length == 0)
+		{
+			return false;
+		}
+
+		// Any blocker will do, so children are visited in storage order
+		float[] entry = entries();
+		int[] stack = stack();
+		int sp = 0;
+		stack[sp++] = 0;
+		while(sp > 0)
+		{
+			int item = stack[--sp];
+			if(item < 0)
+			{	// leaf
+				int s = 2*(-item - 1);
+				int offset = children[s];
+				int count = children[s+1];
+				for(int i=offset; i<offset+count; i++)
+				{
+					if(buckets.occluded(primIndices[i], r, tMax))
+					{
+						return true;
+					}
+				}
+				continue;
+			}
+
+			int hits = intersectChildren(item, r, tMax, entry);
+			for(int c=0; c<width; c++)
+			{
+				if((hits & (1 << c)) != 0)
+				{
+					int s = width*item + c;
+					stack[sp++] = children[2*s+1] > 0 ? -(s + 1) : children[2*s];
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Slab test of the ray against all child boxes of a node. The sign of the ray direction
+	 * selects the near and far planes like in {@link BVHAccelerator}. The loops run over the
+	 * children with the same operations for each and without branches, so the JIT compiler
+	 * can turn them into SIMD instructions.
+	 *
+	 * @param tmax the far end of the ray range
+	 * @param entry receives the distance at which the ray enters each child, followed by
+	 * the distance at which it leaves each child
+	 * @return bit mask of the children that are hit between r.tmin and tmax
+	 */
+	protected int intersectChildren(int node, Ray r, float tmax, float[] entry)
+	{
+		int w = width;
+		int b = 6*w*node;
+		int xn = b + r.sign[0]*w;
+		int xf = b + (1 - r.sign[0])*w;
+		int yn = b + (2 + r.sign[1])*w;
+		int yf = b + (3 - r.sign[1])*w;
+		int zn = b + (4 + r.sign[2])*w;
+		int zf = b + (5 - r.sign[2])*w;
+		float ox = r.origin.x;
+		float oy = r.origin.y;
+		float oz = r.origin.z;
+		float idx = finite(r.invDirection.x);
+		float idy = finite(r.invDirection.y);
+		float idz = finite(r.invDirection.z);
+		float tmin = r.tmin;
+
+		for(int c=0; c<w; c++)
+		{
+			entry[c] = Math.max(Math.max(tmin, (childBounds[xn+c] - ox)*idx),
+					Math.max((childBounds[yn+c] - oy)*idy, (childBounds[zn+c] - oz)*idz));
+			entry[w+c] = Math.min(Math.min(tmax, (childBounds[xf+c] - ox)*idx),
+					Math.min((childBounds[yf+c] - oy)*idy, (childBounds[zf+c] - oz)*idz));
+		}
+
+		int hits = 0;
+		for(int c=0; c<w; c++)
+		{
+			hits |= (entry[c] <= entry[w+c] ? 1 : 0) << c;
+		}
+		return hits;
+	}
+
+	/**
+	 * Replace an infinite reciprocal direction by the largest finite float of the same sign.
+	 * A ray that starts on a box plane it is parallel to then gets 0 instead of a NaN (0*inf)
+	 * as distance to that plane, which matters because Math.min and Math.max return NaN if
+	 * one of their arguments is NaN.
+	 */
+	static float finite(float f)
+	{
+		if(f == Float.POSITIVE_INFINITY)
+		{
+			return Float.MAX_VALUE;
+		}
+		if(f == Float.NEGATIVE_INFINITY)
+		{
+			return -Float.MAX_VALUE;
+		}
+		return f;
+	}
+
+	/**
+	 * Get the traversal stacks of the calling thread, large enough for the current tree.
+	 */
+	protected int[] stack()
+	{
+		int[] stack = stacks.get();
+		if(stack == null || stack.length < stackSize)
+		{
+			stack = new int[stackSize];
+			stacks.set(stack);
+			distanceStacks.set(new float[stackSize]);
+		}
+		return stack;
+	}
+
+	protected float[] entries()
+	{
+		float[] entry = entries.get();
+		if(entry == null || entry.length < 2*width)
+		{
+			entry = new float[2*width];
+			entries.set(entry);
+		}
+		return entry;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox()
+	{
+		if(infinites.isEmpty())
+		{
+			return bound;
+		}
+		return null;
+	}
+
+}
@@ -30,6 +30,13 @@ public class PointLight implements LightGeometry {
 		return null;
 	}
 
+	/**
+	 * A ray is never blocked by a point.
+	 */
+	public boolean occluded(Ray r, float tMax) {
+		return false;
+	}
+
 	/**
 	 * Sample a point on the light geometry. On a point light,
 	 * always return light position with probability one. 
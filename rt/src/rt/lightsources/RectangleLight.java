@@ -61,7 +61,7 @@ public class RectangleLight implements LightGeometry {
 
 		if (tmp != 0) {
 			float t = -(normal.dot(r.origin) + d) / tmp;
-			if (t <= 0)
+			if (t <= 0 || t < r.tmin || t >= r.tmax)
 				return null;
 			Vector3f position = new Vector3f(r.direction);
 			position.scaleAdd(t, r.origin);
@@ -91,6 +91,27 @@ public class RectangleLight implements LightGeometry {
 		}
 	}
 
+	public boolean occluded(Ray r, float tMax) {
+		
+		if (!lightMaterial.castsShadows())
+			return false;
+		
+		float tmp = normal.dot(r.direction);
+		if (tmp == 0)
+			return false;
+		float t = -(normal.dot(r.origin) + d) / tmp;
+		if (t <= 0 || t >= tMax)
+			return false;
+
+		// position relative to the bottom left corner
+		float cx = r.origin.x + t*r.direction.x - bottomLeft.x;
+		float cy = r.origin.y + t*r.direction.y - bottomLeft.y;
+		float cz = r.origin.z + t*r.direction.z - bottomLeft.z;
+		float u = right.x*cx + right.y*cy + right.z*cz;
+		float v = top.x*cx + top.y*cy + top.z*cz;
+		return !(u < 0 || v < 0 || u > rightlen || v > toplen);
+	}
+
 	@Override
 	public BoundingBox getBoundingBox()
 	{
@@ -67,14 +67,14 @@ public class BoxCar extends Scene {
 		// Add objects
 		Timer timer = new Timer();
 		Mesh mesh;
-		BSPAccelerator accelerator;
+		BVHAccelerator accelerator;
 		try
 		{
 			
 			mesh = ObjReader.read("../obj/Specter_GT3.obj", 1.f);
 			mesh.material = new Diffuse(new Spectrum(0.8f, 0.4f, 0.4f));
 			timer.reset();
-			accelerator = new BSPAccelerator(mesh);
+			accelerator = new BVHAccelerator(mesh);
 			System.out.printf("Accelerator computed in %d ms.\n", timer.timeElapsed());
 			
 			Matrix4f t = new Matrix4f();
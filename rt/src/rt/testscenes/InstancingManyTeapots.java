@@ -0,0 +1,107 @@
+package rt.testscenes;
+
+import java.io.IOException;
+
+import rt.*;
+import rt.cameras.*;
+import rt.films.*;
+import rt.integrators.*;
+import rt.intersectables.*;
+import rt.lightsources.*;
+import rt.samplers.*;
+import rt.tonemappers.*;
+import rt.materials.*;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * Test scene for two level acceleration: a field of teapot instances that all share the
+ * acceleration structure of one mesh, with a top level acceleration structure over the
+ * instances.
+ */
+public class InstancingManyTeapots extends Scene {
+
+	/**
+	 * Number of teapots along each side of the field.
+	 */
+	static final int N = 32;
+
+	public IntersectableList objects;
+
+	public InstancingManyTeapots()
+	{
+		outputFilename = new String("../output/testscenes/InstancingManyTeapots");
+
+		// Specify integrator to be used
+		integratorFactory = new WhittedIntegratorFactory();
+
+		// Specify pixel sampler to be used
+		samplerFactory = new OneSamplerFactory();
+
+		// Make camera and film
+		Vector3f eye = new Vector3f(0.f,6.f,12.f);
+		Vector3f lookAt = new Vector3f(0.f,0.f,0.f);
+		Vector3f up = new Vector3f(0.f,1.f,0.f);
+		float fov = 60.f;
+		int width = 512;
+		int height = 512;
+		float aspect = (float)width/(float)height;
+		camera = new PinholeCamera(eye, lookAt, up, fov, aspect, width, height);
+		film = new BoxFilterFilm(width, height);
+		tonemapper = new ClampTonemapper();
+
+		// List of objects
+		objects = new IntersectableList();
+
+		// Floor
+		Plane plane = new Plane(new Vector3f(0.f, 1.f, 0.f), 0.f);
+		plane.material = new Diffuse(new Spectrum(0.8f, 0.8f, 0.8f));
+		objects.add(plane);
+
+		// Add objects
+		Mesh mesh;
+		try
+		{
+
+			mesh = ObjReader.read("../obj/teapot.obj", 1.f);
+		} catch(IOException e)
+		{
+			System.out.printf("Could not read .obj file\n");
+			return;
+		}
+		mesh.material = new Diffuse(new Spectrum(0.8f, 0.3f, 0.2f));
+
+		// Place the instances on a grid, each rotated differently
+		float spacing = 20.f/N;
+		Matrix4f rot = new Matrix4f();
+		Matrix4f t = new Matrix4f();
+		for(int i=0; i<N; i++)
+		{
+			for(int j=0; j<N; j++)
+			{
+				rot.rotY((float)Math.toRadians(37.f*(i*N + j)));
+				t.setIdentity();
+				t.setScale(0.3f*spacing);
+				t.setTranslation(new Vector3f((i - 0.5f*(N-1))*spacing, 0.3f*spacing, (j - 0.5f*(N-1))*spacing));
+				t.mul(rot);
+				objects.add(new Instance(mesh, t));
+			}
+		}
+
+		// Top level acceleration structure over the instances, the instances share
+		// the acceleration structure of the mesh
+		Timer timer = new Timer();
+		root = new BVHAccelerator(objects);
+		System.out.printf("Accelerator over %d instances computed in %d ms.\n", N*N, timer.timeElapsed());
+
+		// List of lights
+		lightList = new LightList();
+
+		LightGeometry light = new PointLight(new Vector3f(0.f,10.f,5.f), new Spectrum(100.f, 100.f, 100.f));
+		lightList.add(light);
+
+		light = new PointLight(new Vector3f(-8.f,6.f,10.f), new Spectrum(50.f, 50.f, 50.f));
+		lightList.add(light);
+	}
+}
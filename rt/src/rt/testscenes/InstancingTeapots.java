@@ -102,7 +102,9 @@ public class InstancingTeapots extends Scene {
 		instance = new Instance(mesh, t);
 		objects.add(instance);
 				
-		root = objects;
+		// Top level acceleration structure over the instances, the instances share
+		// the acceleration structure of the mesh
+		root = new BVHAccelerator(objects);
 		
 		// List of lights
 		lightList = new LightList();
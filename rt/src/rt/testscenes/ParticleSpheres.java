@@ -0,0 +1,95 @@
+package rt.testscenes;
+
+import java.util.Random;
+
+import rt.*;
+import rt.cameras.*;
+import rt.films.*;
+import rt.integrators.*;
+import rt.intersectables.*;
+import rt.lightsources.*;
+import rt.samplers.*;
+import rt.tonemappers.*;
+import rt.materials.*;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Test scene for large sets of spheres: a cloud of a million particles in a
+ * {@link SphereSet}, with a few materials, above a floor.
+ */
+public class ParticleSpheres extends Scene {
+
+	/**
+	 * Number of particles.
+	 */
+	static final int N = 1000000;
+
+	public IntersectableList objects;
+
+	public ParticleSpheres()
+	{
+		outputFilename = new String("../output/testscenes/ParticleSpheres");
+
+		// Specify integrator to be used
+		integratorFactory = new WhittedIntegratorFactory();
+
+		// Specify pixel sampler to be used
+		samplerFactory = new OneSamplerFactory();
+
+		// Make camera and film
+		Vector3f eye = new Vector3f(0.f,3.f,6.f);
+		Vector3f lookAt = new Vector3f(0.f,1.f,0.f);
+		Vector3f up = new Vector3f(0.f,1.f,0.f);
+		float fov = 60.f;
+		int width = 512;
+		int height = 512;
+		float aspect = (float)width/(float)height;
+		camera = new PinholeCamera(eye, lookAt, up, fov, aspect, width, height);
+		film = new BoxFilterFilm(width, height);
+		tonemapper = new ClampTonemapper();
+
+		// List of objects
+		objects = new IntersectableList();
+
+		// Floor
+		Plane plane = new Plane(new Vector3f(0.f, 1.f, 0.f), 0.f);
+		plane.material = new Diffuse(new Spectrum(0.8f, 0.8f, 0.8f));
+		objects.add(plane);
+
+		// Particles in a ball, denser towards its center
+		Timer timer = new Timer();
+		Random random = new Random(1);
+		float[] centers = new float[3*N];
+		float[] radii = new float[N];
+		int[] materialIndices = new int[N];
+		for(int i=0; i<N; i++)
+		{
+			Vector3f p = new Vector3f((float) random.nextGaussian(), (float) random.nextGaussian(),
+					(float) random.nextGaussian());
+			p.scale(0.5f);
+			centers[3*i] = p.x;
+			centers[3*i+1] = p.y + 1.5f;
+			centers[3*i+2] = p.z;
+			radii[i] = 0.003f + 0.004f*random.nextFloat();
+			materialIndices[i] = random.nextInt(3);
+		}
+		Material[] materials = {new Diffuse(new Spectrum(0.8f, 0.3f, 0.2f)),
+				new Diffuse(new Spectrum(0.2f, 0.4f, 0.8f)), new Diffuse(new Spectrum(0.9f, 0.8f, 0.3f))};
+		SphereSet particles = new SphereSet(centers, radii, materialIndices, materials);
+		particles.getAccelerator();
+		objects.add(particles);
+		System.out.printf("Accelerator over %d spheres computed in %d ms.\n", N, timer.timeElapsed());
+
+		root = objects;
+
+		// List of lights
+		lightList = new LightList();
+
+		LightGeometry light = new PointLight(new Vector3f(0.f,6.f,4.f), new Spectrum(40.f, 40.f, 40.f));
+		lightList.add(light);
+
+		light = new PointLight(new Vector3f(-4.f,4.f,2.f), new Spectrum(20.f, 20.f, 20.f));
+		lightList.add(light);
+	}
+}
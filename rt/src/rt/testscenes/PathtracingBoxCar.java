@@ -67,13 +67,13 @@ public class PathtracingBoxCar extends Scene {
 		// Add objects
 		Timer timer = new Timer();
 		Mesh mesh;
-		BSPAccelerator accelerator;
+		BVHAccelerator accelerator;
 		try
 		{
 			
 			mesh = ObjReader.read("../obj/Specter_GT3.obj", 1.f);
 			timer.reset();
-			accelerator = new BSPAccelerator(mesh);
+			accelerator = new BVHAccelerator(mesh);
 			System.out.printf("Accelerator computed in %d ms.\n", timer.timeElapsed());
 			
 			Matrix4f t = new Matrix4f();
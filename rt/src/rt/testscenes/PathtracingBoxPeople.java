@@ -68,14 +68,14 @@ public class PathtracingBoxPeople extends Scene {
 		// Add objects
 		Timer timer = new Timer();
 		Mesh mesh;
-		BSPAccelerator accelerator;
+		BVHAccelerator accelerator;
 		try
 		{
 			
 			mesh = ObjReader.read("../obj/fireman.obj", 1.f);
 			mesh.material = new Diffuse(new Spectrum(0.8f, 0.8f, 0.8f));
 			timer.reset();
-			accelerator = new BSPAccelerator(mesh);
+			accelerator = new BVHAccelerator(mesh, true);
 			System.out.printf("Accelerator computed in %d ms.\n", timer.timeElapsed());
 			
 			Matrix4f t = new Matrix4f();
@@ -94,7 +94,7 @@ public class PathtracingBoxPeople extends Scene {
 			
 			mesh = ObjReader.read("../obj/male.obj", 1.f);
 			timer.reset();
-			accelerator = new BSPAccelerator(mesh);
+			accelerator = new BVHAccelerator(mesh, true);
 			System.out.printf("Accelerator computed in %d ms.\n", timer.timeElapsed());
 			
 			Matrix4f t = new Matrix4f();